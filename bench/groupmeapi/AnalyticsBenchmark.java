@@ -0,0 +1,136 @@
+/**
+ * Cost of the analytics of a group: a single-threaded walk of the whole
+ * group tree against GroupAnalytics over each archive format on one thread
+ * and on every core.
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AnalyticsBenchmark {
+
+    @Param({"20000", "200000"})
+    public int messageCount;
+
+    @Param({"1", "0"})
+    public int threads;     // 0 for every core
+
+    private static final ZoneId ZONE = ZoneId.of("America/New_York");
+
+    private ObjectNode group;
+    private File folder;
+    private File jsonArchive;
+    private File binaryArchive;
+    private File messageStore;
+    private ForkJoinPool pool;
+
+    @Setup
+    public void setUp() throws IOException {
+        group = Fixtures.group(messageCount, 5);
+        folder = Files.createTempDirectory("groupme-bench").toFile();
+        jsonArchive = new File(folder, "messages.json");
+        binaryArchive = new File(folder, "messages" + GroupMeAPI.BINARY_ARCHIVE_EXTENSION);
+        messageStore = new File(folder, "messages" + GroupMeAPI.MESSAGE_STORE_EXTENSION);
+        write(new JsonArchiveWriter(jsonArchive));
+        write(new BinaryArchiveWriter(binaryArchive));
+        write(new MessageStoreWriter(messageStore));
+        pool = new ForkJoinPool((threads == 0) ? Runtime.getRuntime().availableProcessors() : threads);
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+        delete(folder);
+    }
+
+
+    @Benchmark
+    public Map<String, long[]> walkGroupTree() {
+        // Messages and likes per member, the way it was done on the loaded group
+        Map<String, long[]> members = new HashMap<>();
+        for (JsonNode message : group.path("messages").path("message_list")) {
+            long[] counts = members.computeIfAbsent(message.path("sender_id").asText(), (id) -> new long[2]);
+            counts[0]++;
+            counts[1] += message.path("favorited_by").size();
+        }
+        return members;
+    }
+
+
+    @Benchmark
+    public ObjectNode analyzeJsonArchive() throws IOException {
+        return GroupAnalytics.analyze(jsonArchive, ZONE, pool);
+    }
+
+
+    @Benchmark
+    public ObjectNode analyzeBinaryArchive() throws IOException {
+        return GroupAnalytics.analyze(binaryArchive, ZONE, pool);
+    }
+
+
+    @Benchmark
+    public ObjectNode analyzeMessageStore() throws IOException {
+        return GroupAnalytics.analyze(messageStore, ZONE, pool);
+    }
+
+
+    private void write(ArchiveWriter writer) throws IOException {
+        JsonNode messages = group.path("messages").path("message_list");
+        writer.begin(group);
+        for (int i = 0; i < messages.size(); i += 100) {
+            ArrayNode page = GroupMeAPI.objectMapper().createArrayNode();
+            for (int j = i; j < Math.min(messages.size(), i + 100); j++) {
+                page.add(messages.get(j));
+            }
+            writer.page(page);
+        }
+        writer.end();
+    }
+
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
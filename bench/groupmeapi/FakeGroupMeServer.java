@@ -0,0 +1,425 @@
+/**
+ * Local stand-in for api.groupme.com and i.groupme.com, for measuring the
+ * archiver without touching GroupMe. It serves the endpoints the archiver
+ * uses, with messages generated on demand from Fixtures, so any number of
+ * groups of any size cost no memory up front:
+ *
+ *   GET /v3/groups                     every group
+ *   GET /v3/groups/{id}                one group, with its message count
+ *   GET /v3/groups/{id}/messages       pages of messages, newest first, with
+ *                                      before_id and since_id as in the API,
+ *                                      and an empty 304 past the oldest
+ *   GET /media/{name}                  a blob of the configured size, or
+ *                                      the rest of it from a Range offset
+ *   HEAD /media/{name}                 the size of the blob
+ *
+ * Responses can be delayed, limited to a bandwidth, and randomly answered
+ * with 429 Too Many Requests and a Retry-After, and media responses can be
+ * cut off halfway.
+ *
+ * Run it on its own and point the archiver at it with
+ * -Dgroupme.api.url=http://localhost:{port}/v3
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+
+
+public class FakeGroupMeServer {
+
+    // Id of the first group and time of the oldest message in each group
+    private static final long FIRST_GROUP_ID = 1000;
+    private static final long FIRST_CREATED_AT = 1500000000L;
+
+    private static final int MAX_PAGE_SIZE = 100;
+
+    /**
+     * Size and behaviour of the stand-in
+     */
+    public static class Options {
+        public int groups = 4;
+        public int messagesPerGroup = 5000;
+        public double mediaFraction = Fixtures.MEDIA_FRACTION;
+        public int mediaBytes = 200 * 1024;
+        // Size of each video, or 0 for the same as the images
+        public int videoBytes = 0;
+        // Added before every response
+        public long latencyMillis = 0;
+        // Per response, or 0 for unlimited
+        public long bytesPerSecond = 0;
+        // Chance of answering any request with a 429
+        public double throttleRate = 0;
+        public int retryAfterSeconds = 1;
+        // Chance of closing a media response halfway through its body
+        public double dropMediaRate = 0;
+    }
+
+    private final Options options;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool((runnable) -> {
+        Thread thread = new Thread(runnable, "fake-groupme");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+
+    /**
+     * @param port port to listen on, or 0 for any free port
+     * @param options size and behaviour of the server
+     * @throws IOException if the port cannot be bound
+     */
+    public FakeGroupMeServer(int port, Options options) throws IOException {
+        this.options = options;
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 128);
+        server.setExecutor(executor);
+        server.createContext("/v3/groups", (exchange) -> handle(exchange, this::api));
+        server.createContext("/media/", (exchange) -> handle(exchange, this::media));
+    }
+
+
+    public void start() {
+        server.start();
+    }
+
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+
+    /**
+     * @return the base URL of the API, for HttpTransport
+     */
+    public String getApiUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/v3";
+    }
+
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+
+    public long getThrottled() {
+        return throttled.sum();
+    }
+
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+
+    /**
+     * @return the total number of messages in every group
+     */
+    public long getTotalMessages() {
+        return (long) options.groups * options.messagesPerGroup;
+    }
+
+
+    private interface Handler {
+        void handle(HttpExchange exchange) throws IOException;
+    }
+
+
+    private void handle(HttpExchange exchange, Handler handler) throws IOException {
+        try {
+            requests.increment();
+            if (options.latencyMillis > 0)
+                Thread.sleep(options.latencyMillis);
+            if (options.throttleRate > 0 && ThreadLocalRandom.current().nextDouble() < options.throttleRate) {
+                throttled.increment();
+                exchange.getResponseHeaders().add("Retry-After", Integer.toString(options.retryAfterSeconds));
+                exchange.sendResponseHeaders(429, -1);
+                return;
+            }
+            handler.handle(exchange);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException ex) {
+            // Usually the client hanging up; the response cannot be fixed now
+            ex.printStackTrace();
+        } finally {
+            exchange.close();
+        }
+    }
+
+
+    private void api(HttpExchange exchange) throws IOException {
+        URI uri = exchange.getRequestURI();
+        String[] path = uri.getPath().split("/");
+        Map<String, String> query = parseQuery(uri.getRawQuery());
+
+        // "", "v3", "groups", id, "messages"
+        if (path.length == 3) {
+            ArrayNode groups = mapper.createArrayNode();
+            for (int i = 0; i < options.groups; i++) {
+                groups.add(group(FIRST_GROUP_ID + i));
+            }
+            sendJson(exchange, groups);
+            return;
+        }
+
+        long groupID;
+        try {
+            groupID = Long.parseLong(path[3]);
+        } catch (NumberFormatException ex) {
+            groupID = -1;
+        }
+        if (groupID < FIRST_GROUP_ID || groupID >= FIRST_GROUP_ID + options.groups) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+
+        if (path.length == 4) {
+            sendJson(exchange, group(groupID));
+        } else if (path.length == 5 && path[4].equals("messages")) {
+            messages(exchange, groupID, query);
+        } else {
+            exchange.sendResponseHeaders(404, -1);
+        }
+    }
+
+
+    private ObjectNode group(long groupID) {
+        ObjectNode group = mapper.createObjectNode();
+        group.put("id", Long.toString(groupID));
+        group.put("group_id", Long.toString(groupID));
+        group.put("name", "Load Test Group " + groupID);
+        group.put("type", "private");
+        group.put("created_at", FIRST_CREATED_AT);
+        ObjectNode messages = group.putObject("messages");
+        messages.put("count", options.messagesPerGroup);
+        messages.put("last_message_id", Long.toString(messageId(options.messagesPerGroup - 1)));
+        messages.put("last_message_created_at", createdAt(options.messagesPerGroup - 1));
+        return group;
+    }
+
+
+    /**
+     * Serve a page of messages. Message n of a group (from 0, oldest first)
+     * is sent a minute after message n - 1, has an id starting with that time
+     * like real GroupMe ids, and is the same on every request.
+     */
+    private void messages(HttpExchange exchange, long groupID, Map<String, String> query) throws IOException {
+        int limit = Math.min(MAX_PAGE_SIZE, Integer.parseInt(query.getOrDefault("limit", "20")));
+        long newest = options.messagesPerGroup - 1;
+        long oldest = 0;
+        if (query.containsKey("before_id")) {
+            newest = Math.min(newest, countBefore(Long.parseLong(query.get("before_id"))) - 1);
+        }
+        if (query.containsKey("since_id")) {
+            // The newest messages after since_id, like the API
+            oldest = Math.max(oldest, countBefore(Long.parseLong(query.get("since_id")) + 1));
+        }
+        long first = Math.max(oldest, newest - limit + 1);
+        if (newest < first) {
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+
+        String mediaBaseUrl = "http://localhost:" + server.getAddress().getPort() + "/media";
+        ObjectNode response = mapper.createObjectNode();
+        response.put("count", options.messagesPerGroup);
+        ArrayNode messages = response.putArray("messages");
+        for (long n = newest; n >= first; n--) {
+            Random random = new Random(groupID * 1000003 + n);
+            ObjectNode message = Fixtures.message(random, Long.toString(messageId(n)),
+                    createdAt(n), mediaBaseUrl, options.mediaFraction);
+            message.put("group_id", Long.toString(groupID));
+            messages.add(message);
+        }
+        sendJson(exchange, response);
+    }
+
+
+    private static long createdAt(long n) {
+        return FIRST_CREATED_AT + n * 60;
+    }
+
+
+    private static long messageId(long n) {
+        return createdAt(n) * 100000000L + n % 100000000L;
+    }
+
+
+    /**
+     * @param id any message id, which need not exist
+     * @return number of messages in a group with an id below it
+     */
+    private long countBefore(long id) {
+        long low = 0;
+        long high = options.messagesPerGroup;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (messageId(mid) < id) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+
+    private void media(HttpExchange exchange) throws IOException {
+        // Same bytes for the same name, so re-downloads can be checked
+        String path = exchange.getRequestURI().getPath();
+        boolean video = path.contains(".mp4.") && options.videoBytes > 0;
+        byte[] blob = new byte[video ? options.videoBytes : options.mediaBytes];
+        new Random(path.hashCode()).nextBytes(blob);
+        exchange.getResponseHeaders().add("Content-Type", "application/octet-stream");
+        exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            exchange.getResponseHeaders().add("Content-Length", Integer.toString(blob.length));
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+
+        // Only the "bytes=N-" form the archiver sends
+        int offset = 0;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range != null && range.startsWith("bytes=") && range.endsWith("-")) {
+            offset = Integer.parseInt(range.substring(6, range.length() - 1));
+            if (offset >= blob.length) {
+                exchange.getResponseHeaders().add("Content-Range", "bytes */" + blob.length);
+                exchange.sendResponseHeaders(416, -1);
+                return;
+            }
+            exchange.getResponseHeaders().add("Content-Range",
+                    "bytes " + offset + "-" + (blob.length - 1) + "/" + blob.length);
+            exchange.sendResponseHeaders(206, blob.length - offset);
+        } else {
+            exchange.sendResponseHeaders(200, blob.length);
+        }
+
+        byte[] body = Arrays.copyOfRange(blob, offset, blob.length);
+        if (options.dropMediaRate > 0 && ThreadLocalRandom.current().nextDouble() < options.dropMediaRate) {
+            // Hang up halfway through, as a flaky connection would
+            dropped.increment();
+            send(exchange.getResponseBody(), Arrays.copyOf(body, body.length / 2));
+            return;
+        }
+        send(exchange.getResponseBody(), body);
+    }
+
+
+    private void sendJson(HttpExchange exchange, JsonNode response) throws IOException {
+        ObjectNode body = mapper.createObjectNode();
+        body.set("response", response);
+        body.putObject("meta").put("code", 200);
+        byte[] bytes = mapper.writeValueAsBytes(body);
+
+        exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            // Compressed up front so the response has a length; chunked
+            // responses run into delayed ACKs on loopback
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4);
+            try (OutputStream out = new GZIPOutputStream(compressed)) {
+                out.write(bytes);
+            }
+            bytes = compressed.toByteArray();
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(200, bytes.length);
+        send(exchange.getResponseBody(), bytes);
+    }
+
+
+    /**
+     * Write a body, at no more than the configured bandwidth
+     */
+    private void send(OutputStream out, byte[] bytes) throws IOException {
+        int chunk = 16 * 1024;
+        long start = System.nanoTime();
+        for (int offset = 0; offset < bytes.length; offset += chunk) {
+            int length = Math.min(chunk, bytes.length - offset);
+            out.write(bytes, offset, length);
+            bytesSent.add(length);
+            if (options.bytesPerSecond > 0) {
+                long due = start + (offset + length) * 1000000000L / options.bytesPerSecond;
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted", ex);
+                    }
+                }
+            }
+        }
+        out.flush();
+    }
+
+
+    private static Map<String, String> parseQuery(String query) throws IOException {
+        Map<String, String> result = new HashMap<>();
+        if (query == null)
+            return result;
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0)
+                result.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"), URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+        }
+        return result;
+    }
+
+
+    /**
+     * Run the server until killed
+     *
+     * @param args port, then optionally groups and messages per group
+     * @throws IOException if the port cannot be bound
+     */
+    public static void main(String[] args) throws IOException {
+        Options options = new Options();
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : 8080;
+        if (args.length > 1)
+            options.groups = Integer.parseInt(args[1]);
+        if (args.length > 2)
+            options.messagesPerGroup = Integer.parseInt(args[2]);
+        FakeGroupMeServer server = new FakeGroupMeServer(port, options);
+        server.start();
+        System.out.println("Serving " + options.groups + " groups of " + options.messagesPerGroup
+                + " messages at " + server.getApiUrl());
+    }
+
+}
@@ -0,0 +1,151 @@
+/**
+ * Synthetic GroupMe data for the benchmarks. Messages have the same fields,
+ * id format and attachment mix as real API responses, and are generated from
+ * a fixed seed so every run measures the same input.
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+import java.util.Random;
+
+
+
+public class Fixtures {
+
+    // Fraction of GroupMe messages with an image, roughly as seen in real groups
+    public static final double MEDIA_FRACTION = 0.15;
+
+    public static final String MEDIA_BASE_URL = "https://i.groupme.com";
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private static final String[] WORDS = {"the", "meeting", "is", "at", "noon", "see", "you", "there",
+        "lol", "thanks", "who", "has", "notes", "from", "today", "pizza", "tonight", "anyone", "\u00e9t\u00e9", "\ud83d\ude02"};
+
+    private Fixtures() {
+    }
+
+
+    /**
+     * @param count number of messages
+     * @param newestId id of the first (newest) message; ids count down from it
+     * @param seed random seed
+     * @return messages in the order the API returns them, newest first
+     */
+    public static ArrayNode messages(int count, long newestId, long seed) {
+        Random random = new Random(seed);
+        ArrayNode messages = mapper.createArrayNode();
+        long createdAt = 1560000000L + count * 60L;
+        for (int i = 0; i < count; i++) {
+            messages.add(message(random, Long.toString(newestId - i), createdAt - i * 60L, MEDIA_BASE_URL, MEDIA_FRACTION));
+        }
+        return messages;
+    }
+
+
+    /**
+     * @param count number of messages in the page
+     * @param seed random seed
+     * @return the raw body of a GET /groups/{id}/messages response
+     * @throws IOException never, in practice
+     */
+    public static byte[] page(int count, long seed) throws IOException {
+        ObjectNode body = mapper.createObjectNode();
+        ObjectNode response = body.putObject("response");
+        response.put("count", 25000);
+        response.set("messages", messages(count, 156000000000000000L, seed));
+        body.putObject("meta").put("code", 200);
+        return mapper.writeValueAsBytes(body);
+    }
+
+
+    /**
+     * @param count number of messages
+     * @param seed random seed
+     * @return a group node as returned by GET /groups/{id}, with its messages
+     *         in messages.message_list as the old export kept them
+     */
+    public static ObjectNode group(int count, long seed) {
+        ObjectNode group = mapper.createObjectNode();
+        group.put("id", "12345678");
+        group.put("group_id", "12345678");
+        group.put("name", "Benchmark Group");
+        group.put("type", "private");
+        group.put("description", "Synthetic group for benchmarks");
+        group.put("created_at", 1560000000L);
+        group.put("updated_at", 1570000000L);
+        ObjectNode messages = group.putObject("messages");
+        messages.put("count", count);
+        messages.put("last_message_id", Long.toString(156000000000000000L));
+        messages.set("message_list", messages(count, 156000000000000000L, seed));
+        return group;
+    }
+
+
+    /**
+     * @param random source of the message's contents
+     * @param id message id
+     * @param createdAt message time, in seconds since the epoch
+     * @param mediaBaseUrl URL that media URLs start with
+     * @param mediaFraction chance of the message having an image or video
+     * @return a message as the API returns it
+     */
+    public static ObjectNode message(Random random, String id, long createdAt, String mediaBaseUrl, double mediaFraction) {
+        ObjectNode message = mapper.createObjectNode();
+        String userId = Integer.toString(10000000 + random.nextInt(50));
+        ArrayNode attachments = message.putArray("attachments");
+        if (random.nextDouble() < mediaFraction) {
+            ObjectNode image = attachments.addObject();
+            String[] kinds = {"jpeg", "png", "gif"};
+            boolean video = random.nextInt(10) == 0;
+            image.put("type", video ? "video" : "image");
+            int width = 640 + random.nextInt(1000);
+            int height = 480 + random.nextInt(1000);
+            String kind = kinds[random.nextInt(kinds.length)];
+            image.put("url", mediaBaseUrl + "/" + width + "x" + height + "." + (video ? "mp4" : kind) + "." + hex(random, 32));
+        }
+        if (random.nextInt(20) == 0) {
+            ObjectNode mentions = attachments.addObject();
+            mentions.put("type", "mentions");
+            mentions.putArray("user_ids").add(userId);
+            mentions.putArray("loci").addArray().add(0).add(5);
+        }
+        message.put("avatar_url", "https://i.groupme.com/200x200.jpeg." + hex(random, 32));
+        message.put("created_at", createdAt);
+        ArrayNode favoritedBy = message.putArray("favorited_by");
+        for (int i = random.nextInt(4); i > 0; i--) {
+            favoritedBy.add(Integer.toString(10000000 + random.nextInt(50)));
+        }
+        message.put("group_id", "12345678");
+        message.put("id", id);
+        message.put("name", "User " + userId.substring(6));
+        message.put("sender_id", userId);
+        message.put("sender_type", "user");
+        message.put("source_guid", hex(random, 32));
+        message.put("system", false);
+        StringBuilder text = new StringBuilder();
+        for (int i = 1 + random.nextInt(25); i > 0; i--) {
+            text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        message.put("text", text.toString().trim());
+        message.put("user_id", userId);
+        message.put("platform", "gm");
+        return message;
+    }
+
+
+    private static String hex(Random random, int digits) {
+        StringBuilder hex = new StringBuilder(digits);
+        for (int i = 0; i < digits; i++) {
+            hex.append(Character.forDigit(random.nextInt(16), 16));
+        }
+        return hex.toString();
+    }
+
+}
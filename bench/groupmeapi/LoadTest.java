@@ -0,0 +1,256 @@
+/**
+ * End-to-end load test: archive every group of a FakeGroupMeServer with the
+ * same BatchArchiver the GUI and command line use, and report the throughput
+ * and memory use of the run.
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+
+public class LoadTest {
+
+    private static final String USAGE = String.join("\n",
+            "Usage: java groupmeapi.LoadTest [options]",
+            "",
+            "Server:",
+            "  --groups N             groups served (default: 4)",
+            "  --messages N           messages per group (default: 5000)",
+            "  --media-fraction F     chance of a message having media (default: 0.15)",
+            "  --media-bytes N        size of each media file (default: 204800)",
+            "  --video-bytes N        size of each video, 0 for --media-bytes (default: 0)",
+            "  --latency MS           delay before every response (default: 0)",
+            "  --bandwidth BYTES      bytes per second per response, 0 for unlimited (default: 0)",
+            "  --throttle F           chance of answering a request with 429 (default: 0)",
+            "  --drop-media F         chance of cutting a media response off halfway (default: 0)",
+            "",
+            "Archiver:",
+            "  --parallel-groups N    groups archived at the same time (default: 4)",
+            "  --max-requests N       API requests in flight (default: 4)",
+            "  --max-downloads N      media downloads in flight (default: 8)",
+            "  --no-media             only archive messages",
+            "  --format FORMATS       comma-separated, as for the command line (default: json)",
+            "  --output DIR           keep the archive in DIR instead of a deleted temporary folder");
+
+    /**
+     * @param args see USAGE
+     * @throws Exception if the test cannot be set up
+     */
+    public static void main(String[] args) throws Exception {
+        FakeGroupMeServer.Options options = new FakeGroupMeServer.Options();
+        int parallelGroups = 4;
+        int maxRequests = 4;
+        int maxDownloads = 8;
+        boolean downloadMedia = true;
+        List<String> formats = Arrays.asList(GroupArchiver.FORMAT_JSON);
+        String output = null;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--groups":
+                    options.groups = Integer.parseInt(args[++i]);
+                    break;
+                case "--messages":
+                    options.messagesPerGroup = Integer.parseInt(args[++i]);
+                    break;
+                case "--media-fraction":
+                    options.mediaFraction = Double.parseDouble(args[++i]);
+                    break;
+                case "--media-bytes":
+                    options.mediaBytes = Integer.parseInt(args[++i]);
+                    break;
+                case "--video-bytes":
+                    options.videoBytes = Integer.parseInt(args[++i]);
+                    break;
+                case "--latency":
+                    options.latencyMillis = Long.parseLong(args[++i]);
+                    break;
+                case "--bandwidth":
+                    options.bytesPerSecond = Long.parseLong(args[++i]);
+                    break;
+                case "--throttle":
+                    options.throttleRate = Double.parseDouble(args[++i]);
+                    break;
+                case "--drop-media":
+                    options.dropMediaRate = Double.parseDouble(args[++i]);
+                    break;
+                case "--parallel-groups":
+                    parallelGroups = Integer.parseInt(args[++i]);
+                    break;
+                case "--max-requests":
+                    maxRequests = Integer.parseInt(args[++i]);
+                    break;
+                case "--max-downloads":
+                    maxDownloads = Integer.parseInt(args[++i]);
+                    break;
+                case "--no-media":
+                    downloadMedia = false;
+                    break;
+                case "--format":
+                    formats = Arrays.asList(args[++i].split(","));
+                    break;
+                case "--output":
+                    output = args[++i];
+                    break;
+                default:
+                    System.err.println(USAGE);
+                    System.exit(2);
+            }
+        }
+
+        FakeGroupMeServer server = new FakeGroupMeServer(0, options);
+        server.start();
+        HttpTransport.setShared(new HttpTransport(server.getApiUrl()));
+
+        File folder = (output != null) ? new File(output) : Files.createTempDirectory("groupme-loadtest").toFile();
+        folder.mkdirs();
+
+        ProgressListener quiet = new ProgressListener() {
+            @Override
+            public void status(String message) {
+            }
+
+            @Override
+            public void progress(double fraction) {
+            }
+
+            @Override
+            public void error(String message) {
+                System.err.println("error: " + message);
+            }
+        };
+        LinkedHashMap<String, String> groups = GroupMeAPI.getGroups("load-test", quiet);
+        List<String> groupIDs = new ArrayList<>(groups.values());
+
+        System.out.println("Archiving " + groupIDs.size() + " groups of " + options.messagesPerGroup
+                + " messages from " + server.getApiUrl() + " into " + folder);
+        resetPeakHeap();
+
+        GroupArchiver archiver = new GroupArchiver(folder.getAbsolutePath(), true, formats, DateRange.ALL, false, downloadMedia, maxDownloads);
+        BatchArchiver batch = new BatchArchiver(archiver, parallelGroups, maxRequests, maxDownloads);
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicInteger failures = new AtomicInteger();
+        long start = System.nanoTime();
+        batch.start(groupIDs, "load-test", new BatchArchiver.Listener() {
+            @Override
+            public void groupStatus(String groupID, String message) {
+            }
+
+            @Override
+            public void groupProgress(String groupID, double fraction) {
+            }
+
+            @Override
+            public void groupError(String groupID, String message) {
+                System.err.println(groupID + ": " + message);
+            }
+
+            @Override
+            public void groupDone(String groupID, String groupName) {
+            }
+
+            @Override
+            public void allDone(int archived, int failed) {
+                failures.set(failed);
+                done.countDown();
+            }
+        });
+        done.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        Metrics metrics = HttpTransport.shared().getMetrics();
+        long mediaBytes = 0;
+        long pageBytes = 0;
+        double pageMillis = 0;
+        double parseMillis = 0;
+        for (Map.Entry<String, Metrics.Endpoint> entry : metrics.getEndpoints().entrySet()) {
+            String name = entry.getKey();
+            Metrics.Endpoint endpoint = entry.getValue();
+            if (name.startsWith("GET media")) {
+                mediaBytes += endpoint.bytes.sum();
+            } else if (name.endsWith("/messages")) {
+                pageBytes += endpoint.bytes.sum();
+                pageMillis = endpoint.latency.quantileMillis(0.5);
+                parseMillis = endpoint.parse.quantileMillis(0.5);
+            }
+        }
+
+        System.out.println();
+        System.out.printf("Groups:          %d archived, %d failed%n", groupIDs.size() - failures.get(), failures.get());
+        System.out.printf("Elapsed:         %.2f s%n", seconds);
+        System.out.printf("Messages:        %d (%.0f messages/s, %.1f MB of JSON)%n", server.getTotalMessages(),
+                server.getTotalMessages() / seconds, pageBytes / 1048576.0);
+        System.out.printf("Media:           %.1f MB (%.1f MB/s)%n", mediaBytes / 1048576.0, mediaBytes / 1048576.0 / seconds);
+        System.out.printf("Page latency:    %.1f ms median, %.1f ms median parse%n", pageMillis, parseMillis);
+        System.out.printf("Requests:        %d served, %d throttled, %d media dropped%n", server.getRequests(),
+                server.getThrottled(), server.getDropped());
+        System.out.printf("Peak heap:       %.1f MB%n", peakHeap() / 1048576.0);
+        System.out.println("Full report:     " + new File(folder, "run-report.json"));
+
+        server.stop();
+        if (output == null)
+            delete(folder.toPath());
+        System.exit(failures.get() == 0 ? 0 : 1);
+    }
+
+
+    private static void resetPeakHeap() {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                pool.resetPeakUsage();
+        }
+    }
+
+
+    /**
+     * @return the sum of the peak usage of each heap pool since the reset,
+     *         an upper bound on the peak heap in use
+     */
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+
+
+    private static void delete(Path folder) throws IOException {
+        Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException ex) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+}
@@ -0,0 +1,82 @@
+/**
+ * Cost of finding the media in a group's messages and working out the file
+ * name each attachment is saved under.
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MediaBenchmark {
+
+    @Param({"1000", "20000"})
+    public int messageCount;
+
+    private ArrayNode messages;
+    private List<Message> media;
+
+    @Setup
+    public void setUp() {
+        ObjectNode group = Fixtures.group(messageCount, 2);
+        messages = (ArrayNode) group.path("messages").path("message_list");
+        media = findMedia();
+    }
+
+
+    @Benchmark
+    public List<Message> findMedia() {
+        List<Message> found = new ArrayList<>();
+        GroupMeAPI.collectMedia(messages, found);
+        return found;
+    }
+
+
+    @Benchmark
+    public void mediaFileNames(Blackhole blackhole) {
+        for (Message message : media) {
+            for (Message.Attachment attachment : message.getAttachments()) {
+                if (attachment.isMedia())
+                    blackhole.consume(GroupMeAPI.mediaFileName(message, attachment));
+            }
+        }
+    }
+
+
+    @Benchmark
+    public void storeKeys(Blackhole blackhole) {
+        for (JsonNode message : messages) {
+            for (JsonNode attachment : message.path("attachments")) {
+                if (GroupMeAPI.isMedia(attachment))
+                    blackhole.consume(MediaStore.keyFor(attachment.path("url").asText()));
+            }
+        }
+    }
+
+}
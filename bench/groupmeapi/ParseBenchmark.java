@@ -0,0 +1,72 @@
+/**
+ * Cost of turning a page of messages from the API into a tree, which every
+ * page of every group goes through, compared with reading it into compact
+ * Message objects with the streaming parser.
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+
+    // GroupMe returns at most 100 messages per page
+    @Param({"20", "100"})
+    public int pageSize;
+
+    private ObjectMapper mapper;
+    private byte[] page;
+
+    @Setup
+    public void setUp() throws IOException {
+        mapper = GroupMeAPI.objectMapper();
+        page = Fixtures.page(pageSize, 1);
+    }
+
+
+    @Benchmark
+    public JsonNode readTree() throws IOException {
+        return mapper.readTree(page);
+    }
+
+
+    @Benchmark
+    public void readTreeAndFindMedia(Blackhole blackhole) throws IOException {
+        for (JsonNode message : mapper.readTree(page).path("response").path("messages")) {
+            blackhole.consume(GroupMeAPI.hasMedia(message));
+        }
+    }
+
+
+    @Benchmark
+    public List<Message> readMessages() throws IOException {
+        return Message.readPage(page);
+    }
+
+}
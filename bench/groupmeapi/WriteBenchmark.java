@@ -0,0 +1,218 @@
+/**
+ * Cost of exporting messages: the whole-tree pretty-printed export done by
+ * writeObjectNode, against the page-by-page JsonArchiveWriter (plain and
+ * gzip-compressed), BinaryArchiveWriter and MessageStoreWriter used by
+ * archiveMessages, and of reading the archive formats back or looking up a
+ * message in them.
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriteBenchmark {
+
+    @Param({"1000", "20000"})
+    public int messageCount;
+
+    private ObjectNode group;
+    private ArrayNode[] pages;
+    private ObjectWriter prettyWriter;
+    private File folder;
+    private File jsonArchive;
+    private File binaryArchive;
+    private File messageStore;
+    private String middleId;
+
+    private static final ProgressListener IGNORE = new ProgressListener() {
+        @Override
+        public void status(String message) {
+        }
+
+        @Override
+        public void progress(double fraction) {
+        }
+
+        @Override
+        public void error(String message) {
+            throw new IllegalStateException(message);
+        }
+    };
+
+    @Setup
+    public void setUp() throws IOException {
+        group = Fixtures.group(messageCount, 3);
+        prettyWriter = GroupMeAPI.objectMapper().writer(new DefaultPrettyPrinter());
+        folder = Files.createTempDirectory("groupme-bench").toFile();
+
+        // The same messages, split into pages as the API returns them
+        ArrayNode messages = (ArrayNode) group.path("messages").path("message_list");
+        pages = new ArrayNode[(messages.size() + 99) / 100];
+        for (int i = 0; i < pages.length; i++) {
+            pages[i] = GroupMeAPI.objectMapper().createArrayNode();
+            for (int j = i * 100; j < Math.min(messages.size(), (i + 1) * 100); j++) {
+                pages[i].add(messages.get(j));
+            }
+        }
+
+        jsonArchive = new File(folder, "reload.json");
+        binaryArchive = new File(folder, "reload" + GroupMeAPI.BINARY_ARCHIVE_EXTENSION);
+        write(new JsonArchiveWriter(jsonArchive));
+        write(new BinaryArchiveWriter(binaryArchive));
+        messageStore = new File(folder, "reload" + GroupMeAPI.MESSAGE_STORE_EXTENSION);
+        write(new MessageStoreWriter(messageStore));
+        middleId = messages.get(messages.size() / 2).path("id").asText();
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        delete(folder);
+    }
+
+
+    @Benchmark
+    public byte[] prettyPrintToBytes() throws IOException {
+        return prettyWriter.writeValueAsBytes(group);
+    }
+
+
+    @Benchmark
+    public long writeObjectNode() {
+        File outfile = new File(folder, "whole.json");
+        GroupMeAPI.writeObjectNode(group, outfile, IGNORE);
+        return outfile.length();
+    }
+
+
+    @Benchmark
+    public long archiveWriter() throws IOException {
+        File outfile = new File(folder, "paged.json");
+        write(new JsonArchiveWriter(outfile));
+        return outfile.length();
+    }
+
+
+    @Benchmark
+    public long compressedArchiveWriter() throws IOException {
+        File outfile = new File(folder, "paged.json.gz");
+        write(new JsonArchiveWriter(outfile));
+        return outfile.length();
+    }
+
+
+    @Benchmark
+    public long binaryArchiveWriter() throws IOException {
+        File outfile = new File(folder, "paged" + GroupMeAPI.BINARY_ARCHIVE_EXTENSION);
+        write(new BinaryArchiveWriter(outfile));
+        return outfile.length();
+    }
+
+
+    @Benchmark
+    public long messageStoreWriter() throws IOException {
+        File outfile = new File(folder, "paged" + GroupMeAPI.MESSAGE_STORE_EXTENSION);
+        write(new MessageStoreWriter(outfile));
+        return new File(outfile, MessageStore.INDEX_FILE).length();
+    }
+
+
+    @Benchmark
+    public int reloadJsonArchive() throws IOException {
+        return JsonArchiveReader.forEachPage(jsonArchive, 100, false, (page) -> {
+        });
+    }
+
+
+    @Benchmark
+    public int reloadBinaryArchive() throws IOException {
+        try (BinaryArchiveReader reader = BinaryArchiveReader.open(binaryArchive)) {
+            return reader.forEachPage((page) -> {
+            });
+        }
+    }
+
+
+    @Benchmark
+    public int reloadMessageStore() throws IOException {
+        int[] count = {0};
+        try (MessageStore store = MessageStore.open(messageStore)) {
+            store.forEachPage((page) -> count[0] += page.size());
+        }
+        return count[0];
+    }
+
+
+    @Benchmark
+    public ObjectNode findInBinaryArchive() throws IOException {
+        ObjectNode[] found = {null};
+        try (BinaryArchiveReader reader = BinaryArchiveReader.open(binaryArchive)) {
+            reader.forEachPage((page) -> {
+                for (JsonNode message : page) {
+                    if (message.path("id").asText().equals(middleId))
+                        found[0] = (ObjectNode) message;
+                }
+            });
+        }
+        return found[0];
+    }
+
+
+    @Benchmark
+    public ObjectNode findInMessageStore() throws IOException {
+        try (MessageStore store = MessageStore.open(messageStore)) {
+            return store.get(middleId);
+        }
+    }
+
+
+    private void write(ArchiveWriter writer) throws IOException {
+        writer.begin(group);
+        for (ArrayNode page : pages) {
+            writer.page(page);
+        }
+        writer.end();
+    }
+
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
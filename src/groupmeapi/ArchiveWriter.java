@@ -0,0 +1,78 @@
+/**
+ * A MessageSink that keeps a group's messages in an archive file, which can be
+ * resumed after an interruption or updated with only the newest messages.
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import java.io.IOException;
+
+
+
+public interface ArchiveWriter extends MessageSink {
+
+    /**
+     * Pick up an interrupted archive from its checkpoint
+     *
+     * @return true if there was a usable checkpoint, in which case begin must
+     *         not be called
+     * @throws IOException if the partial archive cannot be reopened
+     */
+    boolean resume() throws IOException;
+
+
+    /**
+     * Only write messages newer than those in the existing archive file (if
+     * any), and keep its messages after them in end()
+     *
+     * @throws IOException if the existing archive cannot be read
+     */
+    void mergeWithExisting() throws IOException;
+
+
+    /**
+     * Read back the pages written so far, e.g. after a resume
+     *
+     * @param handler receives each page in file order
+     * @throws IOException if the partial archive cannot be read
+     */
+    void forEachWrittenPage(JsonArchiveReader.PageHandler handler) throws IOException;
+
+
+    /**
+     * Have end() also hand each page of the existing archive it keeps (when
+     * merging) to a handler, after the new pages, so other formats written in
+     * the same pass end up with every message
+     *
+     * @param handler receives the existing archive's pages in file order
+     */
+    void setMergedPageHandler(JsonArchiveReader.PageHandler handler);
+
+
+    /**
+     * @return id to continue paging before after a resume, or null
+     */
+    String getResumeBeforeId();
+
+
+    /**
+     * @return id of the newest message already archived, or null if this is
+     *         not an update of an existing archive
+     */
+    String getUntilId();
+
+
+    /**
+     * @return number of messages in the archive being updated
+     */
+    int getUntilCount();
+
+
+    /**
+     * @return number of messages written so far, including before a resume
+     */
+    int getWritten();
+
+}
@@ -0,0 +1,183 @@
+/**
+ * Archive many groups at once. A fixed number of groups are worked on in
+ * parallel, and the shared HttpTransport bounds the API requests, and the
+ * media downloads from each host, in flight across all of them, so adding
+ * groups adds throughput without multiplying the load on GroupMe.
+ *
+ * Each run records its requests in a fresh set of Metrics, written to
+ * run-report.json and run-metrics.prom in the save folder when it ends.
+ *
+ * The limits and metrics belong to the shared HttpTransport, and the media
+ * store is closed when a run ends, so only one batch can run at a time in
+ * the process: start refuses to begin another until the first is done.
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+
+public class BatchArchiver {
+
+    /**
+     * Receives progress for each group in the batch. Methods are called from
+     * the archiving threads.
+     */
+    public interface Listener {
+        void groupStatus(String groupID, String message);
+        void groupProgress(String groupID, double fraction);
+        void groupError(String groupID, String message);
+        default void groupMessages(String groupID, int count) {
+        }
+        void groupDone(String groupID, String groupName);
+        void allDone(int archived, int failed);
+    }
+
+    // Set while a batch is running anywhere in the process
+    private static final AtomicBoolean running = new AtomicBoolean();
+
+    private final GroupArchiver archiver;
+    private final int parallelGroups;
+    private final int maxApiRequests;
+    private final int maxMediaDownloads;
+
+    /**
+     * @param archiver archiver with the options to use for every group
+     * @param parallelGroups number of groups to archive at the same time
+     * @param maxApiRequests API requests in flight across all groups
+     * @param maxMediaDownloads media downloads in flight from each media host,
+     *                          across all groups (the limit of each group's
+     *                          own downloads is set on the GroupArchiver)
+     */
+    public BatchArchiver(GroupArchiver archiver, int parallelGroups, int maxApiRequests, int maxMediaDownloads) {
+        this.archiver = archiver;
+        this.parallelGroups = parallelGroups;
+        this.maxApiRequests = maxApiRequests;
+        this.maxMediaDownloads = maxMediaDownloads;
+    }
+
+
+    /**
+     * @return true if a batch is running, in which case start would refuse to
+     *         begin another
+     */
+    public static boolean isRunning() {
+        return running.get();
+    }
+
+
+    /**
+     * Start archiving the groups on background threads and return immediately.
+     * The batch counts as running until just before listener.allDone is called.
+     *
+     * @param groupIDs IDs of the groups to archive, in the order to start them
+     * @param API_KEY GroupMe API token
+     * @param listener receives per-group progress and is told when all are done
+     * @throws IllegalStateException if another batch is still running
+     */
+    public void start(List<String> groupIDs, String API_KEY, Listener listener) {
+        if (!running.compareAndSet(false, true))
+            throw new IllegalStateException("Another batch of groups is still being archived");
+        // A group given twice would be archived twice into the same folder at once
+        List<String> groups = new ArrayList<>(new LinkedHashSet<>(groupIDs));
+        HttpTransport.shared().setConcurrencyLimits(maxApiRequests, maxMediaDownloads);
+        Metrics metrics = new Metrics();
+        HttpTransport.shared().setMetrics(metrics);
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, parallelGroups), (runnable) -> {
+            Thread thread = new Thread(runnable, "group-archiver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger remaining = new AtomicInteger(groups.size());
+        AtomicInteger failed = new AtomicInteger();
+
+        if (groups.isEmpty()) {
+            running.set(false);
+            listener.allDone(0, 0);
+            pool.shutdown();
+            return;
+        }
+
+        for (String groupID : groups) {
+            pool.execute(() -> {
+                String name = null;
+                try {
+                    name = archiver.archive(groupID, API_KEY, new ProgressListener() {
+                        @Override
+                        public void status(String message) {
+                            listener.groupStatus(groupID, message);
+                        }
+
+                        @Override
+                        public void progress(double fraction) {
+                            listener.groupProgress(groupID, fraction);
+                        }
+
+                        @Override
+                        public void messages(int count) {
+                            listener.groupMessages(groupID, count);
+                        }
+
+                        @Override
+                        public void error(String message) {
+                            listener.groupError(groupID, message);
+                        }
+                    });
+                } catch (RuntimeException ex) {
+                    ex.printStackTrace();
+                }
+
+                if (name == null)
+                    failed.incrementAndGet();
+                listener.groupDone(groupID, name);
+                if (remaining.decrementAndGet() == 0) {
+                    writeReport(metrics);
+                    closeMediaStore();
+                    running.set(false);
+                    listener.allDone(groups.size() - failed.get(), failed.get());
+                    pool.shutdown();
+                }
+            });
+        }
+    }
+
+
+    /**
+     * Save the metrics of the run next to the group folders
+     */
+    private void writeReport(Metrics metrics) {
+        try {
+            metrics.writeReport(new File(archiver.getSaveFolder()));
+        } catch (IOException ex) {
+            Logger.getLogger(BatchArchiver.class.getName()).log(Level.WARNING, "Failed to write the run report", ex);
+        }
+    }
+
+
+    /**
+     * Close the media store once every group is done with it, so its index is
+     * not left open and the next batch reads it afresh
+     */
+    private void closeMediaStore() {
+        try {
+            MediaStore.close(archiver.getMediaStoreFolder());
+        } catch (IOException ex) {
+            Logger.getLogger(BatchArchiver.class.getName()).log(Level.WARNING, "Failed to close the media store", ex);
+        }
+    }
+
+}
@@ -0,0 +1,379 @@
+/**
+ * Layout and value encoding of the binary message archive written by
+ * BinaryArchiveWriter and read by BinaryArchiveReader.
+ *
+ *   header   "GMAR", version, index offset, message count, block count
+ *   group    one frame with the group information (no message list)
+ *   blocks   one frame per page of messages, newest first
+ *   index    for each block: offset, message count, newest and oldest id and
+ *            created_at, so a reader can find any message without decoding
+ *            the blocks before it
+ *
+ * A frame is its payload length, value count and CRC-32 followed by the
+ * payload. Each payload is a run of tagged values, with every short string
+ * (field names, user names, ids and URLs repeat a lot) written once and then
+ * referred to by number. The string table starts over in every frame, so any
+ * block can be decoded on its own and copied into another archive unchanged.
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+
+
+final class BinaryArchiveFormat {
+
+    static final int MAGIC = 0x474d4152;  // "GMAR"
+    static final int VERSION = 1;
+
+    // Magic, version, index offset, message count, block count
+    static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 4;
+    static final int INDEX_OFFSET_POSITION = 8;
+    static final int MESSAGE_COUNT_POSITION = 16;
+    static final int BLOCK_COUNT_POSITION = 20;
+
+    // Payload length, value count, CRC-32
+    static final int FRAME_HEADER_SIZE = 4 + 4 + 4;
+
+    // Longer strings are rarely repeated, so they are not worth remembering
+    private static final int MAX_TABLE_STRING = 64;
+    // Largest id that fits in a long
+    private static final String MAX_ID = Long.toString(Long.MAX_VALUE);
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_FALSE = 1;
+    private static final byte TAG_TRUE = 2;
+    private static final byte TAG_INT = 3;
+    private static final byte TAG_DOUBLE = 4;
+    private static final byte TAG_STRING = 5;
+    private static final byte TAG_STRING_REF = 6;
+    private static final byte TAG_ID = 7;
+    private static final byte TAG_ARRAY = 8;
+    private static final byte TAG_OBJECT = 9;
+    private static final byte TAG_BIG_NUMBER = 10;
+
+    private BinaryArchiveFormat() {
+    }
+
+
+    /**
+     * Builds the payload of one frame
+     */
+    static class Encoder {
+        private byte[] buffer = new byte[1 << 16];
+        private int length;
+        private int count;
+        private final Map<String, Integer> strings = new HashMap<>();
+
+        /**
+         * Start a new frame, forgetting the previous one and its strings
+         */
+        void reset() {
+            length = 0;
+            count = 0;
+            strings.clear();
+        }
+
+
+        void add(JsonNode value) {
+            write(value);
+            count++;
+        }
+
+
+        int getLength() {
+            return length;
+        }
+
+
+        int getCount() {
+            return count;
+        }
+
+
+        byte[] getBuffer() {
+            return buffer;
+        }
+
+
+        long checksum() {
+            CRC32 crc = new CRC32();
+            crc.update(buffer, 0, length);
+            return crc.getValue();
+        }
+
+
+        private void write(JsonNode value) {
+            switch (value.getNodeType()) {
+                case STRING:
+                    writeText(value.textValue());
+                    break;
+                case NUMBER:
+                    if (value.canConvertToLong() && value.isIntegralNumber()) {
+                        writeByte(TAG_INT);
+                        long number = value.longValue();
+                        writeVarLong((number << 1) ^ (number >> 63));
+                    } else if (value.isBigInteger() || value.isBigDecimal()) {
+                        writeByte(TAG_BIG_NUMBER);
+                        writeString(value.asText());
+                    } else {
+                        writeByte(TAG_DOUBLE);
+                        writeLong(Double.doubleToLongBits(value.doubleValue()));
+                    }
+                    break;
+                case BOOLEAN:
+                    writeByte(value.booleanValue() ? TAG_TRUE : TAG_FALSE);
+                    break;
+                case ARRAY:
+                    writeByte(TAG_ARRAY);
+                    writeVarLong(value.size());
+                    for (JsonNode element : value) {
+                        write(element);
+                    }
+                    break;
+                case OBJECT:
+                    writeByte(TAG_OBJECT);
+                    writeVarLong(value.size());
+                    Iterator<Map.Entry<String, JsonNode>> fields = value.fields();
+                    while (fields.hasNext()) {
+                        Map.Entry<String, JsonNode> field = fields.next();
+                        writeKey(field.getKey());
+                        write(field.getValue());
+                    }
+                    break;
+                default:
+                    // NULL, MISSING, and anything else JSON cannot hold
+                    writeByte(TAG_NULL);
+            }
+        }
+
+
+        /**
+         * GroupMe ids are decimal strings; those that fit in a long are
+         * stored as a number but still read back as the same string
+         */
+        private void writeText(String text) {
+            if (isId(text)) {
+                writeByte(TAG_ID);
+                writeVarLong(Long.parseLong(text));
+                return;
+            }
+            Integer index = (text.length() <= MAX_TABLE_STRING) ? strings.get(text) : null;
+            if (index != null) {
+                writeByte(TAG_STRING_REF);
+                writeVarLong(index);
+                return;
+            }
+            writeByte(TAG_STRING);
+            writeString(text);
+            if (text.length() <= MAX_TABLE_STRING)
+                strings.put(text, strings.size());
+        }
+
+
+        /**
+         * Field names are always strings, so they go without a tag: 0 and the
+         * name for a new one, otherwise its table index plus one
+         */
+        private void writeKey(String key) {
+            Integer index = strings.get(key);
+            if (index != null) {
+                writeVarLong(index + 1);
+                return;
+            }
+            writeVarLong(0);
+            writeString(key);
+            if (key.length() <= MAX_TABLE_STRING)
+                strings.put(key, strings.size());
+        }
+
+
+        private void writeString(String text) {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, length, bytes.length);
+            length += bytes.length;
+        }
+
+
+        private void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7fL) != 0) {
+                buffer[length++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buffer[length++] = (byte) value;
+        }
+
+
+        private void writeLong(long value) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[length++] = (byte) (value >>> shift);
+            }
+        }
+
+
+        private void writeByte(byte value) {
+            ensure(1);
+            buffer[length++] = value;
+        }
+
+
+        private void ensure(int extra) {
+            if (length + extra > buffer.length)
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+        }
+    }
+
+
+    /**
+     * Reads the values back out of one frame's payload
+     */
+    static class Decoder {
+        private final JsonNodeFactory nodes = GroupMeAPI.objectMapper().getNodeFactory();
+        private final byte[] buffer;
+        private int position;
+        private final List<String> strings = new ArrayList<>();
+
+        Decoder(byte[] payload) {
+            this.buffer = payload;
+        }
+
+
+        JsonNode read() throws IOException {
+            if (position >= buffer.length)
+                throw new IOException("Malformed archive: block ends in the middle of a value");
+            byte tag = buffer[position++];
+            switch (tag) {
+                case TAG_NULL:
+                    return nodes.nullNode();
+                case TAG_FALSE:
+                    return nodes.booleanNode(false);
+                case TAG_TRUE:
+                    return nodes.booleanNode(true);
+                case TAG_INT:
+                    long zigzag = readVarLong();
+                    long number = (zigzag >>> 1) ^ -(zigzag & 1);
+                    return (number == (int) number) ? nodes.numberNode((int) number) : nodes.numberNode(number);
+                case TAG_DOUBLE:
+                    return nodes.numberNode(Double.longBitsToDouble(readLong()));
+                case TAG_STRING:
+                    return nodes.textNode(readNewString());
+                case TAG_STRING_REF:
+                    return nodes.textNode(tableString(readVarLong()));
+                case TAG_ID:
+                    return nodes.textNode(Long.toString(readVarLong()));
+                case TAG_ARRAY:
+                    ArrayNode array = nodes.arrayNode();
+                    for (long i = readVarLong(); i > 0; i--) {
+                        array.add(read());
+                    }
+                    return array;
+                case TAG_OBJECT:
+                    ObjectNode object = nodes.objectNode();
+                    for (long i = readVarLong(); i > 0; i--) {
+                        long key = readVarLong();
+                        String name = (key == 0) ? readNewString() : tableString(key - 1);
+                        object.set(name, read());
+                    }
+                    return object;
+                case TAG_BIG_NUMBER:
+                    String text = readString();
+                    if (text.indexOf('.') >= 0 || text.indexOf('e') >= 0 || text.indexOf('E') >= 0)
+                        return nodes.numberNode(new BigDecimal(text));
+                    return nodes.numberNode(new BigInteger(text));
+                default:
+                    throw new IOException("Malformed archive: unknown value tag " + tag);
+            }
+        }
+
+
+        private String readNewString() throws IOException {
+            String text = readString();
+            if (text.length() <= MAX_TABLE_STRING)
+                strings.add(text);
+            return text;
+        }
+
+
+        private String tableString(long index) throws IOException {
+            if (index >= strings.size())
+                throw new IOException("Malformed archive: string " + index + " is not defined");
+            return strings.get((int) index);
+        }
+
+
+        private String readString() throws IOException {
+            long size = readVarLong();
+            if (size > buffer.length - position)
+                throw new IOException("Malformed archive: string runs past the end of its block");
+            String text = new String(buffer, position, (int) size, StandardCharsets.UTF_8);
+            position += (int) size;
+            return text;
+        }
+
+
+        private long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (position >= buffer.length)
+                    throw new IOException("Malformed archive: block ends in the middle of a number");
+                byte b = buffer[position++];
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IOException("Malformed archive: number is too long");
+        }
+
+
+        private long readLong() throws IOException {
+            if (position + 8 > buffer.length)
+                throw new IOException("Malformed archive: block ends in the middle of a number");
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (buffer[position++] & 0xff);
+            }
+            return value;
+        }
+    }
+
+
+    /**
+     * @param text string to check
+     * @return true if the text is a decimal number without leading zeros that
+     *         fits in a long, so that it survives a round trip through one
+     */
+    static boolean isId(String text) {
+        int length = text.length();
+        if (length == 0 || length > MAX_ID.length() || (text.charAt(0) == '0' && length > 1))
+            return false;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9')
+                return false;
+        }
+        // Digits only, so with equal lengths comparing as text compares as numbers
+        return length < MAX_ID.length() || text.compareTo(MAX_ID) <= 0;
+    }
+
+}
@@ -0,0 +1,366 @@
+/**
+ * Read archives written by BinaryArchiveWriter. Opening one reads only the
+ * header, the group information and the block index; messages are decoded a
+ * block (one page) at a time, and the index lets a reader jump straight to
+ * the blocks it needs.
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+
+
+public class BinaryArchiveReader implements Closeable {
+
+    /**
+     * Index entry of one block of messages
+     */
+    public static class Block {
+        public final long offset;
+        public final int count;
+        public final String newestId;
+        public final String oldestId;
+        public final long newestCreatedAt;
+        public final long oldestCreatedAt;
+
+        Block(long offset, int count, String newestId, String oldestId, long newestCreatedAt, long oldestCreatedAt) {
+            this.offset = offset;
+            this.count = count;
+            this.newestId = newestId;
+            this.oldestId = oldestId;
+            this.newestCreatedAt = newestCreatedAt;
+            this.oldestCreatedAt = oldestCreatedAt;
+        }
+
+
+        /**
+         * @param messages the decoded messages of the block, newest first
+         * @param offset position of the block in the file
+         * @return the index entry describing them
+         */
+        static Block of(ArrayNode messages, long offset) {
+            JsonNode newest = messages.get(0);
+            JsonNode oldest = messages.get(messages.size() - 1);
+            return new Block(offset, messages.size(), newest.path("id").asText(), oldest.path("id").asText(),
+                    newest.path("created_at").asLong(), oldest.path("created_at").asLong());
+        }
+    }
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final ObjectNode group;
+    private final List<Block> blocks;
+    private final int messageCount;
+    private final long end;
+
+    private BinaryArchiveReader(RandomAccessFile file, ObjectNode group, List<Block> blocks, long end) {
+        this.file = file;
+        this.end = end;
+        this.channel = file.getChannel();
+        this.group = group;
+        this.blocks = Collections.unmodifiableList(blocks);
+        int count = 0;
+        for (Block block : blocks) {
+            count += block.count;
+        }
+        this.messageCount = count;
+    }
+
+
+    /**
+     * Open a finished archive, reading its group information and index
+     *
+     * @param archive archive file to read
+     * @return a reader, which must be closed
+     * @throws IOException if the file cannot be read or is not a finished
+     *                     binary archive
+     */
+    public static BinaryArchiveReader open(File archive) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(archive, "r");
+        try {
+            ByteBuffer header = readHeader(file.getChannel());
+            long indexOffset = header.getLong(BinaryArchiveFormat.INDEX_OFFSET_POSITION);
+            int blockCount = header.getInt(BinaryArchiveFormat.BLOCK_COUNT_POSITION);
+            if (indexOffset <= BinaryArchiveFormat.HEADER_SIZE || indexOffset > file.length())
+                throw new IOException("Malformed archive: " + archive + " was not finished");
+            ObjectNode group = (ObjectNode) readFrame(file.getChannel(), BinaryArchiveFormat.HEADER_SIZE).get(0);
+
+            // The index is small (one entry per 100 messages), so read it in one go
+            byte[] index = new byte[(int) (file.length() - indexOffset)];
+            file.seek(indexOffset);
+            file.readFully(index);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(index));
+            List<Block> blocks = new ArrayList<>(blockCount);
+            for (int i = 0; i < blockCount; i++) {
+                blocks.add(new Block(in.readLong(), in.readInt(), in.readUTF(), in.readUTF(), in.readLong(), in.readLong()));
+            }
+            return new BinaryArchiveReader(file, group, blocks, indexOffset);
+        } catch (IOException | RuntimeException ex) {
+            file.close();
+            throw (ex instanceof IOException) ? (IOException) ex : new IOException("Malformed archive: " + archive, ex);
+        }
+    }
+
+
+    /**
+     * Open an archive that is still being written, or was interrupted, by
+     * checking each block in turn up to a given length. Used to pick up an
+     * interrupted archive again.
+     *
+     * @param archive partial archive file
+     * @param end length of the file to consider, e.g. from a checkpoint
+     * @return a reader over every complete block before end
+     * @throws IOException if the file cannot be read or its header is damaged
+     */
+    static BinaryArchiveReader openPartial(File archive, long end) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(archive, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            readHeader(channel);
+            ObjectNode group = (ObjectNode) readFrame(channel, BinaryArchiveFormat.HEADER_SIZE).get(0);
+
+            List<Block> blocks = new ArrayList<>();
+            long offset = BinaryArchiveFormat.HEADER_SIZE + frameLength(channel, BinaryArchiveFormat.HEADER_SIZE);
+            while (offset + BinaryArchiveFormat.FRAME_HEADER_SIZE <= end) {
+                long length = frameLength(channel, offset);
+                if (offset + length > end)
+                    break;
+                ArrayNode messages;
+                try {
+                    messages = readFrame(channel, offset);
+                } catch (IOException ex) {
+                    // A block torn by the interruption; everything before it is good
+                    break;
+                }
+                if (messages.size() > 0)
+                    blocks.add(Block.of(messages, offset));
+                offset += length;
+            }
+            return new BinaryArchiveReader(file, group, blocks, offset);
+        } catch (IOException | RuntimeException ex) {
+            file.close();
+            throw ex;
+        }
+    }
+
+
+    /**
+     * @param archive file to check
+     * @return true if the file starts like a binary archive
+     */
+    public static boolean isBinaryArchive(File archive) {
+        try (RandomAccessFile file = new RandomAccessFile(archive, "r")) {
+            return file.length() >= BinaryArchiveFormat.HEADER_SIZE && file.readInt() == BinaryArchiveFormat.MAGIC;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+
+    /**
+     * @return group information, as returned by getGroupInfo, without the
+     *         message list
+     */
+    public ObjectNode getGroup() {
+        return group;
+    }
+
+
+    /**
+     * @return the number of messages in the archive
+     */
+    public int getMessageCount() {
+        return messageCount;
+    }
+
+
+    /**
+     * @return the index of every block, newest first
+     */
+    public List<Block> getBlocks() {
+        return blocks;
+    }
+
+
+    /**
+     * @return the position just after the last block
+     */
+    long getEnd() {
+        return end;
+    }
+
+
+    /**
+     * @return the id of the newest message, or null if there are none
+     */
+    public String newestMessageId() {
+        return blocks.isEmpty() ? null : blocks.get(0).newestId;
+    }
+
+
+    /**
+     * @param block index of the block
+     * @return the messages of the block, newest first
+     * @throws IOException if the block cannot be read or is damaged
+     */
+    public ArrayNode readBlock(int block) throws IOException {
+        return readFrame(channel, blocks.get(block).offset);
+    }
+
+
+    /**
+     * Read every message, one block at a time
+     *
+     * @param handler receives each block of messages in file order
+     * @return the number of messages read
+     * @throws IOException if a block cannot be read or is damaged
+     */
+    public int forEachPage(JsonArchiveReader.PageHandler handler) throws IOException {
+        int count = 0;
+        for (int i = 0; i < blocks.size(); i++) {
+            ArrayNode messages = readBlock(i);
+            count += messages.size();
+            handler.page(messages);
+        }
+        return count;
+    }
+
+
+    /**
+     * Read only the messages sent within a time range, decoding only the
+     * blocks that the index says overlap it
+     *
+     * @param from earliest created_at to include, in seconds since the epoch
+     * @param to latest created_at to include, in seconds since the epoch
+     * @param handler receives the matching messages of each block, newest first
+     * @return the number of messages read
+     * @throws IOException if a block cannot be read or is damaged
+     */
+    public int forEachPageBetween(long from, long to, JsonArchiveReader.PageHandler handler) throws IOException {
+        int count = 0;
+        for (int i = 0; i < blocks.size(); i++) {
+            Block block = blocks.get(i);
+            if (block.oldestCreatedAt > to)
+                continue;
+            if (block.newestCreatedAt < from)
+                break;
+            ArrayNode messages = readBlock(i);
+            ArrayNode matching = GroupMeAPI.objectMapper().createArrayNode();
+            for (JsonNode message : messages) {
+                long createdAt = message.path("created_at").asLong();
+                if (createdAt >= from && createdAt <= to)
+                    matching.add(message);
+            }
+            if (matching.size() > 0) {
+                count += matching.size();
+                handler.page(matching);
+            }
+        }
+        return count;
+    }
+
+
+    /**
+     * Copy a block's frame, exactly as stored, to another file. Blocks do not
+     * depend on anything around them, so this is how an update carries over
+     * the messages of the archive it replaces.
+     *
+     * @param block index of the block
+     * @param target channel to write the frame to, at its current position
+     * @return the number of bytes copied
+     * @throws IOException if the block cannot be copied
+     */
+    long copyBlock(int block, FileChannel target) throws IOException {
+        long offset = blocks.get(block).offset;
+        long length = frameLength(channel, offset);
+        long copied = 0;
+        while (copied < length) {
+            copied += channel.transferTo(offset + copied, length - copied, target);
+        }
+        return length;
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+
+    private static ByteBuffer readHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(BinaryArchiveFormat.HEADER_SIZE);
+        readFully(channel, header, 0);
+        if (header.getInt(0) != BinaryArchiveFormat.MAGIC)
+            throw new IOException("Malformed archive: not a binary message archive");
+        if (header.getInt(4) > BinaryArchiveFormat.VERSION)
+            throw new IOException("Archive version " + header.getInt(4) + " is newer than this program");
+        return header;
+    }
+
+
+    /**
+     * @return the length of the frame at an offset, including its header
+     */
+    private static long frameLength(FileChannel channel, long offset) throws IOException {
+        ByteBuffer frameHeader = ByteBuffer.allocate(4);
+        readFully(channel, frameHeader, offset);
+        return BinaryArchiveFormat.FRAME_HEADER_SIZE + (frameHeader.getInt(0) & 0xffffffffL);
+    }
+
+
+    /**
+     * Read, check and decode the frame at an offset
+     *
+     * @return the values in the frame
+     */
+    private static ArrayNode readFrame(FileChannel channel, long offset) throws IOException {
+        ByteBuffer frameHeader = ByteBuffer.allocate(BinaryArchiveFormat.FRAME_HEADER_SIZE);
+        readFully(channel, frameHeader, offset);
+        int length = frameHeader.getInt(0);
+        int count = frameHeader.getInt(4);
+        int checksum = frameHeader.getInt(8);
+        if (length < 0 || count < 0 || offset + BinaryArchiveFormat.FRAME_HEADER_SIZE + length > channel.size())
+            throw new IOException("Malformed archive: block at " + offset + " runs past the end of the file");
+
+        byte[] payload = new byte[length];
+        readFully(channel, ByteBuffer.wrap(payload), offset + BinaryArchiveFormat.FRAME_HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, length);
+        if ((int) crc.getValue() != checksum)
+            throw new IOException("Malformed archive: block at " + offset + " is damaged");
+
+        BinaryArchiveFormat.Decoder decoder = new BinaryArchiveFormat.Decoder(payload);
+        ArrayNode values = GroupMeAPI.objectMapper().createArrayNode();
+        for (int i = 0; i < count; i++) {
+            values.add(decoder.read());
+        }
+        return values;
+    }
+
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0)
+                throw new IOException("Malformed archive: unexpected end of file");
+        }
+    }
+
+}
@@ -0,0 +1,258 @@
+/**
+ * Write a group and its messages to a compact binary archive as the pages
+ * arrive. Each page becomes one self-contained block, and an index of the
+ * blocks is written at the end, so the archive is a fraction of the size of
+ * the JSON one and reloads without parsing any text. See BinaryArchiveFormat
+ * for the layout.
+ *
+ * As with JsonArchiveWriter, the archive is written to a ".part" file with a
+ * ".checkpoint" after every page, and moved into place once it is finished
+ * (see PartFileArchiveWriter).
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+
+
+public class BinaryArchiveWriter extends PartFileArchiveWriter {
+
+    private final BinaryArchiveFormat.Encoder encoder = new BinaryArchiveFormat.Encoder();
+    private final List<BinaryArchiveReader.Block> blocks = new ArrayList<>();
+    private RandomAccessFile file;
+    private FileChannel channel;
+
+    /**
+     * @param outfile file to write the archive to -- replaced once the new
+     *                archive is complete
+     */
+    public BinaryArchiveWriter(File outfile) {
+        super(outfile);
+    }
+
+
+    @Override
+    public void mergeWithExisting() throws IOException {
+        if (!outfile.exists())
+            return;
+        try (BinaryArchiveReader existing = BinaryArchiveReader.open(outfile)) {
+            untilId = existing.newestMessageId();
+            untilCount = existing.getMessageCount();
+        }
+    }
+
+
+    /**
+     * Pick up an interrupted archive from its checkpoint. The partial file is
+     * checked block by block, cut back to the end of the last complete one and
+     * reopened for appending.
+     *
+     * @return true if there was a usable checkpoint, in which case begin must
+     *         not be called
+     * @throws IOException if the partial archive cannot be reopened
+     */
+    @Override
+    public boolean resume() throws IOException {
+        JsonNode checkpoint = readCheckpoint();
+        if (checkpoint == null)
+            return false;
+        long offset = checkpoint.path("offset").asLong(-1);
+        if (offset <= BinaryArchiveFormat.HEADER_SIZE || offset > partFile.length())
+            return false;
+
+        long end;
+        try (BinaryArchiveReader partial = BinaryArchiveReader.openPartial(partFile, offset)) {
+            blocks.addAll(partial.getBlocks());
+            written = partial.getMessageCount();
+            end = partial.getEnd();
+            if (!blocks.isEmpty())
+                resumeBeforeId = blocks.get(blocks.size() - 1).oldestId;
+        } catch (IOException ex) {
+            // Not even the group information survived
+            return false;
+        }
+
+        restoreMerge(checkpoint);
+        open();
+        file.setLength(end);
+        channel.position(end);
+        return true;
+    }
+
+
+    /**
+     * Write the header, with space for the index position and counts that are
+     * filled in by end(), followed by the group information
+     *
+     * @param group group information returned by getGroupInfo
+     * @throws IOException if the file cannot be opened
+     */
+    @Override
+    public void begin(ObjectNode group) throws IOException {
+        open();
+        file.setLength(0);
+        ByteBuffer header = ByteBuffer.allocate(BinaryArchiveFormat.HEADER_SIZE);
+        header.putInt(BinaryArchiveFormat.MAGIC);
+        header.putInt(BinaryArchiveFormat.VERSION);
+        // The rest stays zero until end()
+        header.rewind();
+        writeFully(header);
+
+        ObjectNode info = group.deepCopy();
+        info.remove("media_list");
+        if (info.path("messages").isObject())
+            ((ObjectNode) info.path("messages")).remove("message_list");
+        encoder.reset();
+        encoder.add(info);
+        writeFrame();
+        written = 0;
+        blocks.clear();
+    }
+
+
+    /**
+     * Append a page of messages as one block and record a checkpoint just
+     * after it
+     *
+     * @param messages page of messages
+     * @throws IOException if the messages cannot be written
+     */
+    @Override
+    public void page(ArrayNode messages) throws IOException {
+        if (messages.size() == 0)
+            return;
+        long offset = channel.position();
+        encoder.reset();
+        for (JsonNode message : messages) {
+            encoder.add(message);
+        }
+        writeFrame();
+        blocks.add(BinaryArchiveReader.Block.of(messages, offset));
+        written += messages.size();
+        saveCheckpoint(blocks.get(blocks.size() - 1).oldestId, channel.position());
+    }
+
+
+    /**
+     * Copy over the blocks of the archive being merged with (if any), write
+     * the index, fill in the header and move the finished archive into place
+     *
+     * @throws IOException if the file cannot be finished
+     */
+    @Override
+    public void end() throws IOException {
+        if (isUpToDate()) {
+            // Nothing new -- the existing archive is already up to date
+            file.close();
+            keepExisting();
+            if (mergedPages != null && outfile.exists()) {
+                try (BinaryArchiveReader existing = BinaryArchiveReader.open(outfile)) {
+                    existing.forEachPage(mergedPages);
+                }
+            }
+            return;
+        }
+        if (untilId != null && outfile.exists()) {
+            try (BinaryArchiveReader existing = BinaryArchiveReader.open(outfile)) {
+                List<BinaryArchiveReader.Block> existingBlocks = existing.getBlocks();
+                for (int i = 0; i < existingBlocks.size(); i++) {
+                    BinaryArchiveReader.Block block = existingBlocks.get(i);
+                    long offset = channel.position();
+                    existing.copyBlock(i, channel);
+                    if (mergedPages != null)
+                        mergedPages.page(existing.readBlock(i));
+                    blocks.add(new BinaryArchiveReader.Block(offset, block.count, block.newestId, block.oldestId,
+                            block.newestCreatedAt, block.oldestCreatedAt));
+                    written += block.count;
+                }
+            }
+        }
+
+        long indexOffset = channel.position();
+        ByteArrayOutputStream index = new ByteArrayOutputStream(blocks.size() * 64);
+        DataOutputStream out = new DataOutputStream(index);
+        for (BinaryArchiveReader.Block block : blocks) {
+            out.writeLong(block.offset);
+            out.writeInt(block.count);
+            out.writeUTF(block.newestId);
+            out.writeUTF(block.oldestId);
+            out.writeLong(block.newestCreatedAt);
+            out.writeLong(block.oldestCreatedAt);
+        }
+        writeFully(ByteBuffer.wrap(index.toByteArray()));
+
+        ByteBuffer counts = ByteBuffer.allocate(16);
+        counts.putLong(indexOffset).putInt(written).putInt(blocks.size());
+        counts.flip();
+        while (counts.hasRemaining()) {
+            channel.write(counts, BinaryArchiveFormat.INDEX_OFFSET_POSITION + counts.position());
+        }
+        channel.force(true);
+        file.close();
+        moveIntoPlace();
+    }
+
+
+    /**
+     * Close the partial archive, leaving it and its checkpoint to be resumed
+     */
+    @Override
+    public void abort() {
+        try {
+            if (file != null)
+                file.close();
+        } catch (IOException ex) {
+            // The run has already failed
+        }
+    }
+
+
+    @Override
+    public void forEachWrittenPage(JsonArchiveReader.PageHandler handler) throws IOException {
+        try (BinaryArchiveReader partial = BinaryArchiveReader.openPartial(partFile, channel.position())) {
+            partial.forEachPage(handler);
+        }
+    }
+
+
+    private void open() throws IOException {
+        file = new RandomAccessFile(partFile, "rw");
+        channel = file.getChannel();
+    }
+
+
+    /**
+     * Write the encoder's payload as a frame at the current position
+     */
+    private void writeFrame() throws IOException {
+        ByteBuffer frameHeader = ByteBuffer.allocate(BinaryArchiveFormat.FRAME_HEADER_SIZE);
+        frameHeader.putInt(encoder.getLength());
+        frameHeader.putInt(encoder.getCount());
+        frameHeader.putInt((int) encoder.checksum());
+        frameHeader.flip();
+        writeFully(frameHeader);
+        writeFully(ByteBuffer.wrap(encoder.getBuffer(), 0, encoder.getLength()));
+    }
+
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+}
@@ -0,0 +1,94 @@
+/**
+ * Export messages as CSV for spreadsheets: one row per message, oldest first.
+ *
+ * Fields are quoted as in RFC 4180, so text with commas, quotes and line
+ * breaks stays in one cell, and rows end with CRLF. The file starts with a
+ * byte order mark so that Excel reads it as UTF-8. Text starting with = + - @
+ * or a tab or carriage return gets a leading ' so that a spreadsheet shows it
+ * instead of running it as a formula.
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.File;
+
+
+
+public class CsvExportWriter extends TextExportWriter {
+
+    private static final String[] COLUMNS = {"id", "time", "created_at", "name", "sender_id", "sender_type",
+        "system", "text", "favorites", "attachments"};
+
+    /**
+     * @param outfile file to write the export to
+     */
+    public CsvExportWriter(File outfile) {
+        super(outfile);
+    }
+
+
+    @Override
+    protected void formatHeader(ObjectNode group, int messageCount, StringBuilder out) {
+        out.append('\uFEFF');
+        for (int i = 0; i < COLUMNS.length; i++) {
+            out.append(i == 0 ? "" : ",").append(COLUMNS[i]);
+        }
+        out.append("\r\n");
+    }
+
+
+    @Override
+    protected void formatMessage(JsonNode message, StringBuilder out) {
+        long createdAt = message.path("created_at").asLong();
+        StringBuilder attachments = new StringBuilder();
+        for (JsonNode attachment : message.path("attachments")) {
+            attachments.append(attachments.length() == 0 ? "" : "\n").append(describeAttachment(attachment));
+        }
+
+        field(out, message.path("id").asText()).append(',');
+        out.append(formatTime(createdAt)).append(',');
+        out.append(createdAt).append(',');
+        field(out, message.path("name").asText()).append(',');
+        field(out, message.path("sender_id").asText()).append(',');
+        field(out, message.path("sender_type").asText()).append(',');
+        out.append(message.path("system").asBoolean()).append(',');
+        field(out, message.path("text").asText()).append(',');
+        out.append(message.path("favorited_by").size()).append(',');
+        field(out, attachments.toString()).append("\r\n");
+    }
+
+
+    /**
+     * Append a text field, quoted if it needs to be
+     *
+     * @param out row to append to
+     * @param value text of the field
+     * @return out
+     */
+    private static StringBuilder field(StringBuilder out, String value) {
+        boolean formula = !value.isEmpty() && "=+-@\t\r".indexOf(value.charAt(0)) >= 0;
+        boolean quote = formula;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = (c == ',' || c == '"' || c == '\n' || c == '\r');
+        }
+        if (!quote)
+            return out.append(value);
+
+        out.append('"');
+        if (formula)
+            out.append('\'');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"')
+                out.append('"');
+            out.append(c);
+        }
+        return out.append('"');
+    }
+
+}
@@ -0,0 +1,97 @@
+/**
+ * Range of times whose messages (and media) are archived, as created_at
+ * values in seconds since the epoch: from is included and to is not.
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+
+
+
+public class DateRange {
+
+    public static final DateRange ALL = new DateRange(Long.MIN_VALUE, Long.MAX_VALUE);
+
+    private final long from;
+    private final long to;
+
+    /**
+     * @param from earliest created_at included, or Long.MIN_VALUE
+     * @param to created_at just after the range, or Long.MAX_VALUE
+     */
+    public DateRange(long from, long to) {
+        if (from > to)
+            throw new IllegalArgumentException("The start of the date range is after its end");
+        this.from = from;
+        this.to = to;
+    }
+
+
+    /**
+     * @param first first day included, in the computer's time zone, or null
+     *              to start at the first message
+     * @param last last day included, or null to end at the newest message
+     * @return the range of times from the start of first to the end of last
+     */
+    public static DateRange ofDays(LocalDate first, LocalDate last) {
+        ZoneId zone = ZoneId.systemDefault();
+        long from = (first == null) ? Long.MIN_VALUE : first.atStartOfDay(zone).toEpochSecond();
+        long to = (last == null) ? Long.MAX_VALUE : last.plusDays(1).atStartOfDay(zone).toEpochSecond();
+        return new DateRange(from, to);
+    }
+
+
+    public long getFrom() {
+        return from;
+    }
+
+
+    public long getTo() {
+        return to;
+    }
+
+
+    public boolean hasStart() {
+        return from != Long.MIN_VALUE;
+    }
+
+
+    public boolean hasEnd() {
+        return to != Long.MAX_VALUE;
+    }
+
+
+    /**
+     * @return true if the range has neither a start nor an end
+     */
+    public boolean isAll() {
+        return !hasStart() && !hasEnd();
+    }
+
+
+    /**
+     * @param createdAt time of a message, in seconds since the epoch
+     * @return true if the time is within the range
+     */
+    public boolean contains(long createdAt) {
+        return createdAt >= from && createdAt < to;
+    }
+
+
+    /**
+     * @return e.g. "2019-01-01-to-2019-03-31", or "start-to-2019-03-31" for
+     *         a range without a start, for naming the files of the range
+     */
+    public String label() {
+        ZoneId zone = ZoneId.systemDefault();
+        String first = hasStart() ? Instant.ofEpochSecond(from).atZone(zone).toLocalDate().toString() : "start";
+        String last = hasEnd() ? Instant.ofEpochSecond(to - 1).atZone(zone).toLocalDate().toString() : "end";
+        return first + "-to-" + last;
+    }
+
+}
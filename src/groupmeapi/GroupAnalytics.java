@@ -0,0 +1,548 @@
+/**
+ * Statistics of a saved group, worked out from its archive on every core: the
+ * messages, likes and media of each member, when the group is active (by hour
+ * of the day, day of the week and date), who posts the most media, and how
+ * quickly members reply.
+ *
+ * The archive is split into chunks of a few thousand messages, oldest first,
+ * and a fork/join task tallies each chunk. Tallies keep their counts in plain
+ * arrays, indexed through a LongTable of sender ids or days, rather than in
+ * maps of boxed numbers, and are merged pairwise as the tasks finish. Binary
+ * archives and message stores are read a chunk at a time by the tasks
+ * themselves; JSON archives are read in one pass, handing each chunk to a
+ * task as it is parsed.
+ *
+ * A message counts as a reply if it follows a message from someone else
+ * within REPLY_WINDOW, and its reply latency is the time in between. System
+ * messages (e.g. "Alice added Bob") count toward the totals but not toward any
+ * member.
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+
+
+public class GroupAnalytics {
+
+    // Messages tallied by one task
+    static final int CHUNK_MESSAGES = 2000;
+
+    // Longest gap after someone else's message that still counts as a reply
+    public static final long REPLY_WINDOW = 6 * 3600;
+
+    // Upper ends of the reply latency buckets, in seconds
+    private static final long[] LATENCY_BUCKETS = {60, 5 * 60, 15 * 60, 3600, REPLY_WINDOW};
+    private static final String[] LATENCY_NAMES = {"under_1_minute", "under_5_minutes", "under_15_minutes",
+        "under_1_hour", "under_6_hours"};
+
+    private static final int TOP_MEDIA_POSTERS = 10;
+
+    private GroupAnalytics() {
+    }
+
+
+    /**
+     * Work out the statistics of an archive on the common fork/join pool
+     *
+     * @param archive a message store folder, or a binary or JSON archive
+     * @param zone time zone for the hours, days and dates
+     * @return the report, as written to analytics.json
+     * @throws IOException if the archive cannot be read
+     */
+    public static ObjectNode analyze(File archive, ZoneId zone) throws IOException {
+        return analyze(archive, zone, ForkJoinPool.commonPool());
+    }
+
+
+    /**
+     * @param archive a message store folder, or a binary or JSON archive
+     * @param zone time zone for the hours, days and dates
+     * @param pool pool to run the tasks on
+     * @return the report, as written to analytics.json
+     * @throws IOException if the archive cannot be read
+     */
+    public static ObjectNode analyze(File archive, ZoneId zone, ForkJoinPool pool) throws IOException {
+        long start = System.nanoTime();
+        ObjectNode group;
+        Tally tally;
+        try {
+            if (MessageStore.isMessageStore(archive)) {
+                try (MessageStore store = MessageStore.open(archive)) {
+                    group = store.getGroup();
+                    tally = pool.invoke(new ChunkTask(storeChunks(store), zone));
+                }
+            } else if (BinaryArchiveReader.isBinaryArchive(archive)) {
+                try (BinaryArchiveReader reader = BinaryArchiveReader.open(archive)) {
+                    group = reader.getGroup();
+                    tally = pool.invoke(new ChunkTask(binaryChunks(reader), zone));
+                }
+            } else {
+                group = JsonArchiveReader.readHeader(archive);
+                tally = streamJson(archive, zone, pool);
+            }
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+
+        ObjectNode report = GroupMeAPI.objectMapper().createObjectNode();
+        report.put("group_id", group.path("id").asText());
+        report.put("name", group.path("name").asText());
+        report.put("time_zone", zone.getId());
+        tally.report(report);
+        report.put("seconds", (System.nanoTime() - start) / 1e9);
+        return report;
+    }
+
+
+    /**
+     * @param groupFolder folder of a saved group
+     * @return its archive, preferring the formats that can be read in
+     *         parallel, or null if it has none
+     */
+    public static File findArchive(File groupFolder) {
+        String[] formats = {GroupArchiver.FORMAT_STORE, GroupArchiver.FORMAT_BINARY, GroupArchiver.FORMAT_JSON_GZIP,
+            GroupArchiver.FORMAT_JSON};
+        for (String format : formats) {
+            File archive = new File(groupFolder, GroupArchiver.messageFileName(format));
+            if (archive.exists())
+                return archive;
+        }
+        return null;
+    }
+
+
+    /**
+     * Chunks of an archive that tasks can read on their own, oldest first
+     */
+    private interface Chunks {
+        int count();
+
+        List<Message> read(int chunk) throws IOException;
+    }
+
+
+    private static Chunks storeChunks(MessageStore store) {
+        int count = store.getMessageCount();
+        return new Chunks() {
+            @Override
+            public int count() {
+                return (count + CHUNK_MESSAGES - 1) / CHUNK_MESSAGES;
+            }
+
+            @Override
+            public List<Message> read(int chunk) throws IOException {
+                int start = chunk * CHUNK_MESSAGES;
+                return store.readMessages(start, Math.min(count, start + CHUNK_MESSAGES));
+            }
+        };
+    }
+
+
+    private static Chunks binaryChunks(BinaryArchiveReader reader) {
+        // Blocks are pages of up to 100 messages, newest first
+        int blocks = reader.getBlocks().size();
+        int perChunk = Math.max(1, CHUNK_MESSAGES / 100);
+        return new Chunks() {
+            @Override
+            public int count() {
+                return (blocks + perChunk - 1) / perChunk;
+            }
+
+            @Override
+            public List<Message> read(int chunk) throws IOException {
+                List<Message> messages = new ArrayList<>(CHUNK_MESSAGES);
+                for (int block = Math.max(0, blocks - (chunk + 1) * perChunk); block < blocks - chunk * perChunk; block++) {
+                    for (JsonNode message : reader.readBlock(block)) {
+                        messages.add(Message.of(message));
+                    }
+                }
+                return messages;
+            }
+        };
+    }
+
+
+    /**
+     * Tally a range of chunks by splitting it in half until one is left
+     */
+    private static class ChunkTask extends RecursiveTask<Tally> {
+        private static final long serialVersionUID = 1L;
+
+        private final Chunks chunks;
+        private final ZoneId zone;
+        private final int start;
+        private final int end;
+
+        ChunkTask(Chunks chunks, ZoneId zone) {
+            this(chunks, zone, 0, chunks.count());
+        }
+
+
+        private ChunkTask(Chunks chunks, ZoneId zone, int start, int end) {
+            this.chunks = chunks;
+            this.zone = zone;
+            this.start = start;
+            this.end = end;
+        }
+
+
+        @Override
+        protected Tally compute() {
+            if (end - start <= 1) {
+                try {
+                    return Tally.of((start < end) ? chunks.read(start) : new ArrayList<>(), zone);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+            int middle = (start + end) >>> 1;
+            ChunkTask older = new ChunkTask(chunks, zone, start, middle);
+            older.fork();
+            Tally newer = new ChunkTask(chunks, zone, middle, end).compute();
+            return older.join().merge(newer);
+        }
+    }
+
+
+    /**
+     * Parse a JSON archive in one pass, tallying each chunk on the pool
+     * while the next is parsed
+     */
+    private static Tally streamJson(File archive, ZoneId zone, ForkJoinPool pool) throws IOException {
+        List<ForkJoinTask<Tally>> tasks = new ArrayList<>();
+        JsonArchiveReader.forEachMessageList(archive, CHUNK_MESSAGES,
+                (messages) -> tasks.add(pool.submit(() -> Tally.of(messages, zone))));
+
+        // The archive lists the newest messages first
+        Tally tally = Tally.of(new ArrayList<>(), zone);
+        for (int i = tasks.size() - 1; i >= 0; i--) {
+            tally.merge(tasks.get(i).join());
+        }
+        return tally;
+    }
+
+
+    /**
+     * Counts and totals of a run of messages. The members and days seen get
+     * slots in a LongTable, and their numbers are kept in arrays by slot.
+     */
+    private static class Tally {
+        private final ZoneRules rules;
+        private long messages;
+        private long systemMessages;
+        private long likes;
+        private long media;
+        private final long[] hours = new long[24];
+        private final long[] weekdays = new long[7];
+        private final long[] latencies = new long[LATENCY_BUCKETS.length];
+
+        private final LongTable days = new LongTable();
+        private long[] dayCounts = new long[16];
+
+        private final LongTable members = new LongTable();
+        private String[] ids = new String[16];
+        private String[] names = new String[16];
+        private long[] nameTimes = new long[16];
+        private long[] memberMessages = new long[16];
+        private long[] memberLikes = new long[16];
+        private long[] memberMedia = new long[16];
+        private long[] memberReplies = new long[16];
+        private long[] memberReplySeconds = new long[16];
+
+        // First and last message from a member, to find replies across chunks
+        private boolean any = false;
+        private long firstTime;
+        private long firstSender;
+        private long lastTime;
+        private long lastSender;
+        private long earliest = Long.MAX_VALUE;
+        private long latest = Long.MIN_VALUE;
+
+        // The UTC offset only changes on the hour, so it is looked up once an hour
+        private long offsetHour = Long.MIN_VALUE;
+        private long offset;
+
+        private Tally(ZoneId zone) {
+            this.rules = zone.getRules();
+        }
+
+
+        /**
+         * @param chunk messages in any order
+         * @param zone time zone for the hours and days
+         * @return the tally of the messages
+         */
+        static Tally of(List<Message> chunk, ZoneId zone) {
+            List<Message> sorted = new ArrayList<>(chunk);
+            sorted.sort(Comparator.comparingLong(Message::getCreatedAt));
+            Tally tally = new Tally(zone);
+            for (Message message : sorted) {
+                tally.add(message);
+            }
+            return tally;
+        }
+
+
+        /**
+         * @param message the next message in time order
+         */
+        void add(Message message) {
+            long time = message.getCreatedAt();
+            int mediaCount = 0;
+            for (Message.Attachment attachment : message.getAttachments()) {
+                if (attachment.isMedia())
+                    mediaCount++;
+            }
+            messages++;
+            likes += message.getFavoriteCount();
+            media += mediaCount;
+            earliest = Math.min(earliest, time);
+            latest = Math.max(latest, time);
+
+            long local = time + offset(time);
+            long day = Math.floorDiv(local, 86400);
+            // Long divisors, so these are the long floorMod on every JDK
+            hours[(int) (Math.floorMod(local, 86400L) / 3600)]++;
+            weekdays[(int) Math.floorMod(day + 3, 7L)]++;     // Day 0 was a Thursday
+            int daySlot = days.add(day);
+            if (daySlot == dayCounts.length)
+                dayCounts = Arrays.copyOf(dayCounts, daySlot * 2);
+            dayCounts[daySlot]++;
+
+            if (message.isSystem() || "system".equals(message.getSenderType())) {
+                systemMessages++;
+                return;
+            }
+            long sender = senderKey(message.getSenderId());
+            int slot = member(sender, message.getSenderId());
+            memberMessages[slot]++;
+            memberLikes[slot] += message.getFavoriteCount();
+            memberMedia[slot] += mediaCount;
+            if (time >= nameTimes[slot]) {
+                names[slot] = message.getName();
+                nameTimes[slot] = time;
+            }
+
+            if (!any) {
+                any = true;
+                firstTime = time;
+                firstSender = sender;
+            } else if (sender != lastSender) {
+                reply(slot, time - lastTime);
+            }
+            lastTime = time;
+            lastSender = sender;
+        }
+
+
+        /**
+         * Add the tally of the messages sent after these
+         *
+         * @param newer tally of the next run of messages
+         * @return this tally
+         */
+        Tally merge(Tally newer) {
+            messages += newer.messages;
+            systemMessages += newer.systemMessages;
+            likes += newer.likes;
+            media += newer.media;
+            earliest = Math.min(earliest, newer.earliest);
+            latest = Math.max(latest, newer.latest);
+            for (int i = 0; i < hours.length; i++) {
+                hours[i] += newer.hours[i];
+            }
+            for (int i = 0; i < weekdays.length; i++) {
+                weekdays[i] += newer.weekdays[i];
+            }
+            for (int i = 0; i < latencies.length; i++) {
+                latencies[i] += newer.latencies[i];
+            }
+            for (int i = 0; i < newer.days.size(); i++) {
+                int slot = days.add(newer.days.key(i));
+                if (slot >= dayCounts.length)
+                    dayCounts = Arrays.copyOf(dayCounts, Math.max(slot + 1, dayCounts.length * 2));
+                dayCounts[slot] += newer.dayCounts[i];
+            }
+            for (int i = 0; i < newer.members.size(); i++) {
+                int slot = member(newer.members.key(i), newer.ids[i]);
+                memberMessages[slot] += newer.memberMessages[i];
+                memberLikes[slot] += newer.memberLikes[i];
+                memberMedia[slot] += newer.memberMedia[i];
+                memberReplies[slot] += newer.memberReplies[i];
+                memberReplySeconds[slot] += newer.memberReplySeconds[i];
+                if (newer.nameTimes[i] >= nameTimes[slot]) {
+                    names[slot] = newer.names[i];
+                    nameTimes[slot] = newer.nameTimes[i];
+                }
+            }
+
+            // The first message of the newer run may reply to the last of this one
+            if (newer.any) {
+                if (!any) {
+                    any = true;
+                    firstTime = newer.firstTime;
+                    firstSender = newer.firstSender;
+                } else if (newer.firstSender != lastSender) {
+                    reply(members.slot(newer.firstSender), newer.firstTime - lastTime);
+                }
+                lastTime = newer.lastTime;
+                lastSender = newer.lastSender;
+            }
+            return this;
+        }
+
+
+        /**
+         * Fill in the report
+         */
+        void report(ObjectNode report) {
+            report.put("messages", messages);
+            report.put("system_messages", systemMessages);
+            report.put("likes", likes);
+            report.put("media", media);
+            report.put("members", members.size());
+            if (messages > 0) {
+                report.put("first_message_at", localTime(earliest).toString());
+                report.put("last_message_at", localTime(latest).toString());
+            }
+
+            Integer[] order = new Integer[members.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparingLong((Integer i) -> memberMessages[i]).reversed());
+            ArrayNode byMember = report.putArray("members_by_messages");
+            for (int i : order) {
+                ObjectNode member = byMember.addObject();
+                member.put("sender_id", ids[i]);
+                member.put("name", names[i]);
+                member.put("messages", memberMessages[i]);
+                member.put("likes", memberLikes[i]);
+                member.put("media", memberMedia[i]);
+                member.put("replies", memberReplies[i]);
+                if (memberReplies[i] > 0)
+                    member.put("average_reply_seconds", memberReplySeconds[i] / memberReplies[i]);
+            }
+
+            Arrays.sort(order, Comparator.comparingLong((Integer i) -> memberMedia[i]).reversed());
+            ArrayNode mediaPosters = report.putArray("top_media_posters");
+            for (int i = 0; i < Math.min(TOP_MEDIA_POSTERS, order.length) && memberMedia[order[i]] > 0; i++) {
+                mediaPosters.addObject().put("sender_id", ids[order[i]]).put("name", names[order[i]])
+                        .put("media", memberMedia[order[i]]);
+            }
+
+            ArrayNode byHour = report.putArray("messages_by_hour");
+            for (long count : hours) {
+                byHour.add(count);
+            }
+            ObjectNode byWeekday = report.putObject("messages_by_weekday");
+            for (DayOfWeek weekday : DayOfWeek.values()) {
+                byWeekday.put(weekday.name().toLowerCase(Locale.ROOT), weekdays[weekday.ordinal()]);
+            }
+            long[] sortedDays = new long[days.size()];
+            for (int i = 0; i < sortedDays.length; i++) {
+                sortedDays[i] = days.key(i);
+            }
+            Arrays.sort(sortedDays);
+            ObjectNode byDay = report.putObject("messages_by_day");
+            for (long day : sortedDays) {
+                byDay.put(LocalDate.ofEpochDay(day).toString(), dayCounts[days.slot(day)]);
+            }
+
+            ObjectNode latency = report.putObject("reply_latency");
+            for (int i = 0; i < latencies.length; i++) {
+                latency.put(LATENCY_NAMES[i], latencies[i]);
+            }
+        }
+
+
+        private void reply(int slot, long seconds) {
+            if (seconds < 0 || seconds > REPLY_WINDOW)
+                return;
+            memberReplies[slot]++;
+            memberReplySeconds[slot] += seconds;
+            int bucket = 0;
+            while (seconds >= LATENCY_BUCKETS[bucket] && bucket < LATENCY_BUCKETS.length - 1) {
+                bucket++;
+            }
+            latencies[bucket]++;
+        }
+
+
+        /**
+         * @return the member's slot, adding the member if needed
+         */
+        private int member(long key, String id) {
+            int added = members.size();
+            int slot = members.add(key);
+            if (slot == ids.length) {
+                int length = slot * 2;
+                ids = Arrays.copyOf(ids, length);
+                names = Arrays.copyOf(names, length);
+                nameTimes = Arrays.copyOf(nameTimes, length);
+                memberMessages = Arrays.copyOf(memberMessages, length);
+                memberLikes = Arrays.copyOf(memberLikes, length);
+                memberMedia = Arrays.copyOf(memberMedia, length);
+                memberReplies = Arrays.copyOf(memberReplies, length);
+                memberReplySeconds = Arrays.copyOf(memberReplySeconds, length);
+            }
+            if (slot == added) {
+                ids[slot] = id;
+                nameTimes[slot] = Long.MIN_VALUE;
+            }
+            return slot;
+        }
+
+
+        private long offset(long time) {
+            long hour = Math.floorDiv(time, 3600);
+            if (hour != offsetHour) {
+                offset = rules.getOffset(Instant.ofEpochSecond(time)).getTotalSeconds();
+                offsetHour = hour;
+            }
+            return offset;
+        }
+
+
+        private LocalDateTime localTime(long time) {
+            return LocalDateTime.ofEpochSecond(time, 0, rules.getOffset(Instant.ofEpochSecond(time)));
+        }
+    }
+
+
+    /**
+     * @return the sender id as a number, or (for the few that are not, such
+     *         as bots' and GroupMe's own) a negative number made from it
+     */
+    private static long senderKey(String senderId) {
+        if (senderId == null)
+            return Long.MIN_VALUE;
+        if (BinaryArchiveFormat.isId(senderId))
+            return Long.parseLong(senderId);
+        return Long.MIN_VALUE + 1 + (senderId.hashCode() & 0xffffffffL);
+    }
+
+}
@@ -0,0 +1,368 @@
+/**
+ * Archive the messages and media of one group into a folder named after it.
+ *
+ * The folder is named after the group and its ID (see groupFolderName), so
+ * groups that share a name never share a folder, and no name can reach
+ * outside the save folder.
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+
+public class GroupArchiver {
+
+    // Formats the messages can be archived in; at most one is used at a time
+    public static final String FORMAT_JSON = "json";
+    public static final String FORMAT_BINARY = "binary";
+    public static final String FORMAT_JSON_GZIP = "json.gz";
+    public static final String FORMAT_STORE = "store";
+
+    // Formats the messages can also be exported to, in the same pass
+    public static final String FORMAT_CSV = "csv";
+    public static final String FORMAT_TEXT = "text";
+    public static final String FORMAT_SEARCH = "search";
+    public static final String FORMAT_HTML = "html";
+
+    private static final String MEDIA_STORE_FOLDER = ".media-store";
+
+    // Longest name given to a group's folder, well within every file system's limit
+    private static final int MAX_FILE_NAME = 120;
+
+    private final String saveFolder;
+    private final boolean downloadMessages;
+    private final String archiveFormat;
+    private final List<String> exportFormats = new ArrayList<>();
+    private final DateRange range;
+    private final boolean updateExisting;
+    private final boolean downloadMedia;
+    private final int maxDownloads;
+
+    /**
+     * @param saveFolder folder in which each group gets its own folder
+     * @param downloadMessages whether to save the messages
+     * @param messageFormats formats to save the messages in: at most one of
+     *                       FORMAT_JSON (messages.json), FORMAT_JSON_GZIP
+     *                       (the same, compressed as it is written),
+     *                       FORMAT_BINARY (the smaller and faster to load
+     *                       messages.gma) and FORMAT_STORE (the
+     *                       messages.store folder, indexed by id and time,
+     *                       or messages.gma for a group whose ids are too
+     *                       large to index),
+     *                       plus any of FORMAT_CSV, FORMAT_TEXT,
+     *                       FORMAT_SEARCH (an index for SearchIndex) and
+     *                       FORMAT_HTML (the messages-html folder of pages)
+     * @param range only messages (and media) sent within this range are
+     *              saved; unless it is DateRange.ALL the files are named
+     *              after it, e.g. messages-2019-01-01-to-2019-03-31.json, so
+     *              that they are kept apart from the full archive
+     * @param updateExisting whether to update the existing messages rather
+     *                       than downloading everything again
+     * @param downloadMedia whether to download the media attachments
+     * @param maxDownloads number of media files each group downloads at once
+     */
+    public GroupArchiver(String saveFolder, boolean downloadMessages, List<String> messageFormats, DateRange range, boolean updateExisting, boolean downloadMedia, int maxDownloads) {
+        String archive = null;
+        for (String format : messageFormats) {
+            messageFileName(format);
+            if (!isArchiveFormat(format)) {
+                exportFormats.add(format);
+            } else if (archive == null) {
+                archive = format;
+            } else {
+                throw new IllegalArgumentException("Messages can only be archived in one of "
+                        + FORMAT_JSON + ", " + FORMAT_JSON_GZIP + ", " + FORMAT_BINARY + " and " + FORMAT_STORE);
+            }
+        }
+        this.saveFolder = saveFolder;
+        this.downloadMessages = downloadMessages;
+        this.archiveFormat = archive;
+        this.range = range;
+        this.updateExisting = updateExisting;
+        this.downloadMedia = downloadMedia;
+        this.maxDownloads = maxDownloads;
+    }
+
+
+    /**
+     * Archive a group, blocking until its messages and media are done
+     *
+     * @param groupID ID of the group to archive
+     * @param API_KEY GroupMe API token
+     * @param progress listener to be updated as it proceeds
+     * @return the group name if the group was archived, otherwise null
+     */
+    public String archive(String groupID, String API_KEY, ProgressListener progress) {
+        // Summary of this group for the run report
+        ObjectNode summary = HttpTransport.shared().getMetrics().group(groupID);
+        long start = System.nanoTime();
+
+        ObjectNode group = GroupMeAPI.getGroupInfo(API_KEY, groupID, progress);
+        if (group == null)
+            return null;
+        String name = group.path("name").asText();
+        int totalCount = group.path("messages").path("count").asInt();
+        summary.put("name", name);
+        summary.put("messages", totalCount);
+
+        // Make a folder for saving data, taking over the folder an earlier
+        // version named after the group alone
+        Path groupFolderPath = Paths.get(saveFolder, groupFolderName(name, groupID)).toAbsolutePath();
+        adoptLegacyFolder(Paths.get(saveFolder).resolve(sanitizeFileName(name)), groupFolderPath, groupID);
+        if (!makeFolder(groupFolderPath.toFile(), progress))
+            return null;
+
+        // Download messages, saving them in every format page by page as they arrive
+        progress.status(range.isAll() ? "Getting " + totalCount + " messages..."
+                : "Getting the messages from " + range.label().replace("-to-", " to ") + "...");
+        boolean completed;
+        MessageSink exports = downloadMessages ? exportSink(groupFolderPath) : null;
+        List<Message> media = downloadMedia ? new ArrayList<>() : null;
+        if (downloadMessages && archiveFormat != null) {
+            String format = archiveFormat;
+            if (format.equals(FORMAT_STORE) && !MessageStore.canStore(group)) {
+                // The binary archive keeps ids of any length, as text if need be
+                progress.status("This group's message ids are too large for an indexed store; saving a binary archive instead");
+                format = FORMAT_BINARY;
+            }
+            Path messageFilePath = Paths.get(groupFolderPath.toString(), messageFileName(format, range));
+            completed = GroupMeAPI.archiveMessages(group, groupID, API_KEY, messageFilePath.toFile(), exports,
+                    range, updateExisting, media, progress);
+        } else {
+            completed = GroupMeAPI.streamMessages(group, groupID, API_KEY, exports, range, media, progress);
+        }
+        summary.put("messages_seconds", (System.nanoTime() - start) / 1e9);
+        if (!completed)
+            return null;
+
+        if (!downloadMedia) {
+            summary.put("archived", true);
+            return name;
+        }
+
+        // Count media files
+        int mediaCount = media.size();
+        progress.status("Downloading " + mediaCount + " media items...");
+        summary.put("media", mediaCount);
+        long mediaStart = System.nanoTime();
+
+        // Make the media folder if it doesn't already exist
+        File mediaFolder = Paths.get(groupFolderPath.toString(), "media").toFile();
+        if (!makeFolder(mediaFolder, progress))
+            return null;
+
+        // Download media files into the store shared by every group in the save folder
+        MediaStore store;
+        try {
+            store = MediaStore.open(getMediaStoreFolder());
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            progress.error("Failed to open the media store in " + saveFolder);
+            return null;
+        }
+        int failed = GroupMeAPI.downloadMediaConcurrently(media, store, mediaFolder, maxDownloads, progress).join();
+        summary.put("media_failed", failed);
+        summary.put("media_seconds", (System.nanoTime() - mediaStart) / 1e9);
+        summary.put("archived", true);
+
+        return name;
+    }
+
+
+    /**
+     * @return folder in which each group gets its own folder
+     */
+    public String getSaveFolder() {
+        return saveFolder;
+    }
+
+
+    /**
+     * @return folder of the media store shared by every group in the save
+     *         folder
+     */
+    public File getMediaStoreFolder() {
+        return Paths.get(saveFolder, MEDIA_STORE_FOLDER).toFile();
+    }
+
+
+    /**
+     * @param name group name
+     * @param groupID ID of the group
+     * @return name of the group's folder in the save folder, e.g.
+     *         "Road Trip (12345678)"
+     */
+    public static String groupFolderName(String name, String groupID) {
+        return sanitizeFileName(name) + " (" + sanitizeFileName(groupID) + ")";
+    }
+
+
+    /**
+     * Make a name safe to use as a single file name on any common file
+     * system: path separators, characters Windows does not allow and control
+     * characters become "_", trailing dots and spaces are removed, and names
+     * Windows reserves for devices (CON, NUL, COM1, ...) get a "_" in front
+     *
+     * @param name name to clean up
+     * @return a name that is never empty, "." or ".."
+     */
+    static String sanitizeFileName(String name) {
+        StringBuilder safe = new StringBuilder(Math.min(name.length(), MAX_FILE_NAME));
+        for (int i = 0; i < name.length() && safe.length() < MAX_FILE_NAME; i++) {
+            char c = name.charAt(i);
+            safe.append((c < ' ' || c == 0x7f || "<>:\"/\\|?*".indexOf(c) >= 0) ? '_' : c);
+        }
+        int end = safe.length();
+        while (end > 0 && (safe.charAt(end - 1) == '.' || safe.charAt(end - 1) == ' ')) {
+            end--;
+        }
+        safe.setLength(end);
+        if (safe.length() == 0)
+            return "_";
+
+        String base = safe.toString().split("\\.", 2)[0].trim().toUpperCase();
+        if (base.matches("CON|PRN|AUX|NUL|COM[0-9]|LPT[0-9]"))
+            safe.insert(0, '_');
+        return safe.toString();
+    }
+
+
+    /**
+     * Rename the folder an earlier version saved a group in to the group's
+     * folder, if the group's folder does not exist yet and the archive in the
+     * old folder is of the same group
+     */
+    private static void adoptLegacyFolder(Path legacy, Path groupFolder, String groupID) {
+        if (Files.exists(groupFolder) || !Files.isDirectory(legacy))
+            return;
+        File archive = GroupAnalytics.findArchive(legacy.toFile());
+        if (archive == null)
+            return;
+        try {
+            if (!groupID.equals(archivedGroupID(archive)))
+                return;
+            Files.move(legacy, groupFolder);
+        } catch (IOException ex) {
+            // Left where it is; the group is archived into a new folder
+            Logger.getLogger(GroupArchiver.class.getName()).log(Level.WARNING, "Failed to move " + legacy, ex);
+        }
+    }
+
+
+    /**
+     * @param archive archive in any of the archive formats
+     * @return the ID of the group archived in it
+     * @throws IOException if the archive cannot be read
+     */
+    private static String archivedGroupID(File archive) throws IOException {
+        if (MessageStore.isMessageStore(archive)) {
+            try (MessageStore store = MessageStore.open(archive)) {
+                return store.getGroup().path("id").asText();
+            }
+        } else if (BinaryArchiveReader.isBinaryArchive(archive)) {
+            try (BinaryArchiveReader reader = BinaryArchiveReader.open(archive)) {
+                return reader.getGroup().path("id").asText();
+            }
+        }
+        return JsonArchiveReader.readHeader(archive).path("id").asText();
+    }
+
+
+    /**
+     * @param groupFolderPath folder of the group
+     * @return a sink writing every export format, or null if there are none
+     */
+    private MessageSink exportSink(Path groupFolderPath) {
+        List<MessageSink> sinks = new ArrayList<>();
+        for (String format : exportFormats) {
+            File file = Paths.get(groupFolderPath.toString(), messageFileName(format, range)).toFile();
+            if (format.equals(FORMAT_CSV))
+                sinks.add(new CsvExportWriter(file));
+            else if (format.equals(FORMAT_SEARCH))
+                sinks.add(new SearchIndexWriter(file));
+            else if (format.equals(FORMAT_HTML))
+                sinks.add(new HtmlExportWriter(file, downloadMedia));
+            else
+                sinks.add(new TranscriptExportWriter(file));
+        }
+        if (sinks.isEmpty())
+            return null;
+        return (sinks.size() == 1) ? sinks.get(0) : new TeeMessageSink(sinks);
+    }
+
+
+    /**
+     * @param format one of the FORMAT constants
+     * @return true if the format is an archive, which can be resumed and
+     *         updated, rather than an export
+     */
+    public static boolean isArchiveFormat(String format) {
+        return format.equals(FORMAT_JSON) || format.equals(FORMAT_JSON_GZIP) || format.equals(FORMAT_BINARY)
+                || format.equals(FORMAT_STORE);
+    }
+
+
+    /**
+     * @param messageFormat one of the FORMAT constants
+     * @return name of the file the messages are saved to in that format
+     * @throws IllegalArgumentException if the format is not supported
+     */
+    public static String messageFileName(String messageFormat) {
+        switch (messageFormat) {
+            case FORMAT_JSON:
+                return "messages.json";
+            case FORMAT_JSON_GZIP:
+                return "messages.json.gz";
+            case FORMAT_BINARY:
+                return "messages" + GroupMeAPI.BINARY_ARCHIVE_EXTENSION;
+            case FORMAT_STORE:
+                return "messages" + GroupMeAPI.MESSAGE_STORE_EXTENSION;
+            case FORMAT_CSV:
+                return "messages.csv";
+            case FORMAT_TEXT:
+                return "messages.txt";
+            case FORMAT_SEARCH:
+                return "messages" + SearchIndex.SEARCH_EXTENSION;
+            case FORMAT_HTML:
+                return "messages-html";
+            default:
+                throw new IllegalArgumentException("Unsupported message format " + messageFormat);
+        }
+    }
+
+
+    /**
+     * @param messageFormat one of the FORMAT constants
+     * @param range range of the messages saved
+     * @return name of the file the messages in the range are saved to in
+     *         that format
+     * @throws IllegalArgumentException if the format is not supported
+     */
+    public static String messageFileName(String messageFormat, DateRange range) {
+        String name = messageFileName(messageFormat);
+        return range.isAll() ? name : name.replaceFirst("^messages", "messages-" + range.label());
+    }
+
+
+    private static boolean makeFolder(File folder, ProgressListener progress) {
+        if ((!folder.exists() || !folder.isDirectory()) && !folder.mkdirs()) {
+            progress.error("Failed to create folder " + folder.getAbsolutePath());
+            return false;
+        }
+        return true;
+    }
+
+}
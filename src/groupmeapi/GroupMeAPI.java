@@ -7,8 +7,6 @@
 
 package groupmeapi;
 
-import static groupmearchivergui.GroupMeArchiverGUI.error;
-
 import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -18,18 +16,9 @@ import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.nio.file.FileAlreadyExistsException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.util.LinkedHashMap;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import javafx.application.Platform;
-import javafx.scene.control.ProgressBar;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 
 
@@ -37,6 +26,12 @@ public class GroupMeAPI {
     
     private static ObjectMapper mapper = null;
     
+    // File extension of binary message archives
+    public static final String BINARY_ARCHIVE_EXTENSION = ".gma";
+    
+    // Extension of message store folders
+    public static final String MESSAGE_STORE_EXTENSION = ".store";
+    
     private static void initObjectMapper() {
         if (mapper == null) {
             mapper = new ObjectMapper();
@@ -44,6 +39,14 @@ public class GroupMeAPI {
         }
     }
     
+    /**
+     * @return the shared ObjectMapper, initializing it if necessary
+     */
+    static ObjectMapper objectMapper() {
+        initObjectMapper();
+        return mapper;
+    }
+    
     /**
      * Return a list of groups of which the API_KEY-holding user is a member
      * 
@@ -51,26 +54,23 @@ public class GroupMeAPI {
      *       until there is an empty response list
      * 
      * @param API_KEY GroupMe API token
+     * @param progress listener told if the groups cannot be retrieved
      * @return Map of group names to group IDs
      */
-    public static LinkedHashMap<String, String> getGroups(String API_KEY) {
+    public static LinkedHashMap<String, String> getGroups(String API_KEY, ProgressListener progress) {
         // Get the group list from GroupMe
         LinkedHashMap<String, String> result = new LinkedHashMap<>();
         try {
-            String url = "https://api.groupme.com/v3/groups?omit=memberships&per_page=499&token=" + API_KEY;
-            InputStream inStream = new URL(url).openStream();
-        
             initObjectMapper();
-            JsonNode groupList = mapper.readTree(inStream).path("response");
+            JsonNode groupList = HttpTransport.shared().getJson("/groups",
+                    "omit", "memberships", "per_page", "499", "token", API_KEY).path("response");
             
             for (JsonNode group : groupList) {
                 result.put(group.path("name").asText(), group.path("group_id").asText());
             }
         } catch (Exception ex) {
-            Platform.runLater(() -> {
-                error("An unexpected error occurred while getting data from GroupMe. "
-                        + "Possibly, the response was malformed");
-            });
+            progress.error("An unexpected error occurred while getting data from GroupMe. "
+                    + "Possibly, the response was malformed");
             ex.printStackTrace();
             return null;
         }
@@ -84,22 +84,19 @@ public class GroupMeAPI {
      * 
      * @param API_KEY GroupMe API token
      * @param groupID ID of the group whose info will be retrieved
+     * @param progress listener told if the info cannot be retrieved
      * @return Parsed JSON object with group information
      */
-    public static ObjectNode getGroupInfo(String API_KEY, String groupID) {
+    public static ObjectNode getGroupInfo(String API_KEY, String groupID, ProgressListener progress) {
         try {
-            String url = "https://api.groupme.com/v3/groups/" + groupID + "?token=" + API_KEY;
-            InputStream inStream = new URL(url).openStream();
-            
             initObjectMapper();
-            ObjectNode response = (ObjectNode) mapper.readTree(inStream).path("response");
+            ObjectNode response = (ObjectNode) HttpTransport.shared().getJson("/groups/" + groupID,
+                    "token", API_KEY).path("response");
             
             return response;
         } catch (Exception ex) {
-            Platform.runLater(() -> {
-                error("An unexpected error occurred while getting data from GroupMe. "
-                        + "Possibly, the response was malformed");
-            });
+            progress.error("An unexpected error occurred while getting data from GroupMe. "
+                    + "Possibly, the response was malformed");
             ex.printStackTrace();
             return null;
         }
@@ -107,291 +104,385 @@ public class GroupMeAPI {
     
     
     /**
-     * Download all of the messages associated with the group and add them to a
-     * list of messages in the groupInfo node
+     * Download all of the messages associated with the group, handing each page
+     * to the sink as soon as it arrives instead of collecting them in the group
+     * node. Only the messages with media are kept, as compact Message objects
+     * in the media list, so memory use is bounded by one page (plus a little
+     * per message with media) regardless of group size.
      * 
-     * @param group ObjectNode with information and messages of the group to be archived
+     * @param group ObjectNode with information of the group to be archived
      * @param groupID ID of the group for use in the GroupMe API
      * @param API_KEY GroupMe API Token
-     * @param progressBar ProgressBar to be updated as it proceeds
+     * @param sink destination for each page of messages, or null to only
+     *             collect the media list
+     * @param range only messages sent within this range are fetched
+     * @param media list to add the messages with media to, or null
+     * @param progress listener to be updated as it proceeds
+     * @return true if every page was fetched and written
      */
-    public static void getMessages(ObjectNode group, String groupID, String API_KEY, ProgressBar progressBar) {
+    public static boolean streamMessages(ObjectNode group, String groupID, String API_KEY, MessageSink sink, DateRange range,
+            List<Message> media, ProgressListener progress) {
+        boolean done = false;
         try {
-            // Get first 100 messages
-            String url = "https://api.groupme.com/v3/groups/" + groupID + "/messages?limit=100&token=" + API_KEY;
-            InputStream inStream = new URL(url).openStream();
-            
             initObjectMapper();
-            ObjectNode response = (ObjectNode) mapper.readTree(inStream).path("response");
-            ArrayNode messages = (ArrayNode) response.path("messages");
-            int totalCount = response.path("count").asInt();
+            if (sink != null)
+                sink.begin(group);
             
-            ArrayNode messageList = group.with("messages").withArray("message_list");
-            messageList.addAll(messages);
+            int totalCount = group.path("messages").path("count").asInt();
+            pageMessages(group, groupID, API_KEY, sink, range, media, null, null, 0, totalCount, progress);
             
-            // Get remaining messages
-            while (messageList.size() < totalCount) {
-                Platform.runLater(() -> {
-                    progressBar.setProgress((double) messageList.size() / totalCount);
-                });
-                
-                String beforeId = messageList.get(messageList.size() - 1).path("id").asText();
-                url = "https://api.groupme.com/v3/groups/" + groupID + "/messages?limit=100&before_id=" + beforeId + "&token=" + API_KEY;
-                inStream = new URL(url).openStream();
-                
-                response = (ObjectNode) mapper.readTree(inStream).path("response");
-                messages = (ArrayNode) response.path("messages");
-                messageList.addAll(messages);
-            }
-            Platform.runLater(() -> {
-                progressBar.setProgress((double) 1.0);
-            });
+            if (sink != null)
+                sink.end();
+            done = true;
+            return true;
         } catch (Exception ex) {
-            Platform.runLater(new Runnable() {
-                @Override
-                public void run() {
-                    error("An unexpected error occurred while getting data from GroupMe. "
-                        + "Possibly, the response was malformed");
-                }
-            });
+            progress.error("An unexpected error occurred while getting data from GroupMe. "
+                    + "Possibly, the response was malformed");
             ex.printStackTrace();
+            return false;
+        } finally {
+            if (!done && sink != null)
+                sink.abort();
         }
     }
     
     
     /**
-     * Write an object node out to a file as JSON
+     * Download the messages of a group into an archive -- a binary one (see
+     * BinaryArchiveWriter) if messageFile ends in BINARY_ARCHIVE_EXTENSION, a
+     * message store folder (see MessageStoreWriter) if it ends in
+     * MESSAGE_STORE_EXTENSION, otherwise JSON. If update is set, an interrupted earlier run is resumed
+     * from its checkpoint, or else only the messages newer than those already
+     * in messageFile are downloaded and merged in front of them. Otherwise the
+     * whole history is downloaded again.
      * 
-     * @param node node whose data will be written
-     * @param outfile file to write to
+     * With a date range, only the messages within it are downloaded, into a
+     * new archive: it is neither resumed nor merged with an existing one,
+     * since that could leave gaps in the history.
+     * 
+     * As with streamMessages, the messages with media are collected in the
+     * media list, including those written before an interruption.
+     * 
+     * The exports (if any) are written in the same pass, and still receive
+     * every message when the archive is resumed or updated: first the pages
+     * written before an interruption, then the downloaded ones, then those of
+     * the archive being updated.
+     * 
+     * @param group ObjectNode with information of the group to be archived
+     * @param groupID ID of the group for use in the GroupMe API
+     * @param API_KEY GroupMe API Token
+     * @param messageFile archive file to create or update
+     * @param exports other formats to write in the same pass, or null
+     * @param range only messages sent within this range are downloaded
+     * @param update whether to reuse an existing archive or checkpoint
+     * @param media list to add the messages with media to, or null
+     * @param progress listener to be updated as it proceeds
+     * @return true if the archive was completed
      */
-    public static void writeObjectNode(ObjectNode node, File outfile) {
-        // Write the files
-        ObjectWriter writer = mapper.writer(new DefaultPrettyPrinter());
+    public static boolean archiveMessages(ObjectNode group, String groupID, String API_KEY, File messageFile,
+            MessageSink exports, DateRange range, boolean update, List<Message> media, ProgressListener progress) {
+        ArchiveWriter writer = null;
+        boolean done = false;
         try {
-            writer.writeValue(outfile, node);
+            initObjectMapper();
+            update = update && range.isAll();
+            int totalCount = group.path("messages").path("count").asInt();
+            if (messageFile.getName().endsWith(BINARY_ARCHIVE_EXTENSION))
+                writer = new BinaryArchiveWriter(messageFile);
+            else if (messageFile.getName().endsWith(MESSAGE_STORE_EXTENSION))
+                writer = new MessageStoreWriter(messageFile);
+            else
+                writer = new JsonArchiveWriter(messageFile);
+            
+            if (update && writer.resume()) {
+                // Recover the media list of the pages written before the interruption
+                if (exports != null)
+                    exports.begin(group);
+                writer.forEachWrittenPage((page) -> {
+                    collectMedia(page, media);
+                    if (exports != null)
+                        exports.page(page);
+                });
+            } else {
+                if (update)
+                    writer.mergeWithExisting();
+                writer.begin(group);
+                if (exports != null)
+                    exports.begin(group);
+            }
+            
+            MessageSink sink = writer;
+            if (exports != null) {
+                writer.setMergedPageHandler(exports::page);
+                sink = new TeeMessageSink(writer, exports);
+            }
+            int expected = totalCount - (writer.getUntilId() == null ? 0 : writer.getUntilCount());
+            pageMessages(group, groupID, API_KEY, sink, range, media, writer.getResumeBeforeId(), writer.getUntilId(),
+                    writer.getWritten(), Math.max(expected, 1), progress);
+            writer.end();
+            if (exports != null)
+                exports.end();
+            done = true;
+            return true;
         } catch (Exception ex) {
-            Platform.runLater(new Runnable() {
-                @Override
-                public void run() {
-                    error("An unexpected error occurred while saving the file.");
-                }
-            });
+            progress.error("An unexpected error occurred while getting data from GroupMe. "
+                    + "Possibly, the response was malformed");
             ex.printStackTrace();
+            return false;
+        } finally {
+            // Close whatever is still open, keeping the partial archive to resume
+            if (!done && writer != null)
+                writer.abort();
+            if (!done && exports != null)
+                exports.abort();
         }
     }
     
     
     /**
-     * Count the number of messages with downloadable media attachments
+     * Page backwards through a group's messages, handing each page to the sink
+     * and collecting the messages with media
      * 
-     * @param group JSON object with messages with media attachments to count
-     * @return the number of messages with downloadable attachments
+     * With a date range, paging starts at the end of the range if the group's
+     * message ids allow it (see idsFollowTime), stops at the first message
+     * older than its start, and only messages within it are kept.
+     * 
+     * The pages are fetched and parsed ahead by a MessagePager while the
+     * previous ones are written.
+     * 
+     * @param group ObjectNode with information of the group to be archived
+     * @param groupID ID of the group for use in the GroupMe API
+     * @param API_KEY GroupMe API Token
+     * @param sink destination for each page of messages, or null
+     * @param range only messages sent within this range are kept
+     * @param media list to add the messages with media to, or null
+     * @param beforeId id to start paging before, or null to start at the newest
+     * @param untilId stop once this message (or an older one) is reached, or
+     *                null to page until the oldest message
+     * @param seen number of messages already handled, for progress
+     * @param expected number of messages expected in total, for progress
+     * @param progress listener to be updated as it proceeds
+     * @throws IOException if a page cannot be fetched or written
      */
-    public static int countMedia(ObjectNode group) {
-        ArrayNode mediaList = group.withArray("media_list");
+    private static void pageMessages(ObjectNode group, String groupID, String API_KEY, MessageSink sink, DateRange range,
+            List<Message> media, String beforeId, String untilId, int seen, int expected, ProgressListener progress) throws IOException {
+        boolean done = false;
         
-        for (JsonNode message : group.with("messages").withArray("message_list")) {
-            ArrayNode attachments = ((ObjectNode) message).withArray("attachments");
-            for (JsonNode attachment : attachments) {
-                String type = attachment.path("type").asText();
-                if (type.equals("image") || type.equals("linked_image") || type.equals("video")) {
-                    mediaList.add(message);
+        // With a range, progress is how far back in time the paging has got
+        long newest = Math.min(range.getTo(), group.path("messages").path("last_message_created_at").asLong(Long.MAX_VALUE - 1) + 1);
+        long oldest = Math.max(range.getFrom(), group.path("created_at").asLong(0));
+        
+        if (beforeId == null && range.hasEnd() && idsFollowTime(group)) {
+            // Skip the newer pages by starting at the first id after the range
+            beforeId = Long.toString(range.getTo()) + "00000000";
+        }
+        
+        try (MessagePager pager = new MessagePager(groupID, API_KEY, range, beforeId, untilId, seen, expected)) {
+            ArrayNode messages;
+            while (!done && (messages = pager.next()) != null) {
+                long reached = messages.get(messages.size() - 1).path("created_at").asLong();
+                
+                // Drop everything from the first message that is already archived
+                if (untilId != null) {
+                    for (int i = 0; i < messages.size(); i++) {
+                        if (compareIds(messages.get(i).path("id").asText(), untilId) <= 0) {
+                            while (messages.size() > i)
+                                messages.remove(messages.size() - 1);
+                            done = true;
+                            break;
+                        }
+                    }
                 }
+                
+                // Keep only the range, and stop at the first message before it
+                if (!range.isAll()) {
+                    ArrayNode inRange = mapper.createArrayNode();
+                    for (JsonNode message : messages) {
+                        long createdAt = message.path("created_at").asLong();
+                        if (createdAt < range.getFrom()) {
+                            done = true;
+                            break;
+                        }
+                        if (range.contains(createdAt))
+                            inRange.add(message);
+                    }
+                    messages = inRange;
+                }
+                
+                if (sink != null)
+                    sink.page(messages);
+                collectMedia(messages, media);
+                
+                seen += messages.size();
+                progress.messages(messages.size());
+                double fraction;
+                if (range.isAll()) {
+                    fraction = (double) seen / expected;
+                } else {
+                    fraction = (newest <= oldest) ? 0 : (double) (newest - reached) / (newest - oldest);
+                }
+                progress.progress(Math.max(0, Math.min(fraction, 1.0)));
             }
         }
         
-        return mediaList.size();
+        progress.progress(1.0);
     }
     
     
     /**
-     * Download all possible media files
+     * GroupMe message ids start with the time the message was sent followed
+     * by eight more digits, so an id can be made up that comes just after any
+     * time. Check that this holds for a group's newest message before relying
+     * on it.
      * 
-     * @param group object with list of messages with attachments to download
-     * @param mediaFolder folder in which to save downloaded media
-     * @param totalCount total number of media files to be downloaded -- used for progressBar
-     * @param progressBar progress bar object to be updated with progress
+     * @param group group information returned by getGroupInfo
+     * @return true if the group's message ids start with their created_at
      */
-    public static void downloadMedia(ObjectNode group, File mediaFolder, int totalCount, ProgressBar progressBar) {
-        JsonNode[] messageList = mapper.convertValue(group.with("messages").withArray("message_list"), JsonNode[].class);
-        downloadMediaFromMessages(messageList, mediaFolder, totalCount, progressBar);
+    static boolean idsFollowTime(JsonNode group) {
+        String lastId = group.path("messages").path("last_message_id").asText();
+        long lastCreatedAt = group.path("messages").path("last_message_created_at").asLong(-1);
+        if (lastId.length() != 18 || lastCreatedAt < 0)
+            return false;
+        try {
+            return Math.abs(Long.parseLong(lastId.substring(0, 10)) - lastCreatedAt) <= 1;
+        } catch (NumberFormatException ex) {
+            return false;
+        }
     }
     
     
     /**
-     * Loop over the messageList downloading each message attachment to the
-     * mediaFolder on a single thread
+     * Compare two GroupMe message ids, which are decimal numbers too large for
+     * a long in some groups
      * 
-     * @param messageList list of JsonNodes, each of which is a message
-     * @param mediaFolder folder into which media will be downloaded
-     * @param totalCount total expected number of media files to download
-     * @param progressBar ProgressBar object to be updated as media is downloaded
+     * @param a first id
+     * @param b second id
+     * @return negative, zero or positive as a is older than, equal to or newer
+     *         than b
      */
-    private static void downloadMediaFromMessages(JsonNode[] messageList, File mediaFolder, int totalCount, ProgressBar progressBar) {
-        int seen = 0;
-        
-        for (JsonNode message : messageList) {
-            if (message == null)
-                continue;
-            ArrayNode attachments = ((ObjectNode) message).withArray("attachments");
-            for (JsonNode attachment : attachments) {
-                String type = attachment.path("type").asText();
-                if (type.equals("image") || type.equals("linked_image") || type.equals("video")) {
-                    double progress = (double) seen / totalCount;
-                    Platform.runLater(() -> {
-                        progressBar.setProgress(progress);
-                    });
-                    
-                    // Get filename
-                    String url = attachment.path("url").asText();
-                    String fileName = url.split("/")[url.split("/").length - 1];
-                    fileName = message.path("created_at").asText() + "." + fileName;
-                    // Add the correct file extension (remove the 'e' from 'jpeg' if applicable)
-                    for (String s : new String[]{"gif", "jpeg", "png"}) {
-                        fileName = (fileName.contains(s) ? fileName + "." + s.replace("e", "") : fileName);
-                    }
-                    
-                    // Download
-                    try {
-                        InputStream in = new URL(url).openStream();
-                        Files.copy(in, Paths.get(mediaFolder.getAbsolutePath(), fileName));
-                    } catch (FileAlreadyExistsException ex) {
-                        // Pass
-                    } catch (MalformedURLException ex) {
-                        Logger.getLogger(GroupMeAPI.class.getName()).log(Level.SEVERE, null, ex);
-                    } catch (IOException ex) {
-                        Logger.getLogger(GroupMeAPI.class.getName()).log(Level.SEVERE, null, ex);
-                    } catch (Exception ex) {
-                        // Pass
-                    }
-                    
-                    seen++;
-                }
-            }
-        }
-        Platform.runLater(() -> {
-            progressBar.setProgress((double) 1.0);
-        });
+    static int compareIds(String a, String b) {
+        if (a.length() != b.length())
+            return Integer.compare(a.length(), b.length());
+        return a.compareTo(b);
     }
     
     
     /**
-     * Download the media from a single message (i.e. consume from producer)
+     * Add a compact copy of each message with media to the media list
      * 
-     * @param message the message whose attachments to download
-     * @param mediaFolder the folder into which to save the downloaded attachments
+     * @param messages page of messages
+     * @param media list to add to, or null
      */
-    private static void downloadMediaSingle(JsonNode message, File mediaFolder) {
-        if (message == null)
+    static void collectMedia(ArrayNode messages, List<Message> media) {
+        if (media == null)
             return;
-        ArrayNode attachments = ((ObjectNode) message).withArray("attachments");
-        for (JsonNode attachment : attachments) {
-            String type = attachment.path("type").asText();
-            if (type.equals("image") || type.equals("linked_image") || type.equals("video")) {
-                // Get filename
-                String url = attachment.path("url").asText();
-                String fileName = url.split("/")[url.split("/").length - 1];
-                fileName = message.path("created_at").asText() + "." + fileName;
-                // Add the correct file extension (remove the 'e' from 'jpeg' if applicable)
-                for (String s : new String[]{"gif", "jpeg", "png"}) {
-                    fileName = (fileName.contains(s) ? fileName + "." + s.replace("e", "") : fileName);
-                }
-
-                // Download
-                try {
-                    InputStream in = new URL(url).openStream();
-                    Files.copy(in, Paths.get(mediaFolder.getAbsolutePath(), fileName));
-                } catch (FileAlreadyExistsException ex) {
-                    // Pass
-                } catch (MalformedURLException ex) {
-                    Logger.getLogger(GroupMeAPI.class.getName()).log(Level.SEVERE, null, ex);
-                } catch (IOException ex) {
-                    Logger.getLogger(GroupMeAPI.class.getName()).log(Level.SEVERE, null, ex);
-                } catch (Exception ex) {
-                    // Pass
-                }
-            }
+        for (JsonNode message : messages) {
+            if (hasMedia(message))
+                media.add(Message.of(message));
         }
     }
     
     
     /**
-     * Produce messages for threads to download and consume -- used for
-     * synchronizing various consumer threads that independently download media
+     * @param message message to check
+     * @return true if the message has at least one downloadable attachment
      */
-    private static class MessageProducer {
-        int index;
-        JsonNode[] messageList;
-        ReentrantLock lock;
-        ProgressBar progressBar;
-        Runnable onCompletion;
-        
-        public MessageProducer(JsonNode[] messageList, ProgressBar progressBar, Runnable onCompletion) {
-            this.index = 0;
-            this.messageList = messageList;
-            this.lock = new ReentrantLock();
-            this.progressBar = progressBar;
-            this.onCompletion = onCompletion; // Useful for changing UI when done
-        }
-        
-        public JsonNode produce() {
-            JsonNode result = null;
-            
-            this.lock.lock();
-            
-            try {
-                if (this.index < this.messageList.length) {
-                    result = this.messageList[this.index++];
-                } else {
-                    this.onCompletion.run();
-                }
-
-                double progress = (double) this.index / this.messageList.length;
-                Platform.runLater(() -> {
-                    progressBar.setProgress(progress);
-                });
-            } finally {
-                this.lock.unlock();
+    static boolean hasMedia(JsonNode message) {
+        for (JsonNode attachment : message.path("attachments")) {
+            if (isMedia(attachment)) {
+                return true;
             }
-            
-            return result;
         }
+        return false;
     }
     
     
     /**
-     * Download media from all messages that have it and save to the mediaFolder.
-     * Create numThreads threads to use and have main thread use producer-consumer
-     * solution to synchronize threads' downloading of files
+     * Write an object node out to a file as JSON
      * 
-     * @param group group object from which media will be downloaded
-     * @param mediaFolder folder into which downloaded media will be saved
-     * @param numThreads number of threads to use for downloading
-     * @param progressBar ProgressBar object to be updated as files are downloaded
-     * @param onCompletion run once the files have completed downloading
+     * @param node node whose data will be written
+     * @param outfile file to write to
+     * @param progress listener told if the file cannot be written
      */
-    public static void downloadMediaMultithreaded(ObjectNode group, File mediaFolder, int numThreads, ProgressBar progressBar, Runnable onCompletion) {
-        JsonNode[] messageList = mapper.convertValue(group.withArray("media_list"), JsonNode[].class);
-        MessageProducer producer = new MessageProducer(messageList, progressBar, onCompletion);
-        
-        Thread[] threads = new Thread[numThreads];
-        
-        for (int i=0; i < numThreads; i++) {
-            threads[i] = new Thread() {
-                @Override
-                public void run() {
-                    JsonNode message = producer.produce();
-                    while (message != null) {
-                        downloadMediaSingle(message, mediaFolder);
-                        message = producer.produce();
-                    }
-                }
-            };
-            
-            threads[i].start();
+    public static void writeObjectNode(ObjectNode node, File outfile, ProgressListener progress) {
+        // Write the files
+        ObjectWriter writer = mapper.writer(new DefaultPrettyPrinter());
+        try {
+            writer.writeValue(outfile, node);
+        } catch (Exception ex) {
+            progress.error("An unexpected error occurred while saving the file.");
+            ex.printStackTrace();
         }
-        
+    }
+    
+    
+    /**
+     * Download all possible media files on the calling thread
+     * 
+     * @param media messages with attachments to download
+     * @param store store shared by the archived groups that files are downloaded into
+     * @param mediaFolder folder in which to link the downloaded media
+     * @param progress listener to be updated with progress
+     */
+    public static void downloadMedia(List<Message> media, MediaStore store, File mediaFolder, ProgressListener progress) {
+        new MediaDownloader(store, 1).download(media, mediaFolder, progress).join();
+    }
+    
+    
+    /**
+     * Download media from all messages that have it and save to the mediaFolder,
+     * with at most maxDownloads files being downloaded at once
+     * 
+     * @param media messages with attachments to download
+     * @param store store shared by the archived groups that files are downloaded into
+     * @param mediaFolder folder in which to link the downloaded media
+     * @param maxDownloads maximum number of files to download at the same time
+     * @param progress listener to be updated as files are downloaded
+     * @return completed once every file has been attempted, with the number of
+     *         files that could not be downloaded
+     */
+    public static CompletableFuture<Integer> downloadMediaConcurrently(List<Message> media, MediaStore store, File mediaFolder, int maxDownloads, ProgressListener progress) {
+        return new MediaDownloader(store, maxDownloads).download(media, mediaFolder, progress);
+    }
+    
+    
+    /**
+     * @param attachment attachment of a message
+     * @return true if the attachment is a file that can be downloaded
+     */
+    public static boolean isMedia(JsonNode attachment) {
+        String type = attachment.path("type").asText();
+        return type.equals("image") || type.equals("linked_image") || type.equals("video");
+    }
+    
+    
+    /**
+     * @param message message the attachment belongs to
+     * @param attachment media attachment
+     * @return file name for the attachment
+     */
+    public static String mediaFileName(Message message, Message.Attachment attachment) {
+        String url = attachment.getUrl();
+        return mediaFileName(Long.toString(message.getCreatedAt()), (url == null) ? "" : url);
+    }
+    
+    
+    /**
+     * Name under which a media attachment is saved: the time the message was
+     * sent followed by the last part of the URL and a file extension
+     * 
+     * @param createdAt created_at of the message the attachment belongs to
+     * @param url URL of the attachment
+     * @return file name for the attachment
+     */
+    static String mediaFileName(String createdAt, String url) {
+        String fileName = url.split("/")[url.split("/").length - 1];
+        fileName = createdAt + "." + fileName;
+        // Add the correct file extension (remove the 'e' from 'jpeg' if applicable)
+        for (String s : new String[]{"gif", "jpeg", "png"}) {
+            fileName = (fileName.contains(s) ? fileName + "." + s.replace("e", "") : fileName);
+        }
+        return fileName;
     }
 
 }
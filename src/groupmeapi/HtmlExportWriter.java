@@ -0,0 +1,474 @@
+/**
+ * Export messages as a folder of static web pages that can be opened straight
+ * from the disk, however large the group:
+ *
+ *   index.html         the group, and a link to every page by month
+ *   page-00001.html    the newest messages, oldest first within the page
+ *   page-00002.html    the messages before those, and so on
+ *   style.css
+ *
+ * Each page holds at most PAGE_MESSAGES messages and never spans two months,
+ * so no page is too long for a browser however many messages the group has.
+ * Pages are numbered in the order the messages arrive (newest first), which
+ * means each page can be written as soon as it is full: only the page being
+ * filled and the one before it (held back until it is known whether an older
+ * page follows it) are ever in memory.
+ *
+ * Images are shown as thumbnails of the files in the group's media folder,
+ * with their size set from the dimensions in the URL so the browser can load
+ * them lazily as they scroll into view. Without downloaded media the pages
+ * refer to GroupMe's copies instead, as long as they are http or https URLs;
+ * other attachments are only described.
+ *
+ * Like the message store, the export is written to a ".part" folder and moved
+ * into place when it is complete.
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+
+public class HtmlExportWriter implements MessageSink {
+
+    // Most messages on one page
+    public static final int PAGE_MESSAGES = 1000;
+
+    // Largest size a thumbnail is shown at
+    private static final int THUMBNAIL_WIDTH = 320;
+    private static final int THUMBNAIL_HEIGHT = 240;
+
+    // GroupMe image URLs start with the dimensions, e.g. .../1024x768.jpeg.<hash>
+    private static final Pattern IMAGE_DIMENSIONS = Pattern.compile("/(\\d{1,5})x(\\d{1,5})\\.[^/]*$");
+
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZONE);
+    private static final DateTimeFormatter MONTH_FORMAT = DateTimeFormatter.ofPattern("MMMM yyyy");
+
+    private static final String STYLE = String.join("\n",
+            "body { font-family: sans-serif; max-width: 760px; margin: 0 auto; padding: 0 12px; color: #222; }",
+            "nav { margin: 16px 0; }",
+            "nav a { margin-right: 12px; }",
+            ".m { padding: 6px 0; border-bottom: 1px solid #eee; }",
+            ".m p { margin: 2px 0; white-space: pre-wrap; overflow-wrap: break-word; }",
+            ".s { color: #777; font-style: italic; }",
+            "time, .likes, .a { color: #888; font-size: 0.85em; }",
+            "img, video { display: block; max-width: " + THUMBNAIL_WIDTH + "px; max-height: " + THUMBNAIL_HEIGHT
+                    + "px; margin: 4px 0; background: #f3f3f3; }",
+            "img:not([width]) { min-width: 80px; min-height: 80px; }",
+            "table { border-collapse: collapse; }",
+            "td { padding: 2px 12px 2px 0; vertical-align: top; }",
+            "");
+
+    private final File outfile;
+    private final File partFile;
+    private final boolean localMedia;
+    private ObjectNode group;
+    private String groupName;
+
+    // Messages of the page being filled, newest first, already formatted
+    private final List<String> current = new ArrayList<>();
+    private YearMonth currentMonth;
+    private long currentNewest;
+    private long currentOldest;
+    // Last full page, written once the page after it is started
+    private Page held;
+    private String heldBody;
+    private final List<Page> pages = new ArrayList<>();
+    private int written;
+
+    /**
+     * A page of the export, numbered from 1 for the newest
+     */
+    private static class Page {
+        final int number;
+        final YearMonth month;
+        final int messages;
+        final long oldest;
+        final long newest;
+
+        Page(int number, YearMonth month, int messages, long oldest, long newest) {
+            this.number = number;
+            this.month = month;
+            this.messages = messages;
+            this.oldest = oldest;
+            this.newest = newest;
+        }
+    }
+
+
+    /**
+     * @param outfile folder to write the export to -- replaced once the new
+     *                export is complete
+     * @param localMedia whether the media is downloaded into the media folder
+     *                   beside outfile, rather than only on GroupMe
+     */
+    public HtmlExportWriter(File outfile, boolean localMedia) {
+        this.outfile = outfile;
+        this.partFile = new File(outfile.getPath() + ".part");
+        this.localMedia = localMedia;
+    }
+
+
+    @Override
+    public void begin(ObjectNode group) throws IOException {
+        this.group = group;
+        this.groupName = group.path("name").asText();
+        deleteFolder(partFile);
+        Files.createDirectories(partFile.toPath());
+        write("style.css", STYLE);
+
+        current.clear();
+        currentMonth = null;
+        held = null;
+        heldBody = null;
+        pages.clear();
+        written = 0;
+    }
+
+
+    /**
+     * Add a page of messages to the page being filled, starting a new page
+     * whenever it is full or the month changes
+     *
+     * @param messages page of messages, newest first
+     * @throws IOException if a finished page cannot be written
+     */
+    @Override
+    public void page(ArrayNode messages) throws IOException {
+        StringBuilder html = new StringBuilder(512);
+        for (JsonNode message : messages) {
+            long createdAt = message.path("created_at").asLong();
+            YearMonth month = YearMonth.from(Instant.ofEpochSecond(createdAt).atZone(ZONE));
+            if (!current.isEmpty() && (current.size() >= PAGE_MESSAGES || !month.equals(currentMonth)))
+                seal();
+            if (current.isEmpty()) {
+                currentMonth = month;
+                currentNewest = createdAt;
+            }
+            currentOldest = createdAt;
+
+            html.setLength(0);
+            formatMessage(message, html);
+            current.add(html.toString());
+            written++;
+        }
+    }
+
+
+    /**
+     * Write the last pages and the index, and move the export into place
+     *
+     * @throws IOException if the export cannot be finished
+     */
+    @Override
+    public void end() throws IOException {
+        if (!current.isEmpty())
+            seal();
+        if (held != null)
+            writePage(held, heldBody, false);
+        held = null;
+        heldBody = null;
+        writeIndex();
+
+        deleteFolder(outfile);
+        try {
+            Files.move(partFile.toPath(), outfile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(partFile.toPath(), outfile.toPath());
+        }
+    }
+
+
+    /**
+     * Delete the pages written so far; no file is kept open between pages, and
+     * the export is written again from the start by the next run
+     */
+    @Override
+    public void abort() {
+        try {
+            deleteFolder(partFile);
+        } catch (IOException ex) {
+            // The run has already failed
+        }
+    }
+
+
+    /**
+     * @return number of messages exported so far
+     */
+    public int getWritten() {
+        return written;
+    }
+
+
+    /**
+     * Finish the page being filled: write the page held back before it, now
+     * that it is known to have an older page, and hold this one back instead
+     */
+    private void seal() throws IOException {
+        Page page = new Page(pages.size() + 1, currentMonth, current.size(), currentOldest, currentNewest);
+        pages.add(page);
+        StringBuilder body = new StringBuilder(current.size() * 256);
+        for (int i = current.size() - 1; i >= 0; i--) {
+            body.append(current.get(i));
+        }
+        current.clear();
+
+        if (held != null)
+            writePage(held, heldBody, true);
+        held = page;
+        heldBody = body.toString();
+    }
+
+
+    private void writePage(Page page, String body, boolean hasOlder) throws IOException {
+        StringBuilder nav = new StringBuilder("<nav><a href=\"index.html\">").append(escape(groupName)).append("</a>");
+        if (hasOlder)
+            nav.append("<a href=\"").append(pageName(page.number + 1)).append("\">&larr; Older</a>");
+        if (page.number > 1)
+            nav.append("<a href=\"").append(pageName(page.number - 1)).append("\">Newer &rarr;</a>");
+        nav.append("</nav>\n");
+
+        String title = page.month.format(MONTH_FORMAT);
+        StringBuilder html = new StringBuilder(body.length() + 1024);
+        head(html, groupName + " \u2013 " + title);
+        html.append(nav).append("<h1>").append(escape(title)).append("</h1>\n");
+        html.append(body).append(nav).append("</body>\n</html>\n");
+        write(pageName(page.number), html);
+    }
+
+
+    /**
+     * Write index.html: the group, then its pages by month, oldest first
+     */
+    private void writeIndex() throws IOException {
+        StringBuilder html = new StringBuilder(pages.size() * 96 + 1024);
+        head(html, groupName);
+        html.append("<h1>").append(escape(groupName)).append("</h1>\n");
+        String description = group.path("description").asText();
+        if (!description.isEmpty())
+            html.append("<p>").append(escape(description)).append("</p>\n");
+        html.append("<p>").append(written).append(written == 1 ? " message" : " messages").append("</p>\n");
+
+        html.append("<table>\n");
+        int year = -1;
+        for (int i = pages.size() - 1; i >= 0; ) {
+            YearMonth month = pages.get(i).month;
+            if (month.getYear() != year) {
+                year = month.getYear();
+                html.append("<tr><td colspan=\"3\"><h2>").append(year).append("</h2></td></tr>\n");
+            }
+            int messages = 0;
+            StringBuilder links = new StringBuilder();
+            for (; i >= 0 && pages.get(i).month.equals(month); i--) {
+                Page page = pages.get(i);
+                messages += page.messages;
+                if (links.length() > 0)
+                    links.append(" &middot; ");
+                links.append("<a href=\"").append(pageName(page.number)).append("\">")
+                        .append(dayOfMonth(page.oldest));
+                if (dayOfMonth(page.newest) != dayOfMonth(page.oldest))
+                    links.append("&ndash;").append(dayOfMonth(page.newest));
+                links.append("</a>");
+            }
+            html.append("<tr><td>").append(escape(month.format(MONTH_FORMAT))).append("</td><td>").append(messages)
+                    .append("</td><td>").append(links).append("</td></tr>\n");
+        }
+        html.append("</table>\n</body>\n</html>\n");
+        write("index.html", html);
+    }
+
+
+    private void formatMessage(JsonNode message, StringBuilder out) {
+        boolean system = message.path("system").asBoolean() || message.path("sender_type").asText().equals("system");
+        out.append("<div class=\"m").append(system ? " s" : "").append("\" id=\"m")
+                .append(escape(message.path("id").asText())).append("\">");
+        if (!system)
+            out.append("<b>").append(escape(message.path("name").asText())).append("</b> ");
+        out.append("<time>").append(TIME_FORMAT.format(Instant.ofEpochSecond(message.path("created_at").asLong())))
+                .append("</time>");
+        int favorites = message.path("favorited_by").size();
+        if (favorites > 0)
+            out.append(" <span class=\"likes\">&hearts; ").append(favorites).append("</span>");
+
+        String text = message.path("text").asText();
+        if (!text.isEmpty())
+            out.append("<p>").append(escape(text)).append("</p>");
+
+        for (JsonNode attachment : message.path("attachments")) {
+            String type = attachment.path("type").asText();
+            String src = GroupMeAPI.isMedia(attachment) ? mediaSource(message, attachment) : null;
+            if (src != null) {
+                if (type.equals("video")) {
+                    out.append("<video src=\"").append(src).append("\" preload=\"none\" controls></video>");
+                } else {
+                    out.append("<a href=\"").append(src).append("\"><img src=\"").append(src).append('"');
+                    thumbnailSize(attachment.path("url").asText(), out);
+                    out.append(" loading=\"lazy\" decoding=\"async\" alt=\"\"></a>");
+                }
+            } else if (!type.equals("mentions")) {
+                out.append("<p class=\"a\">(").append(escape(TextExportWriter.describeAttachment(attachment)))
+                        .append(")</p>");
+            }
+        }
+        out.append("</div>\n");
+    }
+
+
+    /**
+     * Give an image the size it will be shown at, so the page does not move
+     * as images load and the browser knows which ones are out of view
+     */
+    private static void thumbnailSize(String url, StringBuilder out) {
+        Matcher dimensions = IMAGE_DIMENSIONS.matcher(url);
+        if (!dimensions.find())
+            return;
+        int width = Integer.parseInt(dimensions.group(1));
+        int height = Integer.parseInt(dimensions.group(2));
+        if (width == 0 || height == 0)
+            return;
+        double scale = Math.min(1.0, Math.min((double) THUMBNAIL_WIDTH / width, (double) THUMBNAIL_HEIGHT / height));
+        out.append(" width=\"").append(Math.max(1, Math.round(width * scale)))
+                .append("\" height=\"").append(Math.max(1, Math.round(height * scale))).append('"');
+    }
+
+
+    private static void head(StringBuilder html, String title) {
+        html.append("<!DOCTYPE html>\n<html>\n<head>\n<meta charset=\"utf-8\">\n")
+                .append("<meta name=\"viewport\" content=\"width=device-width, initial-scale=1\">\n")
+                .append("<title>").append(escape(title)).append("</title>\n")
+                .append("<link rel=\"stylesheet\" href=\"style.css\">\n</head>\n<body>\n");
+    }
+
+
+    private void write(String name, CharSequence content) throws IOException {
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(new File(partFile, name)), StandardCharsets.UTF_8), 1 << 16)) {
+            out.append(content);
+        }
+    }
+
+
+    private static String pageName(int number) {
+        return String.format("page-%05d.html", number);
+    }
+
+
+    private static int dayOfMonth(long seconds) {
+        return ZonedDateTime.ofInstant(Instant.ofEpochSecond(seconds), ZONE).getDayOfMonth();
+    }
+
+
+    /**
+     * @return the address of an attachment's media, escaped for an attribute,
+     *         or null if it is not a web address that is safe to link to
+     */
+    private String mediaSource(JsonNode message, JsonNode attachment) {
+        String url = attachment.path("url").asText();
+        if (localMedia)
+            return escape("../media/" + encodePathSegment(GroupMeAPI.mediaFileName(message.path("created_at").asText(),
+                    url)));
+        String scheme = url.substring(0, Math.max(0, url.indexOf(':'))).toLowerCase(Locale.ROOT);
+        return (scheme.equals("http") || scheme.equals("https")) ? escape(url) : null;
+    }
+
+
+    /**
+     * @param name file name
+     * @return the name with every character but letters, digits and - . _ ~
+     *         percent-encoded as UTF-8, for use as one segment of a URL path
+     */
+    static String encodePathSegment(String name) {
+        StringBuilder out = new StringBuilder(name.length() + 16);
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xff);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || "-._~".indexOf(c) >= 0) {
+                out.append(c);
+            } else {
+                out.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
+            }
+        }
+        return out.toString();
+    }
+
+
+    /**
+     * @param text text to show
+     * @return the text with the characters that mean something in HTML
+     *         replaced by entities
+     */
+    static String escape(String text) {
+        StringBuilder out = null;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            String entity;
+            switch (c) {
+                case '&':
+                    entity = "&amp;";
+                    break;
+                case '<':
+                    entity = "&lt;";
+                    break;
+                case '>':
+                    entity = "&gt;";
+                    break;
+                case '"':
+                    entity = "&quot;";
+                    break;
+                case '\'':
+                    entity = "&#39;";
+                    break;
+                default:
+                    if (out != null)
+                        out.append(c);
+                    continue;
+            }
+            if (out == null)
+                out = new StringBuilder(text.length() + 16).append(text, 0, i);
+            out.append(entity);
+        }
+        return (out == null) ? text : out.toString();
+    }
+
+
+    /**
+     * Delete a folder of pages, if it exists
+     */
+    private static void deleteFolder(File folder) throws IOException {
+        File[] files = folder.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            Files.delete(file.toPath());
+        }
+        Files.delete(folder.toPath());
+    }
+
+}
@@ -0,0 +1,650 @@
+/**
+ * Single place through which every request to GroupMe goes. Responses are
+ * always read to the end and closed so that the JDK can keep the connection
+ * alive and hand it to the next request to the same host, instead of paying
+ * for a new TCP and TLS handshake every time.
+ *
+ * Requests are throttled by a RateController per kind of endpoint (and, for
+ * media, per host, so images and videos served from different hosts are
+ * throttled separately), and GETs
+ * that fail with a throttling or transient server error (or a dropped
+ * connection) are retried with jittered exponential backoff.
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+
+
+public class HttpTransport {
+
+    public static final String DEFAULT_BASE_URL = "https://api.groupme.com/v3";
+    public static final int DEFAULT_MAX_API_REQUESTS = 8;
+    public static final int DEFAULT_MAX_MEDIA_DOWNLOADS = 32;
+
+    // Largest leftover body that is read just to keep a connection reusable
+    private static final int MAX_DRAIN_BYTES = 1 << 16;
+
+    static {
+        // The JDK keeps at most 5 idle connections per host unless told
+        // otherwise, which is fewer than the media downloads use at once. This
+        // only takes effect if it is set before the first connection is made.
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", "32");
+        }
+    }
+
+    // The groupme.api.url system property points every run at another server
+    private static volatile HttpTransport shared = new HttpTransport(System.getProperty("groupme.api.url", DEFAULT_BASE_URL));
+
+    private final String baseUrl;
+    private int connectTimeout = 15000;
+    private int readTimeout = 60000;
+
+    // Most attempts made for one request before its failure is passed on
+    private static final int MAX_ATTEMPTS = 6;
+
+    // Bound the requests in flight across every group being archived, backing
+    // off when GroupMe says it is overloaded
+    private volatile RateController apiLimiter = new RateController(DEFAULT_MAX_API_REQUESTS);
+    // One controller per media host, each allowed maxMediaDownloads
+    private volatile int maxMediaDownloads = DEFAULT_MAX_MEDIA_DOWNLOADS;
+    private volatile Map<String, RateController> mediaLimiters = new ConcurrentHashMap<>();
+
+    // Bytes of response bodies read through this transport, after decoding
+    private final LongAdder bytesRead = new LongAdder();
+
+    private volatile Metrics metrics = new Metrics();
+
+    /**
+     * @param baseUrl URL that API paths are relative to, e.g. DEFAULT_BASE_URL
+     *                or the address of a local stand-in server
+     */
+    public HttpTransport(String baseUrl) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+    }
+
+
+    /**
+     * @return the transport used by GroupMeAPI
+     */
+    public static HttpTransport shared() {
+        return shared;
+    }
+
+
+    /**
+     * Replace the transport used by GroupMeAPI, for example to point it at a
+     * different base URL
+     *
+     * @param transport the new shared transport
+     */
+    public static void setShared(HttpTransport transport) {
+        shared = transport;
+    }
+
+
+    /**
+     * @return the URL that API paths are relative to
+     */
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+
+    /**
+     * @param connectTimeout milliseconds to wait for a connection
+     * @param readTimeout milliseconds to wait for data on an open connection
+     */
+    public void setTimeouts(int connectTimeout, int readTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+
+    /**
+     * Bound the number of requests in flight at once through this transport,
+     * across all callers. Callers beyond the limit wait for a free slot, and
+     * the limits shrink for as long as GroupMe throttles requests.
+     *
+     * @param api maximum concurrent API requests, or 0 for the default
+     * @param media maximum concurrent media downloads from each host, or 0 for
+     *              the default
+     */
+    public void setConcurrencyLimits(int api, int media) {
+        this.apiLimiter = new RateController((api > 0) ? api : DEFAULT_MAX_API_REQUESTS);
+        this.maxMediaDownloads = (media > 0) ? media : DEFAULT_MAX_MEDIA_DOWNLOADS;
+        this.mediaLimiters = new ConcurrentHashMap<>();
+    }
+
+
+    /**
+     * @return the controller throttling API requests
+     */
+    public RateController getApiLimiter() {
+        return apiLimiter;
+    }
+
+
+    /**
+     * @param host host media is downloaded from, e.g. "i.groupme.com"
+     * @return the controller throttling media downloads from the host
+     */
+    public RateController getMediaLimiter(String host) {
+        Map<String, RateController> limiters = mediaLimiters;
+        return limiters.computeIfAbsent(host, (key) -> new RateController(maxMediaDownloads));
+    }
+
+
+    /**
+     * @return the controller of every media host requested so far, by host
+     */
+    public Map<String, RateController> getMediaLimiters() {
+        return Collections.unmodifiableMap(mediaLimiters);
+    }
+
+
+    /**
+     * @return the metrics that requests are currently recorded in
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+
+    /**
+     * Record the requests made from now on in a fresh set of metrics, e.g.
+     * at the start of a run
+     *
+     * @param metrics metrics to record in
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+
+    /**
+     * @return total bytes of response bodies read so far, for measuring
+     *         throughput
+     */
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+
+    /**
+     * Build the full URL of an API path
+     *
+     * @param path path relative to the base URL, e.g. "/groups"
+     * @param query alternating parameter names and values; null values are
+     *              left out
+     * @return the absolute URL
+     */
+    public String apiUrl(String path, String... query) {
+        StringBuilder url = new StringBuilder(baseUrl).append(path);
+        char separator = '?';
+        for (int i = 0; i + 1 < query.length; i += 2) {
+            if (query[i + 1] == null)
+                continue;
+            url.append(separator).append(query[i]).append('=').append(encode(query[i + 1]));
+            separator = '&';
+        }
+        return url.toString();
+    }
+
+
+    /**
+     * GET an API path and parse the JSON body
+     *
+     * @param path path relative to the base URL
+     * @param query alternating parameter names and values
+     * @return the parsed body, or null if the server had no content (GroupMe
+     *         answers 304 once paging runs out of messages)
+     * @throws IOException if the request still fails after retrying, or the
+     *                     status is an error that retrying cannot fix
+     */
+    public JsonNode getJson(String path, String... query) throws IOException {
+        byte[] content = getBytes(path, query);
+        if (content == null)
+            return null;
+
+        long parseStart = System.nanoTime();
+        JsonNode result = GroupMeAPI.objectMapper().readTree(content);
+        endpointFor(path).parse.record(System.nanoTime() - parseStart);
+        return result;
+    }
+
+
+    /**
+     * GET an API path without parsing the body, so that it can be parsed on
+     * another thread (the parse time should then be recorded in
+     * endpointFor(path))
+     *
+     * @param path path relative to the base URL
+     * @param query alternating parameter names and values
+     * @return the body, or null if the server had no content
+     * @throws IOException if the request still fails after retrying, or the
+     *                     status is an error that retrying cannot fix
+     */
+    public byte[] getBytes(String path, String... query) throws IOException {
+        String url = apiUrl(path, query);
+        RateController limiter = apiLimiter;
+        Metrics.Endpoint endpoint = endpointFor(path);
+
+        // The whole exchange is retried, including reading the body, since a
+        // connection can also drop halfway through a page
+        for (int attempt = 1; ; attempt++) {
+            try {
+                // The body is read before it is parsed so that network and
+                // parse time are measured separately; a page is small
+                long start = System.nanoTime();
+                byte[] content;
+                try (Body body = openOnce(url, "GET", true, 0, limiter, endpoint)) {
+                    if (body.getStatus() == HttpURLConnection.HTTP_NOT_MODIFIED || body.getStatus() == HttpURLConnection.HTTP_NO_CONTENT) {
+                        endpoint.latency.record(System.nanoTime() - start);
+                        return null;
+                    }
+                    content = readFully(body);
+                }
+                endpoint.latency.record(System.nanoTime() - start);
+                return content;
+            } catch (IOException ex) {
+                backOff(url, ex, attempt, endpoint);
+            }
+        }
+    }
+
+
+    /**
+     * @param path API path, e.g. "/groups/1234/messages"
+     * @return metrics of the GET endpoint the path belongs to
+     */
+    public Metrics.Endpoint endpointFor(String path) {
+        return metrics.endpoint(Metrics.endpointFor("GET", path));
+    }
+
+
+    /**
+     * GET an absolute URL, e.g. a media file
+     *
+     * @param url URL to fetch
+     * @param compressed whether to ask the server to gzip the body -- pointless
+     *                   for images and video
+     * @return the response body, which must be closed
+     * @throws IOException if the request still fails after retrying, or the
+     *                     status is an error that retrying cannot fix
+     */
+    public Body open(String url, boolean compressed) throws IOException {
+        return open(url, compressed, 0);
+    }
+
+
+    /**
+     * GET an absolute URL from a byte offset on, to finish a download that
+     * was cut short. A server that honours the range answers 206 Partial
+     * Content with a Content-Range; one that does not sends the whole body
+     * with a 200, so callers must check which they got.
+     *
+     * @param url URL to fetch
+     * @param compressed whether to ask the server to gzip the body
+     * @param offset first byte wanted, or 0 for the whole body
+     * @return the response body, which must be closed
+     * @throws IOException if the request still fails after retrying, or the
+     *                     status is an error that retrying cannot fix
+     */
+    public Body open(String url, boolean compressed, long offset) throws IOException {
+        String host = hostOf(url);
+        RateController limiter = getMediaLimiter(host);
+        Metrics.Endpoint endpoint = metrics.endpoint("GET media " + host);
+        for (int attempt = 1; ; attempt++) {
+            try {
+                long start = System.nanoTime();
+                Body body = openOnce(url, "GET", compressed, offset, limiter, endpoint);
+                endpoint.latency.record(System.nanoTime() - start);
+                return body;
+            } catch (IOException ex) {
+                backOff(url, ex, attempt, endpoint);
+            }
+        }
+    }
+
+
+    /**
+     * Ask for the size of a media file with a HEAD request, without
+     * downloading it. The size is only a hint, so a failed request is not
+     * retried: backing off here would hold up the downloads waiting on it.
+     *
+     * @param url URL of the file
+     * @return the Content-Length the server gave, or -1 if it gave none
+     * @throws IOException if the request fails
+     */
+    public long contentLength(String url) throws IOException {
+        String host = hostOf(url);
+        RateController limiter = getMediaLimiter(host);
+        Metrics.Endpoint endpoint = metrics.endpoint("HEAD media " + host);
+        long start = System.nanoTime();
+        try (Body body = openOnce(url, "HEAD", false, 0, limiter, endpoint)) {
+            endpoint.latency.record(System.nanoTime() - start);
+            return body.getContentLength();
+        } catch (IOException ex) {
+            endpoint.failures.increment();
+            throw ex;
+        }
+    }
+
+
+    /**
+     * Decide whether a failed attempt is worth retrying, and if so wait for
+     * the backoff delay
+     *
+     * @param url URL that was requested
+     * @param ex failure of the attempt
+     * @param attempt number of attempts made so far
+     * @param endpoint metrics of the endpoint requested
+     * @throws IOException the failure itself, if it should not be retried
+     */
+    private void backOff(String url, IOException ex, int attempt, Metrics.Endpoint endpoint) throws IOException {
+        long retryAfter = 0;
+        boolean retry = true;
+        if (ex instanceof HttpStatusException) {
+            HttpStatusException status = (HttpStatusException) ex;
+            retry = status.isTransient();
+            retryAfter = status.getRetryAfterMillis();
+        } else if (ex instanceof InterruptedIOException && Thread.currentThread().isInterrupted()) {
+            retry = false;
+        }
+        if (!retry) {
+            endpoint.failures.increment();
+            throw ex;
+        }
+        if (attempt >= MAX_ATTEMPTS) {
+            // Only the last failure is worth a warning; the caller reports
+            // what could not be fetched
+            endpoint.failures.increment();
+            Logger.getLogger(HttpTransport.class.getName()).log(Level.WARNING, "Giving up after {0} attempts: {1}",
+                    new Object[]{attempt, ex.getMessage()});
+            throw ex;
+        }
+        endpoint.retries.increment();
+
+        long delay = RateController.backoffMillis(attempt, retryAfter);
+        Logger.getLogger(HttpTransport.class.getName()).log(Level.FINE, "Retrying in {0} ms after: {1}",
+                new Object[]{delay, ex.getMessage()});
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+            throw ex;
+        }
+    }
+
+
+    /**
+     * Make a single attempt at a GET while holding a slot from the limiter,
+     * which is given back when the body is closed
+     */
+    private Body openOnce(String url, String method, boolean compressed, long offset, RateController limiter, Metrics.Endpoint endpoint) throws IOException {
+        limiter.acquire();
+        try {
+            Body body = request(url, method, compressed, offset, limiter, endpoint);
+            limiter.onSuccess();
+            return body;
+        } catch (HttpStatusException ex) {
+            limiter.release();
+            if (ex.isThrottled())
+                limiter.onThrottled(ex.getRetryAfterMillis());
+            throw ex;
+        } catch (IOException | RuntimeException ex) {
+            limiter.release();
+            throw ex;
+        }
+    }
+
+
+    private Body request(String url, String method, boolean compressed, long offset, RateController limiter, Metrics.Endpoint endpoint) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        connection.setRequestProperty("Accept-Encoding", compressed ? "gzip" : "identity");
+        connection.setRequestProperty("Connection", "keep-alive");
+        if (offset > 0)
+            connection.setRequestProperty("Range", "bytes=" + offset + "-");
+
+        int status = connection.getResponseCode();
+        if (status >= 400) {
+            // Read the error body so the connection can still be reused
+            InputStream error = connection.getErrorStream();
+            if (error != null) {
+                new Body(connection, error, status, null).close();
+            }
+            throw new HttpStatusException(url, status, connection.getHeaderField("Retry-After"));
+        }
+
+        InputStream in = connection.getInputStream();
+        if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+            in = new GZIPInputStream(in, 1 << 13);
+        }
+        return new Body(connection, in, status, limiter, bytesRead, endpoint.bytes);
+    }
+
+
+    private static byte[] readFully(Body body) throws IOException {
+        long length = body.getContentLength();
+        ByteArrayOutputStream out = new ByteArrayOutputStream((length > 0 && length < Integer.MAX_VALUE) ? (int) length : 8192);
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = body.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+
+    private static String hostOf(String url) {
+        try {
+            return new URL(url).getHost();
+        } catch (MalformedURLException ex) {
+            return "unknown";
+        }
+    }
+
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+
+    /**
+     * Response body that, when closed, reads whatever is left of a small
+     * response first so the underlying connection goes back to the pool
+     */
+    public static class Body extends FilterInputStream {
+        private final HttpURLConnection connection;
+        private final int status;
+        private final LongAdder[] counters;
+        private RateController limiter;
+
+        Body(HttpURLConnection connection, InputStream in, int status, RateController limiter, LongAdder... counters) {
+            super(in);
+            this.connection = connection;
+            this.status = status;
+            this.limiter = limiter;
+            this.counters = counters;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                for (LongAdder counter : counters) {
+                    counter.increment();
+                }
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = in.read(buffer, offset, length);
+            if (read > 0) {
+                for (LongAdder counter : counters) {
+                    counter.add(read);
+                }
+            }
+            return read;
+        }
+
+        /**
+         * @return the HTTP status code
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * @return the Content-Length of the response, or -1 if unknown
+         */
+        public long getContentLength() {
+            return connection.getContentLengthLong();
+        }
+
+        /**
+         * @return the offset of the first byte of a 206 Partial Content
+         *         response, from its Content-Range, or -1 for any other
+         *         response
+         */
+        public long getRangeStart() {
+            String range = connection.getHeaderField("Content-Range");
+            if (status != HttpURLConnection.HTTP_PARTIAL || range == null || !range.startsWith("bytes "))
+                return -1;
+            int dash = range.indexOf('-');
+            try {
+                return (dash < 0) ? -1 : Long.parseLong(range.substring(6, dash).trim());
+            } catch (NumberFormatException ex) {
+                return -1;
+            }
+        }
+
+        /**
+         * @param name header name
+         * @return the header value, or null
+         */
+        public String getHeader(String name) {
+            return connection.getHeaderField(name);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                byte[] buffer = new byte[8192];
+                int drained = 0;
+                int read;
+                while (drained < MAX_DRAIN_BYTES && (read = in.read(buffer)) != -1) {
+                    drained += read;
+                }
+            } catch (IOException ex) {
+                // The connection will not be reused, which is all this affects
+            } finally {
+                in.close();
+                if (limiter != null) {
+                    limiter.release();
+                    limiter = null;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Thrown when the server answers with an error status
+     */
+    public static class HttpStatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+        private final long retryAfterMillis;
+
+        public HttpStatusException(String url, int status, String retryAfter) {
+            super("HTTP " + status + " from " + url.replaceAll("token=[^&]*", "token=..."));
+            this.status = status;
+            this.retryAfterMillis = parseRetryAfter(retryAfter);
+        }
+
+        /**
+         * @return true if the server is throttling requests (429 or 503)
+         */
+        public boolean isThrottled() {
+            return status == 429 || status == HttpURLConnection.HTTP_UNAVAILABLE;
+        }
+
+        /**
+         * @return true if the same request may succeed when tried again
+         */
+        public boolean isTransient() {
+            return isThrottled() || status == HttpURLConnection.HTTP_INTERNAL_ERROR
+                    || status == HttpURLConnection.HTTP_BAD_GATEWAY || status == HttpURLConnection.HTTP_GATEWAY_TIMEOUT
+                    || status == HttpURLConnection.HTTP_CLIENT_TIMEOUT;
+        }
+
+        /**
+         * @return how long the server asked clients to wait, or 0
+         */
+        public long getRetryAfterMillis() {
+            return retryAfterMillis;
+        }
+
+        /**
+         * Retry-After is either a number of seconds or an HTTP date
+         */
+        private static long parseRetryAfter(String retryAfter) {
+            if (retryAfter == null)
+                return 0;
+            try {
+                return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+            } catch (NumberFormatException ex) {
+                try {
+                    long until = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                    return Math.max(0, until - System.currentTimeMillis());
+                } catch (DateTimeParseException notDate) {
+                    return 0;
+                }
+            }
+        }
+
+        /**
+         * @return the HTTP status code
+         */
+        public int getStatus() {
+            return status;
+        }
+    }
+
+}
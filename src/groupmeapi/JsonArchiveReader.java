@@ -0,0 +1,234 @@
+/**
+ * Read archives written by JsonArchiveWriter (or writeObjectNode) without
+ * loading the whole message list into memory. Gzip-compressed archives are
+ * read the same way.
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.JsonEOFException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+
+
+public class JsonArchiveReader {
+
+    /**
+     * Receives pages of messages read back from an archive
+     */
+    public interface PageHandler {
+        void page(ArrayNode messages) throws IOException;
+    }
+
+
+    /**
+     * Receives pages of messages read back without building trees
+     */
+    public interface MessageListHandler {
+        void messages(List<Message> messages) throws IOException;
+    }
+
+
+    /**
+     * Read the group information of an archive, without its message list
+     *
+     * @param archive archive file to read
+     * @return group information, with messages.message_list omitted
+     * @throws IOException if the file cannot be read or parsed
+     */
+    public static ObjectNode readHeader(File archive) throws IOException {
+        ObjectMapper mapper = GroupMeAPI.objectMapper();
+        ObjectNode header = mapper.createObjectNode();
+
+        try (JsonParser parser = createParser(mapper, archive)) {
+            expect(parser, JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                if (!name.equals("messages")) {
+                    header.set(name, mapper.readTree(parser));
+                    continue;
+                }
+
+                ObjectNode messages = header.putObject("messages");
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    parser.nextToken();
+                    if (field.equals("message_list")) {
+                        parser.skipChildren();
+                    } else {
+                        messages.set(field, mapper.readTree(parser));
+                    }
+                }
+            }
+        }
+
+        return header;
+    }
+
+
+    /**
+     * Find the id of the newest message in an archive, i.e. the first element
+     * of its message list
+     *
+     * @param archive archive file to read
+     * @return the newest message id, or null if the archive has no messages
+     * @throws IOException if the file cannot be read or parsed
+     */
+    public static String newestMessageId(File archive) throws IOException {
+        ObjectMapper mapper = GroupMeAPI.objectMapper();
+
+        try (JsonParser parser = createParser(mapper, archive)) {
+            if (!seekMessageList(parser))
+                return null;
+            if (parser.nextToken() != JsonToken.START_OBJECT)
+                return null;
+            JsonNode newest = mapper.readTree(parser);
+            return newest.path("id").asText(null);
+        }
+    }
+
+
+    /**
+     * Read the message list of an archive in pages, holding only one page in
+     * memory at a time
+     *
+     * @param archive archive file to read
+     * @param pageSize maximum number of messages per page
+     * @param allowTruncated if true, stop quietly at the end of an unfinished
+     *                       archive instead of failing
+     * @param handler receives each page in file order
+     * @return the number of messages read
+     * @throws IOException if the file cannot be read or parsed
+     */
+    public static int forEachPage(File archive, int pageSize, boolean allowTruncated, PageHandler handler) throws IOException {
+        ObjectMapper mapper = GroupMeAPI.objectMapper();
+        ArrayNode page = mapper.createArrayNode();
+        int count = 0;
+
+        try (JsonParser parser = createParser(mapper, archive)) {
+            if (!seekMessageList(parser))
+                return 0;
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                JsonNode message = mapper.readTree(parser);
+                page.add(message);
+                count++;
+                if (page.size() >= pageSize) {
+                    handler.page(page);
+                    page = mapper.createArrayNode();
+                }
+            }
+        } catch (JsonEOFException ex) {
+            if (!allowTruncated)
+                throw ex;
+        }
+
+        if (page.size() > 0)
+            handler.page(page);
+        return count;
+    }
+
+
+    /**
+     * Read the message list of an archive in pages of Message objects, with
+     * the streaming parser and without building a tree for each message or
+     * keeping its JSON
+     *
+     * @param archive archive file to read
+     * @param pageSize maximum number of messages per page
+     * @param handler receives each page in file order
+     * @return the number of messages read
+     * @throws IOException if the file cannot be read or parsed
+     */
+    public static int forEachMessageList(File archive, int pageSize, MessageListHandler handler) throws IOException {
+        List<Message> page = new ArrayList<>(pageSize);
+        int count = 0;
+
+        try (JsonParser parser = createParser(GroupMeAPI.objectMapper(), archive)) {
+            if (!seekMessageList(parser))
+                return 0;
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                page.add(Message.read(parser, null));
+                count++;
+                if (page.size() >= pageSize) {
+                    handler.messages(page);
+                    page = new ArrayList<>(pageSize);
+                }
+            }
+        }
+
+        if (!page.isEmpty())
+            handler.messages(page);
+        return count;
+    }
+
+
+    /**
+     * Advance the parser to the start of messages.message_list
+     *
+     * @param parser parser positioned before the root object
+     * @return true if the parser is now on the START_ARRAY of the list
+     * @throws IOException if parsing fails
+     */
+    private static boolean seekMessageList(JsonParser parser) throws IOException {
+        expect(parser, JsonToken.START_OBJECT);
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            parser.nextToken();
+            if (!name.equals("messages") || parser.currentToken() != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                if (parser.nextToken() == JsonToken.START_ARRAY && field.equals("message_list"))
+                    return true;
+                parser.skipChildren();
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * @return a parser for the archive, decompressing it if it starts with
+     *         the gzip magic number
+     */
+    private static JsonParser createParser(ObjectMapper mapper, File archive) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(archive), 1 << 16);
+        try {
+            in.mark(2);
+            boolean gzip = in.read() == 0x1f && in.read() == 0x8b;
+            in.reset();
+            if (gzip)
+                in = new GZIPInputStream(in, 1 << 16);
+            return mapper.getFactory().createParser(in);
+        } catch (IOException ex) {
+            in.close();
+            throw ex;
+        }
+    }
+
+
+    private static void expect(JsonParser parser, JsonToken token) throws IOException {
+        if (parser.nextToken() != token)
+            throw new IOException("Malformed archive: expected " + token + " but found " + parser.currentToken());
+    }
+
+}
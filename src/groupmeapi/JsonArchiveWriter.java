@@ -0,0 +1,251 @@
+/**
+ * Write a group and its messages to a JSON file as the pages arrive, so that
+ * the full message list never has to be held in memory.
+ *
+ * The archive is written to a ".part" file with a ".checkpoint" after every
+ * page, so an interrupted run can be resumed instead of starting over (see
+ * PartFileArchiveWriter).
+ *
+ * If the destination ends in ".gz" the archive is gzip-compressed on other
+ * cores as it is written (see ParallelGzipOutputStream). Compressed archives
+ * can still be updated with new messages, but an interrupted one is started
+ * over, since a compressed file cannot be cut back to the end of a page.
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.Map;
+
+
+
+public class JsonArchiveWriter extends PartFileArchiveWriter {
+
+    private final ObjectWriter writer;
+    private final boolean compressed;
+    private FileOutputStream fileStream;
+    private JsonGenerator generator;
+
+    /**
+     * @param outfile file to write the archive to -- replaced once the new
+     *                archive is complete
+     */
+    public JsonArchiveWriter(File outfile) {
+        super(outfile);
+        this.compressed = outfile.getName().endsWith(".gz");
+        this.writer = GroupMeAPI.objectMapper().writer()
+                .without(SerializationFeature.INDENT_OUTPUT)
+                .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    }
+
+
+    /**
+     * Only write messages newer than the newest one in the existing archive,
+     * then append the existing archive's messages after them in end()
+     *
+     * @param untilId id of the newest message already archived
+     * @param untilCount number of messages in the existing archive
+     */
+    public void mergeWith(String untilId, int untilCount) {
+        this.untilId = untilId;
+        this.untilCount = untilCount;
+    }
+
+
+    @Override
+    public void mergeWithExisting() throws IOException {
+        if (!outfile.exists())
+            return;
+        String newestId = JsonArchiveReader.newestMessageId(outfile);
+        int archivedCount = JsonArchiveReader.readHeader(outfile).path("messages").path("count").asInt();
+        if (newestId != null)
+            mergeWith(newestId, archivedCount);
+    }
+
+
+    /**
+     * Pick up an interrupted archive from its checkpoint. The partial file is
+     * cut back to the end of the last complete page and reopened for appending.
+     *
+     * @return true if there was a usable checkpoint, in which case begin must
+     *         not be called
+     * @throws IOException if the partial archive cannot be reopened
+     */
+    @Override
+    public boolean resume() throws IOException {
+        JsonNode checkpoint = compressed ? null : readCheckpoint();
+        if (checkpoint == null)
+            return false;
+        long offset = checkpoint.path("offset").asLong(-1);
+        if (offset <= 0 || offset > partFile.length())
+            return false;
+
+        try (RandomAccessFile file = new RandomAccessFile(partFile, "rw")) {
+            file.setLength(offset);
+        }
+        written = checkpoint.path("written").asInt();
+        resumeBeforeId = checkpoint.path("before_id").asText(null);
+        restoreMerge(checkpoint);
+        open(true);
+        return true;
+    }
+
+
+    /**
+     * Write the group information and open the message list. The layout matches
+     * the one produced by writeObjectNode, except that each message is written
+     * compactly on its own line.
+     *
+     * @param group group information returned by getGroupInfo
+     * @throws IOException if the file cannot be opened
+     */
+    @Override
+    public void begin(ObjectNode group) throws IOException {
+        open(false);
+        generator.writeRaw('{');
+        writeFields(group, "  ", "messages", "media_list");
+        generator.writeRaw("\n  \"messages\" : {");
+        writeFields(group.path("messages"), "    ", "message_list", null);
+        generator.writeRaw("\n    \"message_list\" : [");
+        written = 0;
+    }
+
+
+    /**
+     * Append a page of messages to the file, push it to disk and record a
+     * checkpoint just after it (unless compressing, see the class comment)
+     *
+     * @param messages page of messages
+     * @throws IOException if the messages cannot be written
+     */
+    @Override
+    public void page(ArrayNode messages) throws IOException {
+        if (messages.size() == 0)
+            return;
+        append(messages);
+        if (!compressed)
+            saveCheckpoint(messages.get(messages.size() - 1).path("id").asText(), fileStream.getChannel().position());
+    }
+
+
+    /**
+     * Append the messages of the archive being merged with (if any), close the
+     * message list and move the finished archive into place
+     *
+     * @throws IOException if the file cannot be finished
+     */
+    @Override
+    public void end() throws IOException {
+        if (isUpToDate()) {
+            // Nothing new -- the existing archive is already up to date
+            generator.close();
+            keepExisting();
+            if (mergedPages != null && outfile.exists())
+                JsonArchiveReader.forEachPage(outfile, 100, false, mergedPages);
+            return;
+        }
+        if (untilId != null && outfile.exists()) {
+            JsonArchiveReader.forEachPage(outfile, 100, false, (page) -> {
+                append(page);
+                if (mergedPages != null)
+                    mergedPages.page(page);
+            });
+        }
+
+        generator.writeRaw("\n    ]\n  }\n}\n");
+        generator.close();
+        moveIntoPlace();
+    }
+
+
+    /**
+     * Close the partial archive, leaving it and its checkpoint to be resumed
+     */
+    @Override
+    public void abort() {
+        try {
+            if (generator != null && !generator.isClosed())
+                generator.close();
+            else if (fileStream != null)
+                fileStream.close();
+        } catch (IOException ex) {
+            // The run has already failed
+        }
+    }
+
+
+    /**
+     * @return the partial archive file being written
+     */
+    public File getPartFile() {
+        return partFile;
+    }
+
+
+    @Override
+    public void forEachWrittenPage(JsonArchiveReader.PageHandler handler) throws IOException {
+        JsonArchiveReader.forEachPage(partFile, 100, true, handler);
+    }
+
+
+    private void open(boolean append) throws IOException {
+        fileStream = new FileOutputStream(partFile, append);
+        OutputStream out = compressed ? new ParallelGzipOutputStream(fileStream) : fileStream;
+        generator = GroupMeAPI.objectMapper().getFactory().createGenerator(
+                new BufferedOutputStream(out, 1 << 16), JsonEncoding.UTF8);
+        // Every value is written at the root level, so turn off the separator
+        // Jackson would otherwise put between them
+        generator.setRootValueSeparator(null);
+    }
+
+
+    private void append(ArrayNode messages) throws IOException {
+        for (JsonNode message : messages) {
+            generator.writeRaw(written == 0 ? "\n" : ",\n");
+            writer.writeValue(generator, message);
+            written++;
+        }
+        generator.flush();
+    }
+
+
+    /**
+     * Write each field of an object as a "name" : value line, skipping the
+     * fields that are written separately
+     *
+     * @param node object whose fields to write
+     * @param indent indentation before each field
+     * @param skip first field name to skip
+     * @param skipAlso second field name to skip, or null
+     * @throws IOException if writing fails
+     */
+    private void writeFields(JsonNode node, String indent, String skip, String skipAlso) throws IOException {
+        Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            if (field.getKey().equals(skip) || field.getKey().equals(skipAlso))
+                continue;
+            generator.writeRaw("\n" + indent);
+            generator.writeString(field.getKey());
+            generator.writeRaw(" : ");
+            writer.writeValue(generator, field.getValue());
+            generator.writeRaw(',');
+        }
+    }
+
+}
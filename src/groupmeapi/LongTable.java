@@ -0,0 +1,98 @@
+/**
+ * Table of long keys, each given a slot number from 0 up in the order they
+ * are added, so counts and totals per key can be kept in plain arrays indexed
+ * by slot instead of in a map of boxed values. The keys are kept in an open
+ * addressing hash table that is doubled once it is half full.
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import java.util.Arrays;
+
+
+
+class LongTable {
+
+    private long[] keys = new long[16];
+    private int[] slots = new int[16];     // Slot + 1, or 0 where empty
+    private long[] keysBySlot = new long[8];
+    private int size;
+
+
+    /**
+     * @param key key to look up
+     * @return the key's slot, or -1 if it has not been added
+     */
+    int slot(long key) {
+        int mask = keys.length - 1;
+        for (int i = hash(key) & mask; slots[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == key)
+                return slots[i] - 1;
+        }
+        return -1;
+    }
+
+
+    /**
+     * @param key key to add
+     * @return the key's slot, which is size() - 1 if it was not there before
+     */
+    int add(long key) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        for (; slots[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == key)
+                return slots[i] - 1;
+        }
+        if (size == keysBySlot.length)
+            keysBySlot = Arrays.copyOf(keysBySlot, size * 2);
+        keysBySlot[size] = key;
+        keys[i] = key;
+        slots[i] = ++size;
+        if (size * 2 > keys.length)
+            grow();
+        return size - 1;
+    }
+
+
+    /**
+     * @param slot slot of a key
+     * @return the key
+     */
+    long key(int slot) {
+        return keysBySlot[slot];
+    }
+
+
+    int size() {
+        return size;
+    }
+
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldSlots = slots;
+        keys = new long[oldKeys.length * 2];
+        slots = new int[oldKeys.length * 2];
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldSlots[j] == 0)
+                continue;
+            int i = hash(oldKeys[j]) & mask;
+            while (slots[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = oldKeys[j];
+            slots[i] = oldSlots[j];
+        }
+    }
+
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+}
@@ -0,0 +1,457 @@
+/**
+ * Download the media attachments of a group's messages concurrently.
+ *
+ * Each attachment is its own task on a shared pool of daemon threads. Before
+ * anything is downloaded, the size of every file is worked out -- from the
+ * store for files it already has, from a HEAD request for videos, and from
+ * the dimensions in the URL for images, which are too many and too small to
+ * be worth a request each -- and the tasks are handed out largest first.
+ * Starting the large videos first keeps them from being the only downloads
+ * left running at the end, while the other slots sit idle. Each attachment
+ * type has its own limit below the overall one, so videos never hold every
+ * slot while the images wait, and HttpTransport limits the downloads from
+ * each host. Progress is reported in bytes, as they arrive. Completion is
+ * signalled exactly once, through the returned future.
+ *
+ * Files are fetched through a MediaStore, so media shared between messages or
+ * groups is only downloaded once, and each group's media folder gets a link to
+ * the stored copy plus a line in its manifest.tsv.
+ *
+ * The media folder is indexed once before anything is dispatched, and only
+ * attachments that are missing or were left truncated are downloaded.
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+
+public class MediaDownloader {
+
+    // Threads are only created while downloads are running and die off when
+    // idle, so one pool is shared by every group
+    private static final ExecutorService executor = Executors.newCachedThreadPool((runnable) -> {
+        Thread thread = new Thread(runnable, "media-download");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // GroupMe image URLs start with the dimensions, e.g. .../1024x768.jpeg.<hash>
+    private static final Pattern IMAGE_DIMENSIONS = Pattern.compile("/(\\d{1,5})x(\\d{1,5})\\.[^/]*$");
+    // Rough size of a compressed photo, only used to order the images
+    private static final double IMAGE_BYTES_PER_PIXEL = 0.3;
+
+    private final MediaStore store;
+    private final int maxDownloads;
+    private final Map<String, Integer> typeLimits = new HashMap<>();
+
+    /**
+     * @param store store the media is downloaded into
+     * @param maxDownloads maximum number of files downloaded at the same time
+     */
+    public MediaDownloader(MediaStore store, int maxDownloads) {
+        this.store = store;
+        this.maxDownloads = Math.max(1, maxDownloads);
+        // Videos may take every slot but one, which keeps the images going
+        typeLimits.put("video", Math.max(1, this.maxDownloads - 1));
+    }
+
+
+    /**
+     * Limit the number of files of one attachment type downloaded at the
+     * same time, below the overall limit
+     *
+     * @param type attachment type, e.g. "image" or "video"
+     * @param limit maximum number of files of the type downloaded at once
+     */
+    public void setTypeLimit(String type, int limit) {
+        typeLimits.put(type, Math.max(1, Math.min(limit, maxDownloads)));
+    }
+
+
+    /**
+     * Start downloading every media attachment of the given messages
+     *
+     * @param mediaList messages with media attachments
+     * @param mediaFolder folder into which the files are saved
+     * @param progress listener updated as the bytes arrive
+     * @return completed once every file has been attempted, with the number
+     *         of files that could not be downloaded
+     */
+    public CompletableFuture<Integer> download(List<Message> mediaList, File mediaFolder, ProgressListener progress) {
+        CompletableFuture<Integer> done = new CompletableFuture<>();
+        Writer manifest;
+        List<Task> tasks = new ArrayList<>();
+        try {
+            // Work out what is missing before opening any connections
+            MediaIndex existing = MediaIndex.scan(mediaFolder);
+            for (Message message : mediaList) {
+                for (Message.Attachment attachment : message.getAttachments()) {
+                    if (!attachment.isMedia())
+                        continue;
+                    String fileName = GroupMeAPI.mediaFileName(message, attachment);
+                    if (existing.isComplete(fileName))
+                        continue;
+                    if (existing.isTruncated(fileName))
+                        Files.deleteIfExists(Paths.get(mediaFolder.getAbsolutePath(), fileName));
+                    Task task = new Task(attachment.getUrl(), fileName, attachment.getType());
+                    task.unconfirmedSize = existing.unconfirmedSize(fileName);
+                    tasks.add(task);
+                }
+            }
+            manifest = new OutputStreamWriter(new FileOutputStream(new File(mediaFolder, "manifest.tsv"), true), StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            done.completeExceptionally(ex);
+            return done;
+        }
+        HttpTransport.shared().getMetrics().mediaQueued.add(tasks.size());
+
+        executor.execute(() -> new Run(tasks, mediaFolder, manifest, progress, done).run());
+        return done;
+    }
+
+
+    /**
+     * A media attachment that is not in the media folder yet
+     */
+    private static class Task {
+        final String url;
+        final String fileName;
+        final String type;
+        // Bytes expected, then estimated if the server would not say
+        long size = -1;
+        // Bytes of the size reported to the progress listener so far
+        long reported;
+        // Size of a file already in the folder but not in its manifest, or -1
+        long unconfirmedSize = -1;
+
+        Task(String url, String fileName, String type) {
+            this.url = url;
+            this.fileName = fileName;
+            this.type = type;
+        }
+    }
+
+
+    /**
+     * Tasks of one attachment type, largest first
+     */
+    private static class Lane {
+        final ArrayDeque<Task> tasks = new ArrayDeque<>();
+        final int limit;
+        int running;
+
+        Lane(int limit) {
+            this.limit = limit;
+        }
+    }
+
+
+    /**
+     * One call to download: sizes the tasks, then hands them out as slots
+     * free up
+     */
+    private class Run {
+        private final List<Task> tasks;
+        private final File mediaFolder;
+        private final Writer manifest;
+        private final ProgressListener progress;
+        private final CompletableFuture<Integer> done;
+        private final Metrics metrics = HttpTransport.shared().getMetrics();
+
+        private final Map<String, Lane> lanes = new LinkedHashMap<>();
+        private int running;
+
+        // One extra count is held by the dispatcher until it has handed out
+        // every task, so the future cannot complete early
+        private final AtomicInteger pending = new AtomicInteger(1);
+        private final AtomicInteger failed = new AtomicInteger();
+        private final AtomicLong receivedBytes = new AtomicLong();
+        private volatile int reportedPermille;
+        private long totalBytes;
+
+        Run(List<Task> tasks, File mediaFolder, Writer manifest, ProgressListener progress, CompletableFuture<Integer> done) {
+            this.tasks = tasks;
+            this.mediaFolder = mediaFolder;
+            this.manifest = manifest;
+            this.progress = progress;
+            this.done = done;
+        }
+
+
+        void run() {
+            int dispatched = 0;
+            try {
+                measure();
+                schedule();
+                synchronized (this) {
+                    for (int remaining = tasks.size(); remaining > 0; remaining--) {
+                        Lane next;
+                        while ((next = nextLane()) == null) {
+                            wait();
+                        }
+                        Lane lane = next;
+                        Task task = lane.tasks.poll();
+                        lane.running++;
+                        running++;
+                        pending.incrementAndGet();
+                        dispatched++;
+                        metrics.mediaQueued.add(-1);
+                        metrics.mediaInFlight.add(1);
+                        executor.execute(() -> runTask(task, lane));
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException ex) {
+                Logger.getLogger(MediaDownloader.class.getName()).log(Level.SEVERE, "Failed to schedule the media downloads", ex);
+                progress.error("Failed to schedule the media downloads");
+            } finally {
+                // The files never started count as failed, so the group is not
+                // reported as complete
+                failed.addAndGet(tasks.size() - dispatched);
+                metrics.mediaQueued.add(dispatched - tasks.size());
+                finish();
+            }
+        }
+
+
+        /**
+         * Find the size of every task: the size of the stored copy if there
+         * is one, otherwise the Content-Length from a HEAD request for videos
+         * and an estimate from the dimensions for images. Sizes still unknown
+         * are estimated from the files of the same type.
+         */
+        private void measure() throws InterruptedException {
+            List<Task> unknown = new ArrayList<>();
+            for (Task task : tasks) {
+                task.size = store.storedSize(task.url);
+                if (task.size >= 0)
+                    continue;
+                Matcher dimensions = IMAGE_DIMENSIONS.matcher(task.url);
+                if (!"video".equals(task.type) && dimensions.find()) {
+                    long pixels = Long.parseLong(dimensions.group(1)) * Long.parseLong(dimensions.group(2));
+                    task.size = Math.max(1, (long) (pixels * IMAGE_BYTES_PER_PIXEL));
+                } else {
+                    unknown.add(task);
+                }
+            }
+
+            // With one download at a time the order makes no difference, so
+            // it is not worth a request per file
+            if (maxDownloads > 1) {
+                Semaphore probes = new Semaphore(maxDownloads);
+                CountDownLatch measured = new CountDownLatch(unknown.size());
+                for (Task task : unknown) {
+                    probes.acquire();
+                    executor.execute(() -> {
+                        try {
+                            task.size = HttpTransport.shared().contentLength(task.url);
+                        } catch (IOException | RuntimeException ex) {
+                            // Left unknown; the download reports any real failure
+                        } finally {
+                            probes.release();
+                            measured.countDown();
+                        }
+                    });
+                }
+                measured.await();
+            }
+
+            Map<String, long[]> knownByType = new HashMap<>();    // Total, count
+            long[] known = new long[2];
+            for (Task task : tasks) {
+                if (task.size < 0)
+                    continue;
+                long[] sizes = knownByType.computeIfAbsent(task.type, (type) -> new long[2]);
+                sizes[0] += task.size;
+                sizes[1]++;
+                known[0] += task.size;
+                known[1]++;
+            }
+            for (Task task : tasks) {
+                if (task.size < 0) {
+                    long[] sizes = knownByType.getOrDefault(task.type, known);
+                    task.size = (sizes[1] > 0) ? Math.max(1, sizes[0] / sizes[1]) : 1;
+                }
+                totalBytes += task.size;
+            }
+        }
+
+
+        /**
+         * Sort the tasks into a lane per type, largest first
+         */
+        private void schedule() {
+            List<Task> sorted = new ArrayList<>(tasks);
+            sorted.sort((a, b) -> Long.compare(b.size, a.size));
+            for (Task task : sorted) {
+                lanes.computeIfAbsent(task.type, (type) -> new Lane(typeLimits.getOrDefault(type, maxDownloads)))
+                        .tasks.add(task);
+            }
+        }
+
+
+        /**
+         * @return the lane with the largest next task among those with a free
+         *         slot, or null if every slot that could take a task is busy
+         */
+        private Lane nextLane() {
+            if (running >= maxDownloads)
+                return null;
+            Lane next = null;
+            for (Lane lane : lanes.values()) {
+                if (lane.tasks.isEmpty() || lane.running >= lane.limit)
+                    continue;
+                if (next == null || lane.tasks.peek().size > next.tasks.peek().size)
+                    next = lane;
+            }
+            return next;
+        }
+
+
+        private void runTask(Task task, Lane lane) {
+            try {
+                if (!downloadAttachment(task, mediaFolder, manifest, (bytes) -> received(task, bytes)))
+                    failed.incrementAndGet();
+            } finally {
+                metrics.mediaInFlight.add(-1);
+                // Whatever the download did not report (a copy that was
+                // already stored, or a failure) counts as done now
+                received(task, task.size - task.reported);
+                synchronized (this) {
+                    lane.running--;
+                    running--;
+                    notifyAll();
+                }
+                finish();
+            }
+        }
+
+
+        /**
+         * Count bytes of a task towards the progress, reporting it whenever it
+         * has moved on by at least a tenth of a percent
+         */
+        private void received(Task task, long bytes) {
+            long counted = Math.min(bytes, task.size - task.reported);
+            if (counted <= 0)
+                return;
+            task.reported += counted;
+            int permille = (int) (receivedBytes.addAndGet(counted) * 1000 / totalBytes);
+            if (permille > reportedPermille) {
+                synchronized (receivedBytes) {
+                    if (permille > reportedPermille) {
+                        reportedPermille = permille;
+                        progress.progress(permille / 1000.0);
+                    }
+                }
+            }
+        }
+
+
+        private void finish() {
+            if (pending.decrementAndGet() == 0) {
+                try {
+                    manifest.close();
+                } catch (IOException ex) {
+                    Logger.getLogger(MediaDownloader.class.getName()).log(Level.WARNING, null, ex);
+                }
+                progress.progress(1.0);
+                done.complete(failed.get());
+            }
+        }
+    }
+
+
+    /**
+     * Get a single attachment from the store (downloading it if the store does
+     * not have it yet) and link it into the media folder
+     *
+     * @param task attachment to download
+     * @param mediaFolder folder into which to save it
+     * @param manifest writer for the media folder's manifest
+     * @param received told the number of bytes of each read of the download
+     * @return false if the download failed
+     */
+    private boolean downloadAttachment(Task task, File mediaFolder, Writer manifest, LongConsumer received) {
+        String url = task.url;
+        String fileName = task.fileName;
+        Path target = Paths.get(mediaFolder.getAbsolutePath(), fileName);
+
+        try {
+            if (task.unconfirmedSize >= 0) {
+                long expected = expectedSize(url);
+                if (expected > 0 && expected == task.unconfirmedSize) {
+                    // Keep it, and record it so it is not checked again
+                    synchronized (manifest) {
+                        manifest.write(fileName + "\t" + MediaStore.keyFor(url) + "\t" + expected + "\t-\n");
+                        manifest.flush();
+                    }
+                    return true;
+                }
+                Files.deleteIfExists(target);
+            }
+            MediaStore.Entry entry = store.fetch(url, received);
+            store.link(entry, target);
+            synchronized (manifest) {
+                manifest.write(fileName + "\t" + entry.key + "\t" + entry.size + "\t" + entry.sha256 + "\n");
+                manifest.flush();
+            }
+        } catch (FileAlreadyExistsException ex) {
+            // Pass
+        } catch (IOException | RuntimeException ex) {
+            Logger.getLogger(MediaDownloader.class.getName()).log(Level.SEVERE, "Failed to download " + url, ex);
+            return false;
+        }
+        return true;
+    }
+
+
+    /**
+     * @param url media URL
+     * @return the size of the stored copy of the media, or else the size the
+     *         server gives for it, or -1 if neither is known
+     */
+    private long expectedSize(String url) {
+        long size = store.storedSize(url);
+        if (size >= 0)
+            return size;
+        try {
+            return HttpTransport.shared().contentLength(url);
+        } catch (IOException ex) {
+            return -1;
+        }
+    }
+
+}
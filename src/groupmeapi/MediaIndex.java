@@ -0,0 +1,124 @@
+/**
+ * Snapshot of what a group's media folder already holds, taken once before
+ * downloading so that media already on disk is skipped without a request (or
+ * even a file system call) per attachment.
+ *
+ * Sizes recorded in the folder's manifest.tsv are compared with the sizes on
+ * disk to catch files left truncated by an earlier run. Files with no size
+ * in the manifest (saved before there was one) are neither complete nor
+ * truncated as far as the index knows; see unconfirmedSize.
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+
+
+
+public class MediaIndex {
+
+    private final Map<String, Long> onDisk = new HashMap<>();
+    private final Map<String, Long> expected = new HashMap<>();
+
+    private MediaIndex() {
+    }
+
+
+    /**
+     * List the files in a media folder and read its manifest
+     *
+     * @param mediaFolder folder to scan
+     * @return the index of the folder
+     * @throws IOException if the folder or manifest cannot be read
+     */
+    public static MediaIndex scan(File mediaFolder) throws IOException {
+        MediaIndex index = new MediaIndex();
+        Path folder = mediaFolder.toPath();
+        if (!Files.isDirectory(folder))
+            return index;
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+            for (Path file : files) {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                if (attributes.isRegularFile()) {
+                    index.onDisk.put(file.getFileName().toString(), attributes.size());
+                }
+            }
+        }
+
+        Path manifest = folder.resolve("manifest.tsv");
+        if (Files.exists(manifest)) {
+            try (BufferedReader reader = Files.newBufferedReader(manifest, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    // fileName, key, size, sha256 (or - if not known) -- later lines win
+                    String[] fields = line.split("\t");
+                    if (fields.length >= 3) {
+                        try {
+                            index.expected.put(fields[0], Long.parseLong(fields[2]));
+                        } catch (NumberFormatException ex) {
+                            // Ignore a line cut short by an interrupted run
+                        }
+                    }
+                }
+            }
+        }
+
+        return index;
+    }
+
+
+    /**
+     * @param fileName name of a media file
+     * @return true if the file is on disk with the size the manifest records
+     *         for it
+     */
+    public boolean isComplete(String fileName) {
+        Long size = onDisk.get(fileName);
+        return size != null && size.equals(expected.get(fileName));
+    }
+
+
+    /**
+     * @param fileName name of a media file
+     * @return true if the file is on disk but smaller or larger than the
+     *         manifest records
+     */
+    public boolean isTruncated(String fileName) {
+        return onDisk.containsKey(fileName) && expected.containsKey(fileName) && !isComplete(fileName);
+    }
+
+
+    /**
+     * A file that is not in the manifest may have been cut short by a run
+     * from before there was one, so it has to be checked against the size of
+     * the media before it is kept
+     *
+     * @param fileName name of a media file
+     * @return its size if it is on disk but not in the manifest, otherwise -1
+     */
+    public long unconfirmedSize(String fileName) {
+        Long size = onDisk.get(fileName);
+        return (size == null || expected.containsKey(fileName)) ? -1 : size;
+    }
+
+
+    /**
+     * @return number of files found in the folder
+     */
+    public int size() {
+        return onDisk.size();
+    }
+
+}
@@ -0,0 +1,418 @@
+/**
+ * Content-addressed store of downloaded media, shared by every group archived
+ * into the same folder. Each file is downloaded once, keyed by the image hash
+ * GroupMe puts at the end of its media URLs (or a hash of the URL for other
+ * media), and each group's media folder links to the stored copy.
+ *
+ * The store keeps an index of the size and SHA-256 digest of every object, so
+ * objects left by an earlier run are checked before they are reused. Objects
+ * are downloaded to ".part" files that are only moved into place once
+ * complete, and a download that was interrupted is resumed from where it
+ * stopped rather than started again.
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+
+public class MediaStore implements Closeable {
+
+    // i.groupme.com/1024x768.jpeg.<32 hex digit hash>
+    private static final Pattern GROUPME_HASH = Pattern.compile("([0-9a-f]{32})(?:\\.[A-Za-z0-9]+)?$");
+
+    private static final Map<String, MediaStore> open = new HashMap<>();
+
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+    // Attempts at one download in a run, as long as each gets further
+    private static final int MAX_RESUMES = 4;
+
+    private final Path root;
+    private final Writer indexWriter;
+    private final Map<String, Entry> index = new ConcurrentHashMap<>();
+    // Downloads in progress, so a file wanted by several groups at once is
+    // only fetched once
+    private final Map<String, CompletableFuture<Entry>> inFlight = new ConcurrentHashMap<>();
+    // Objects from earlier runs whose digest has been checked in this one
+    private final Set<String> verified = ConcurrentHashMap.newKeySet();
+
+    /**
+     * A stored media object
+     */
+    public static class Entry {
+        public final String key;
+        public final Path path;
+        public final long size;
+        public final String sha256;
+
+        Entry(String key, Path path, long size, String sha256) {
+            this.key = key;
+            this.path = path;
+            this.size = size;
+            this.sha256 = sha256;
+        }
+    }
+
+
+    private MediaStore(Path root) throws IOException {
+        this.root = root;
+        Files.createDirectories(root);
+
+        Path indexFile = root.resolve("index.tsv");
+        if (Files.exists(indexFile)) {
+            try (BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    if (fields.length == 3) {
+                        index.put(fields[0], new Entry(fields[0], objectPath(fields[0]), Long.parseLong(fields[1]), fields[2]));
+                    }
+                }
+            }
+        }
+        indexWriter = new OutputStreamWriter(new FileOutputStream(indexFile.toFile(), true), StandardCharsets.UTF_8);
+    }
+
+
+    /**
+     * Get the store rooted at a folder, creating it if necessary. Every caller
+     * asking for the same folder shares one instance, until it is closed.
+     *
+     * @param root folder holding the store
+     * @return the store
+     * @throws IOException if the store cannot be created or its index read
+     */
+    public static MediaStore open(File root) throws IOException {
+        String canonical = root.getCanonicalPath();
+        synchronized (open) {
+            MediaStore store = open.get(canonical);
+            if (store == null) {
+                store = new MediaStore(root.toPath());
+                open.put(canonical, store);
+            }
+            return store;
+        }
+    }
+
+
+    /**
+     * Close the store rooted at a folder, if it is open. Only call this once
+     * nothing is using the store; the next open reads its index again.
+     *
+     * @param root folder holding the store
+     * @throws IOException if the index cannot be closed
+     */
+    public static void close(File root) throws IOException {
+        MediaStore store;
+        synchronized (open) {
+            store = open.get(root.getCanonicalPath());
+        }
+        if (store != null)
+            store.close();
+    }
+
+
+    /**
+     * Close the index, and stop handing out this instance from open
+     *
+     * @throws IOException if the index cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (open) {
+            open.values().remove(this);
+        }
+        synchronized (indexWriter) {
+            indexWriter.close();
+        }
+    }
+
+
+    /**
+     * @param url media URL
+     * @return the key the media is stored under
+     */
+    public static String keyFor(String url) {
+        String last = url.substring(url.lastIndexOf('/') + 1);
+        Matcher matcher = GROUPME_HASH.matcher(last);
+        if (matcher.find()) {
+            return matcher.group(1);
+        }
+        return hex(digest("SHA-256").digest(url.getBytes(StandardCharsets.UTF_8)));
+    }
+
+
+    /**
+     * @param url media URL
+     * @return the size recorded for the URL's stored copy, or -1 if there is
+     *         none (the copy is not checked)
+     */
+    public long storedSize(String url) {
+        Entry entry = index.get(keyFor(url));
+        return (entry == null) ? -1 : entry.size;
+    }
+
+
+    /**
+     * Get the stored copy of a media URL, downloading it only if no valid
+     * copy is stored yet
+     *
+     * @param url media URL
+     * @return the stored object
+     * @throws IOException if the media cannot be downloaded or stored
+     */
+    public Entry fetch(String url) throws IOException {
+        return fetch(url, (bytes) -> { });
+    }
+
+
+    /**
+     * Get the stored copy of a media URL, downloading it only if no valid
+     * copy is stored yet
+     *
+     * @param url media URL
+     * @param received told the number of bytes of each read as the media is
+     *                 downloaded, on the calling thread
+     * @return the stored object
+     * @throws IOException if the media cannot be downloaded or stored
+     */
+    public Entry fetch(String url, LongConsumer received) throws IOException {
+        String key = keyFor(url);
+
+        Entry entry = index.get(key);
+        if (entry != null && isValid(entry))
+            return entry;
+
+        CompletableFuture<Entry> download = new CompletableFuture<>();
+        CompletableFuture<Entry> existing = inFlight.putIfAbsent(key, download);
+        if (existing != null) {
+            try {
+                return existing.join();
+            } catch (RuntimeException ex) {
+                throw new IOException("Failed to download " + url, ex.getCause());
+            }
+        }
+
+        try {
+            // Another caller may have finished storing it since the check above
+            entry = index.get(key);
+            if (entry == null || !isValid(entry))
+                entry = download(key, url, received);
+            download.complete(entry);
+            return entry;
+        } catch (IOException | RuntimeException ex) {
+            download.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            inFlight.remove(key);
+        }
+    }
+
+
+    /**
+     * Make a file in a group's media folder refer to a stored object, as a
+     * hard link where the file system allows it and as a copy otherwise
+     *
+     * @param entry stored object
+     * @param target file to create
+     * @throws FileAlreadyExistsException if the target already exists
+     * @throws IOException if neither a link nor a copy can be made
+     */
+    public void link(Entry entry, Path target) throws IOException {
+        try {
+            Files.createLink(target, entry.path);
+        } catch (FileAlreadyExistsException ex) {
+            throw ex;
+        } catch (IOException | UnsupportedOperationException ex) {
+            // Copied beside the target and moved into place, so an interrupted
+            // copy is never mistaken for the file
+            Path part = target.resolveSibling(target.getFileName() + ".part");
+            try {
+                Files.copy(entry.path, part, StandardCopyOption.REPLACE_EXISTING);
+                try {
+                    Files.move(part, target, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException notAtomic) {
+                    Files.move(part, target);
+                }
+            } finally {
+                Files.deleteIfExists(part);
+            }
+        }
+    }
+
+
+    /**
+     * Check an object before it is reused. Objects stored in this run are
+     * trusted; objects from earlier runs must still match their recorded size,
+     * and their digest is recomputed once per run.
+     */
+    private boolean isValid(Entry entry) throws IOException {
+        if (!Files.exists(entry.path) || Files.size(entry.path) != entry.size)
+            return false;
+        if (verified.contains(entry.key))
+            return true;
+
+        MessageDigest sha256 = digest("SHA-256");
+        digestFile(entry.path, sha256);
+        if (!hex(sha256.digest()).equals(entry.sha256))
+            return false;
+        verified.add(entry.key);
+        return true;
+    }
+
+
+    /**
+     * Download into a ".part" file beside the object, then move it into place
+     * and record it in the index.
+     *
+     * A download that is cut short leaves its ".part" file behind, and the
+     * next attempt -- straight away if the last one got further, otherwise in
+     * a later run -- asks the server for only the bytes after it. The body
+     * must be as long as the server said it would be before the object is
+     * stored, so a dropped connection never leaves a truncated file that
+     * looks complete.
+     */
+    private Entry download(String key, String url, LongConsumer received) throws IOException {
+        Path target = objectPath(key);
+        Files.createDirectories(target.getParent());
+        // Only one download of a key runs at a time, so the name is never shared
+        Path part = target.resolveSibling(key + ".part");
+
+        MessageDigest sha256 = digest("SHA-256");
+        for (int attempt = 1; ; attempt++) {
+            long before = Files.exists(part) ? Files.size(part) : 0;
+            try {
+                downloadRemaining(url, part, before, sha256, received);
+                break;
+            } catch (HttpTransport.HttpStatusException ex) {
+                if (ex.getStatus() != HTTP_RANGE_NOT_SATISFIABLE || before == 0)
+                    throw ex;
+                // The partial file does not fit what the server has now
+                Files.delete(part);
+            } catch (IOException ex) {
+                long after = Files.exists(part) ? Files.size(part) : 0;
+                if (attempt >= MAX_RESUMES || after <= before)
+                    throw ex;
+            }
+        }
+        long size = Files.size(part);
+        try {
+            Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        Entry entry = new Entry(key, target, size, hex(sha256.digest()));
+        index.put(key, entry);
+        verified.add(key);
+        synchronized (indexWriter) {
+            indexWriter.write(key + "\t" + size + "\t" + entry.sha256 + "\n");
+            indexWriter.flush();
+        }
+        return entry;
+    }
+
+
+    /**
+     * Fetch the bytes of a URL from an offset on and add them to a partial
+     * file. If the server sends the whole body instead of the range asked
+     * for, the partial file is started again.
+     *
+     * @param url media URL
+     * @param part partial file, holding the first offset bytes
+     * @param offset number of bytes already downloaded
+     * @param sha256 digest, reset and brought up to date with the whole file
+     * @param received told the number of bytes of each read
+     * @throws IOException if the body cannot be read, or is shorter than its
+     *                     Content-Length
+     */
+    private static void downloadRemaining(String url, Path part, long offset, MessageDigest sha256, LongConsumer received) throws IOException {
+        try (HttpTransport.Body body = HttpTransport.shared().open(url, false, offset)) {
+            sha256.reset();
+            boolean resume = offset > 0 && body.getRangeStart() == offset;
+            if (resume) {
+                digestFile(part, sha256);
+            }
+            long expected = body.getContentLength();
+            long length = 0;
+            try (InputStream in = new DigestInputStream(body, sha256);
+                    OutputStream out = resume
+                            ? Files.newOutputStream(part, StandardOpenOption.APPEND)
+                            : Files.newOutputStream(part)) {
+                byte[] buffer = new byte[1 << 16];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                    length += read;
+                    received.accept(read);
+                }
+            }
+            if (expected >= 0 && length != expected) {
+                throw new IOException("Download of " + url + " ended after " + length + " of " + expected + " bytes");
+            }
+        }
+    }
+
+
+    private Path objectPath(String key) {
+        return root.resolve(key.substring(0, 2)).resolve(key);
+    }
+
+
+    private static void digestFile(Path file, MessageDigest digest) throws IOException {
+        try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+            byte[] buffer = new byte[1 << 16];
+            while (in.read(buffer) != -1) {
+                // Digest is updated as the file is read
+            }
+        }
+    }
+
+
+    private static MessageDigest digest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+
+    private static String hex(byte[] bytes) {
+        StringBuilder result = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            result.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return result.toString();
+    }
+
+}
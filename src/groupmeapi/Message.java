@@ -0,0 +1,386 @@
+/**
+ * A message with only the fields the archiver works with, held compactly:
+ * the id and time as longs, user ids and types interned, and attachments as
+ * small objects. The message's original JSON can be kept alongside as UTF-8
+ * bytes and only turned back into a tree when it is needed, which takes a
+ * fraction of the memory of keeping the tree itself.
+ *
+ * Messages are read with the streaming parser, without building a tree.
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+
+public class Message {
+
+    private static final Attachment[] NO_ATTACHMENTS = new Attachment[0];
+
+    // The id as a number, unless it is not one (then idText is set)
+    private final long id;
+    private final String idText;
+    private final long createdAt;
+    private final String senderId;
+    private final String senderType;
+    private final String name;
+    private final String text;
+    private final boolean system;
+    private final int favoriteCount;
+    private final Attachment[] attachments;
+    private final byte[] json;
+
+    private Message(String id, long createdAt, String senderId, String senderType, String name, String text,
+            boolean system, int favoriteCount, Attachment[] attachments, byte[] json) {
+        boolean numeric = (id != null) && BinaryArchiveFormat.isId(id);
+        this.id = numeric ? Long.parseLong(id) : -1;
+        this.idText = numeric ? null : id;
+        this.createdAt = createdAt;
+        this.senderId = intern(senderId);
+        this.senderType = intern(senderType);
+        this.name = name;
+        this.text = text;
+        this.system = system;
+        this.favoriteCount = favoriteCount;
+        this.attachments = attachments;
+        this.json = json;
+    }
+
+
+    /**
+     * Read the messages of a page from the messages endpoint
+     *
+     * @param body body of the response
+     * @return the messages in the page, newest first, each keeping its JSON
+     * @throws IOException if the body is not valid JSON
+     */
+    public static List<Message> readPage(byte[] body) throws IOException {
+        List<Message> messages = new ArrayList<>();
+        try (JsonParser json = GroupMeAPI.objectMapper().getFactory().createParser(body)) {
+            if (json.nextToken() != JsonToken.START_OBJECT)
+                return messages;
+            while (json.nextToken() == JsonToken.FIELD_NAME) {
+                boolean response = json.getCurrentName().equals("response");
+                if (json.nextToken() != JsonToken.START_OBJECT || !response) {
+                    json.skipChildren();
+                    continue;
+                }
+                while (json.nextToken() == JsonToken.FIELD_NAME) {
+                    boolean page = json.getCurrentName().equals("messages");
+                    if (json.nextToken() != JsonToken.START_ARRAY || !page) {
+                        json.skipChildren();
+                        continue;
+                    }
+                    while (json.nextToken() == JsonToken.START_OBJECT) {
+                        messages.add(read(json, body));
+                    }
+                }
+            }
+        }
+        return messages;
+    }
+
+
+    /**
+     * Read one message, leaving the parser at the end of it
+     *
+     * @param json parser positioned at the start of a message object
+     * @param source the bytes the parser is reading, to keep the message's
+     *               JSON from, or null to not keep it
+     * @return the message
+     * @throws IOException if the message is not valid JSON
+     */
+    public static Message read(JsonParser json, byte[] source) throws IOException {
+        long start = json.getTokenLocation().getByteOffset();
+        String id = null;
+        long createdAt = 0;
+        String senderId = null;
+        String senderType = null;
+        String name = null;
+        String text = null;
+        boolean system = false;
+        int favoriteCount = 0;
+        Attachment[] attachments = NO_ATTACHMENTS;
+
+        while (json.nextToken() == JsonToken.FIELD_NAME) {
+            String field = json.getCurrentName();
+            JsonToken value = json.nextToken();
+            switch (field) {
+                case "id":
+                    id = text(json);
+                    break;
+                case "created_at":
+                    createdAt = json.getValueAsLong();
+                    json.skipChildren();
+                    break;
+                case "sender_id":
+                    senderId = text(json);
+                    break;
+                case "sender_type":
+                    senderType = text(json);
+                    break;
+                case "name":
+                    name = text(json);
+                    break;
+                case "text":
+                    text = text(json);
+                    break;
+                case "system":
+                    system = json.getValueAsBoolean();
+                    json.skipChildren();
+                    break;
+                case "favorited_by":
+                    if (value == JsonToken.START_ARRAY) {
+                        for (JsonToken token = json.nextToken(); token != null && token != JsonToken.END_ARRAY; token = json.nextToken()) {
+                            favoriteCount++;
+                            json.skipChildren();
+                        }
+                    }
+                    break;
+                case "attachments":
+                    attachments = (value == JsonToken.START_ARRAY) ? readAttachments(json) : NO_ATTACHMENTS;
+                    break;
+                default:
+                    json.skipChildren();
+            }
+        }
+
+        byte[] kept = null;
+        if (source != null && start >= 0) {
+            long end = json.getCurrentLocation().getByteOffset();
+            kept = Arrays.copyOfRange(source, (int) start, (int) end);
+        }
+        return new Message(id, createdAt, senderId, senderType, name, text, system, favoriteCount, attachments, kept);
+    }
+
+
+    /**
+     * Make a message from a tree that has already been parsed, without
+     * keeping its JSON
+     *
+     * @param message message object
+     * @return the message
+     */
+    public static Message of(JsonNode message) {
+        return of(message, null);
+    }
+
+
+    /**
+     * Make a message from a tree that has already been parsed, keeping its
+     * JSON for toJson()
+     *
+     * @param message message object
+     * @return the message
+     * @throws IOException if the message cannot be written as JSON
+     */
+    public static Message withJson(JsonNode message) throws IOException {
+        return of(message, GroupMeAPI.objectMapper().writer()
+                .without(SerializationFeature.INDENT_OUTPUT).writeValueAsBytes(message));
+    }
+
+
+    private static Message of(JsonNode message, byte[] json) {
+        List<Attachment> attachments = new ArrayList<>();
+        for (JsonNode attachment : message.path("attachments")) {
+            attachments.add(new Attachment(text(attachment.get("type")), text(attachment.get("url"))));
+        }
+        return new Message(text(message.get("id")), message.path("created_at").asLong(),
+                text(message.get("sender_id")), text(message.get("sender_type")), text(message.get("name")),
+                text(message.get("text")), message.path("system").asBoolean(), message.path("favorited_by").size(),
+                attachments.isEmpty() ? NO_ATTACHMENTS : attachments.toArray(NO_ATTACHMENTS), json);
+    }
+
+
+    public String getId() {
+        return (idText != null || id < 0) ? idText : Long.toString(id);
+    }
+
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+
+    public String getSenderId() {
+        return senderId;
+    }
+
+
+    public String getSenderType() {
+        return senderType;
+    }
+
+
+    public String getName() {
+        return name;
+    }
+
+
+    public String getText() {
+        return text;
+    }
+
+
+    public boolean isSystem() {
+        return system;
+    }
+
+
+    public int getFavoriteCount() {
+        return favoriteCount;
+    }
+
+
+    public List<Attachment> getAttachments() {
+        return Arrays.asList(attachments);
+    }
+
+
+    /**
+     * @return true if the message has at least one downloadable attachment
+     */
+    public boolean hasMedia() {
+        for (Attachment attachment : attachments) {
+            if (attachment.isMedia())
+                return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * @return true if the message's original JSON was kept
+     */
+    public boolean hasJson() {
+        return json != null;
+    }
+
+
+    /**
+     * Turn the message back into a tree: the original JSON if it was kept,
+     * otherwise only the fields held here (without who liked it or anything
+     * attachments have besides their type and URL)
+     *
+     * @return a new message object
+     * @throws IOException if the kept JSON cannot be parsed
+     */
+    public ObjectNode toJson() throws IOException {
+        if (json != null)
+            return (ObjectNode) GroupMeAPI.objectMapper().readTree(json);
+
+        ObjectNode message = GroupMeAPI.objectMapper().createObjectNode();
+        message.put("id", getId());
+        message.put("created_at", createdAt);
+        message.put("sender_id", senderId);
+        message.put("sender_type", senderType);
+        message.put("name", name);
+        message.put("text", text);
+        message.put("system", system);
+        ArrayNode list = message.putArray("attachments");
+        for (Attachment attachment : attachments) {
+            list.addObject().put("type", attachment.type).put("url", attachment.url);
+        }
+        return message;
+    }
+
+
+    /**
+     * An attachment's type and, for files, its URL
+     */
+    public static class Attachment {
+        private final String type;
+        private final String url;
+
+        Attachment(String type, String url) {
+            this.type = intern(type);
+            this.url = url;
+        }
+
+
+        public String getType() {
+            return type;
+        }
+
+
+        /**
+         * @return the URL of the file, or null if the attachment has none
+         */
+        public String getUrl() {
+            return url;
+        }
+
+
+        /**
+         * @return true if the attachment is a file that can be downloaded
+         */
+        public boolean isMedia() {
+            return "image".equals(type) || "linked_image".equals(type) || "video".equals(type);
+        }
+    }
+
+
+    private static Attachment[] readAttachments(JsonParser json) throws IOException {
+        List<Attachment> attachments = new ArrayList<>();
+        for (JsonToken token = json.nextToken(); token != null && token != JsonToken.END_ARRAY; token = json.nextToken()) {
+            if (token != JsonToken.START_OBJECT) {
+                json.skipChildren();
+                continue;
+            }
+            String type = null;
+            String url = null;
+            while (json.nextToken() == JsonToken.FIELD_NAME) {
+                String field = json.getCurrentName();
+                json.nextToken();
+                if (field.equals("type")) {
+                    type = text(json);
+                } else if (field.equals("url")) {
+                    url = text(json);
+                } else {
+                    json.skipChildren();
+                }
+            }
+            attachments.add(new Attachment(type, url));
+        }
+        return attachments.isEmpty() ? NO_ATTACHMENTS : attachments.toArray(NO_ATTACHMENTS);
+    }
+
+
+    private static String text(JsonParser json) throws IOException {
+        JsonToken token = json.currentToken();
+        if (token == JsonToken.VALUE_NULL)
+            return null;
+        if (token.isStructStart()) {
+            json.skipChildren();
+            return null;
+        }
+        return json.getText();
+    }
+
+
+    private static String text(JsonNode node) {
+        return (node == null || node.isNull()) ? null : node.asText();
+    }
+
+
+    /**
+     * User ids and types repeat on every message, so only one copy of each
+     * is kept
+     */
+    private static String intern(String value) {
+        return (value == null) ? null : value.intern();
+    }
+
+}
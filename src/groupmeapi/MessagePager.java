@@ -0,0 +1,237 @@
+/**
+ * Fetch the pages of a group's messages ahead of the caller, newest first.
+ *
+ * Three stages run at once, connected by bounded queues: a fetcher thread
+ * requests each page and, with a streaming scan that builds no tree, reads
+ * the id of its last message so that the next page is requested straight
+ * away; a parser thread turns the bodies into arrays of messages; and the
+ * caller takes the parsed pages with next() and writes them. Downloading is
+ * then limited by the round trip to GroupMe rather than by parsing and
+ * writing.
+ *
+ * The fetcher stops at the same page the caller would, so no request is
+ * wasted: at an empty page, at the page reaching untilId or a message from
+ * before the range, or once the expected number of messages have arrived.
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+
+
+class MessagePager implements Closeable {
+
+    // Pages that can wait between two stages; a page is around 100 KB
+    private static final int QUEUED_PAGES = 4;
+
+    // Follows the last page in both queues, or is replaced by the failure
+    private static final Object END = new Object();
+
+    private final HttpTransport transport = HttpTransport.shared();
+    private final String path;
+    private final String API_KEY;
+    private final DateRange range;
+    private final String untilId;
+    private final int expected;
+
+    // Only used by the fetcher
+    private String beforeId;
+    private int fetched;
+
+    private final BlockingQueue<Object> bodies = new ArrayBlockingQueue<>(QUEUED_PAGES);
+    private final BlockingQueue<Object> pages = new ArrayBlockingQueue<>(QUEUED_PAGES);
+    private final Thread fetcher;
+    private final Thread parser;
+    private boolean ended = false;
+
+    /**
+     * Start fetching pages
+     *
+     * @param groupID ID of the group
+     * @param API_KEY GroupMe API token
+     * @param range stop at the first page with a message before its start
+     * @param beforeId id to start paging before, or null to start at the newest
+     * @param untilId stop at the page with this message (or an older one), or
+     *                null
+     * @param seen number of messages already handled
+     * @param expected number of messages expected in total; only used to stop
+     *                 without untilId or a range
+     */
+    MessagePager(String groupID, String API_KEY, DateRange range, String beforeId, String untilId, int seen, int expected) {
+        this.path = "/groups/" + groupID + "/messages";
+        this.API_KEY = API_KEY;
+        this.range = range;
+        this.beforeId = beforeId;
+        this.untilId = untilId;
+        this.fetched = seen;
+        this.expected = expected;
+
+        fetcher = new Thread(this::fetch, "message-fetcher-" + groupID);
+        parser = new Thread(this::parse, "message-parser-" + groupID);
+        fetcher.setDaemon(true);
+        parser.setDaemon(true);
+        fetcher.start();
+        parser.start();
+    }
+
+
+    /**
+     * Wait for the next page
+     *
+     * @return the next page of messages, newest first, or null after the last
+     * @throws IOException if a page could not be fetched or parsed
+     */
+    ArrayNode next() throws IOException {
+        if (ended)
+            return null;
+        Object page;
+        try {
+            page = pages.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for messages");
+        }
+        if (page instanceof ArrayNode)
+            return (ArrayNode) page;
+
+        ended = true;
+        if (page instanceof Exception)
+            throw new IOException("Failed to get the messages from " + path, (Exception) page);
+        return null;
+    }
+
+
+    /**
+     * Stop fetching, e.g. if the caller gives up before the last page
+     */
+    @Override
+    public void close() {
+        fetcher.interrupt();
+        parser.interrupt();
+    }
+
+
+    private void fetch() {
+        Object last = END;
+        try {
+            boolean more = true;
+            while (more) {
+                byte[] body = transport.getBytes(path, "limit", "100", "before_id", beforeId, "token", API_KEY);
+                // GroupMe answers with an empty 304 once there are no more messages
+                if (body == null)
+                    break;
+                more = scan(body);
+                bodies.put(body);
+            }
+        } catch (InterruptedException ex) {
+            return;
+        } catch (IOException | RuntimeException ex) {
+            last = ex;
+        }
+        finish(bodies, last);
+    }
+
+
+    private void parse() {
+        Object last = END;
+        try {
+            ObjectMapper mapper = GroupMeAPI.objectMapper();
+            Metrics.Endpoint endpoint = transport.endpointFor(path);
+            for (Object body = bodies.take(); body != END; body = bodies.take()) {
+                if (body instanceof Exception) {
+                    last = body;
+                    break;
+                }
+                long start = System.nanoTime();
+                JsonNode page = mapper.readTree((byte[]) body).path("response").path("messages");
+                endpoint.parse.record(System.nanoTime() - start);
+                if (!page.isArray() || page.size() == 0)
+                    break;
+                pages.put(page);
+            }
+        } catch (InterruptedException ex) {
+            return;
+        } catch (IOException | RuntimeException ex) {
+            last = ex;
+        }
+        finish(pages, last);
+    }
+
+
+    /**
+     * Read the id and time of every message in a page without building a
+     * tree, move beforeId to the last message, and decide whether the caller
+     * will want another page
+     *
+     * @param body body of a response from the messages endpoint
+     * @return true if the next page should be fetched
+     * @throws IOException if the body is not valid JSON
+     */
+    private boolean scan(byte[] body) throws IOException {
+        int count = 0;
+        boolean reachedEnd = false;
+        JsonFactory factory = GroupMeAPI.objectMapper().getFactory();
+        try (JsonParser json = factory.createParser(body)) {
+            if (json.nextToken() != JsonToken.START_OBJECT)
+                return false;
+            while (json.nextToken() == JsonToken.FIELD_NAME) {
+                boolean response = json.getCurrentName().equals("response");
+                if (json.nextToken() != JsonToken.START_OBJECT || !response) {
+                    json.skipChildren();
+                    continue;
+                }
+                while (json.nextToken() == JsonToken.FIELD_NAME) {
+                    boolean messages = json.getCurrentName().equals("messages");
+                    if (json.nextToken() != JsonToken.START_ARRAY || !messages) {
+                        json.skipChildren();
+                        continue;
+                    }
+                    while (json.nextToken() == JsonToken.START_OBJECT) {
+                        count++;
+                        while (json.nextToken() == JsonToken.FIELD_NAME) {
+                            String field = json.getCurrentName();
+                            json.nextToken();
+                            if (field.equals("id")) {
+                                beforeId = json.getText();
+                                reachedEnd |= (untilId != null && GroupMeAPI.compareIds(beforeId, untilId) <= 0);
+                            } else if (field.equals("created_at")) {
+                                reachedEnd |= json.getValueAsLong() < range.getFrom();
+                            } else {
+                                json.skipChildren();
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        fetched += count;
+        return count > 0 && !reachedEnd && (untilId != null || !range.isAll() || fetched < expected);
+    }
+
+
+    /**
+     * Hand the end marker or a failure to the next stage, unless closed
+     */
+    private static void finish(BlockingQueue<Object> queue, Object last) {
+        try {
+            queue.put(last);
+        } catch (InterruptedException ex) {
+            // Closed, so nobody is waiting
+        }
+    }
+
+}
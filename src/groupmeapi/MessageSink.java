@@ -0,0 +1,53 @@
+/**
+ * Destination for messages as they are downloaded from GroupMe, one page at a
+ * time.
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+
+
+
+public interface MessageSink {
+
+    /**
+     * Called once before any messages are delivered
+     *
+     * @param group group information returned by getGroupInfo
+     * @throws IOException if the sink cannot be prepared
+     */
+    void begin(ObjectNode group) throws IOException;
+
+
+    /**
+     * Called for every page of messages in the order they were fetched (newest
+     * first). The page is not retained by the caller after this returns.
+     *
+     * @param messages page of message objects
+     * @throws IOException if the page cannot be written
+     */
+    void page(ArrayNode messages) throws IOException;
+
+
+    /**
+     * Called once after the last page has been delivered
+     *
+     * @throws IOException if the sink cannot be finished
+     */
+    void end() throws IOException;
+
+
+    /**
+     * Called instead of end() when the run fails, at any point after the sink
+     * was created, to close the files it has open. Anything a later run can
+     * pick up again, such as an archive's ".part" file and checkpoint, is
+     * kept. Failures are ignored, since the run has already failed.
+     */
+    void abort();
+
+}
@@ -0,0 +1,503 @@
+/**
+ * Read a message store written by MessageStoreWriter: a folder of append-only
+ * segment files holding each message's JSON, plus an index of every message
+ * sorted by id. Both are memory-mapped, so looking up a message by id or
+ * reading the messages sent between two times goes straight to the records
+ * needed, at disk speed and without holding the archive in memory.
+ *
+ * Layout of the folder:
+ *
+ *   group.json         the group information
+ *   segment-NNNNN.dat  records of up to SEGMENT_BYTES each: the JSON length
+ *                      (int), id (long), created_at (long) and the message's
+ *                      JSON in UTF-8
+ *   index.dat          a header (magic, version, message count, max backstep)
+ *                      followed by one entry per message, oldest id first: id,
+ *                      time key and location (segment number and offset)
+ *   index.pending      entries of a run that has not finished yet, in the
+ *                      order the messages arrived (see MessageStoreWriter)
+ *
+ * GroupMe ids start with the time the message was sent, so sorting by id
+ * nearly sorts by time too. The time key of each entry is the latest
+ * created_at of it and every entry before it, which always increases, and the
+ * max backstep is how far any message's created_at falls below its key, so
+ * a range of times can be found by binary search over the same index.
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+
+
+public class MessageStore implements Closeable {
+
+    static final int INDEX_MAGIC = 0x474d4958;      // "GMIX"
+    static final int PENDING_MAGIC = 0x474d5044;    // "GMPD"
+    static final int VERSION = 1;
+    static final int INDEX_HEADER_SIZE = 32;
+    static final int COUNT_POSITION = 8;
+    static final int PENDING_HEADER_SIZE = 16;
+    static final int ENTRY_SIZE = 24;
+    static final int RECORD_HEADER_SIZE = 20;
+    static final long SEGMENT_BYTES = 64L << 20;
+
+    static final String GROUP_FILE = "group.json";
+    static final String INDEX_FILE = "index.dat";
+    static final String PENDING_FILE = "index.pending";
+
+    private static final int PAGE_SIZE = 100;
+
+    /**
+     * Receives messages one at a time, without building a tree for each
+     */
+    public interface MessageHandler {
+        void message(Message message) throws IOException;
+    }
+
+    private final ObjectNode group;
+    private final Segments segments;
+    private final FileChannel indexChannel;
+    private final ByteBuffer index;
+    private final int count;
+    private final long maxBackstep;
+
+    private MessageStore(ObjectNode group, Segments segments, FileChannel indexChannel, ByteBuffer index, int count, long maxBackstep) {
+        this.group = group;
+        this.segments = segments;
+        this.indexChannel = indexChannel;
+        this.index = index;
+        this.count = count;
+        this.maxBackstep = maxBackstep;
+    }
+
+
+    /**
+     * Open a message store, mapping its index and (as they are needed) its
+     * segments into memory
+     *
+     * @param store folder of the store
+     * @return a reader, which must be closed
+     * @throws IOException if the store cannot be read
+     */
+    public static MessageStore open(File store) throws IOException {
+        return open(store, true);
+    }
+
+
+    /**
+     * @param store folder of the store
+     * @param mapped whether to map the files, or read them through channels
+     *               instead -- which the writer does, since a mapping stays
+     *               until it is garbage collected and stops the files from
+     *               being deleted or replaced on Windows
+     * @return a reader, which must be closed
+     * @throws IOException if the store cannot be read
+     */
+    static MessageStore open(File store, boolean mapped) throws IOException {
+        File indexFile = new File(store, INDEX_FILE);
+        FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE);
+            readFully(channel, header, 0);
+            if (header.getInt(0) != INDEX_MAGIC || header.getInt(4) != VERSION)
+                throw new IOException("Not a message store index: " + indexFile);
+            long count = header.getLong(COUNT_POSITION);
+            long maxBackstep = header.getLong(16);
+            long length = INDEX_HEADER_SIZE + count * ENTRY_SIZE;
+            if (count < 0 || length > channel.size())
+                throw new IOException("Malformed message store index: " + indexFile);
+            if (length > Integer.MAX_VALUE)
+                throw new IOException("Message store index too large to map: " + indexFile);
+
+            ByteBuffer index = null;
+            if (mapped) {
+                index = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+                channel.close();
+                channel = null;
+            }
+            ObjectNode group = (ObjectNode) GroupMeAPI.objectMapper().readTree(new File(store, GROUP_FILE));
+            return new MessageStore(group, new Segments(store, mapped), channel, index, (int) count, maxBackstep);
+        } catch (IOException | RuntimeException ex) {
+            if (channel != null)
+                channel.close();
+            throw (ex instanceof IOException) ? (IOException) ex : new IOException("Malformed message store: " + store, ex);
+        }
+    }
+
+
+    /**
+     * @param store file or folder to check
+     * @return true if it is a finished message store
+     */
+    public static boolean isMessageStore(File store) {
+        return new File(store, INDEX_FILE).isFile() && new File(store, GROUP_FILE).isFile();
+    }
+
+
+    /**
+     * Message ids only grow, so if the newest one fits in the index (as a
+     * long), so does every other
+     *
+     * @param group group information returned by getGroupInfo
+     * @return true if the group's messages can be saved in a message store
+     */
+    public static boolean canStore(JsonNode group) {
+        String lastId = group.path("messages").path("last_message_id").asText("");
+        return lastId.isEmpty() || BinaryArchiveFormat.isId(lastId);
+    }
+
+
+    /**
+     * @return the group information
+     */
+    public ObjectNode getGroup() {
+        return group;
+    }
+
+
+    public int getMessageCount() {
+        return count;
+    }
+
+
+    /**
+     * @return id of the newest message, or null if there are none
+     * @throws IOException if the index cannot be read
+     */
+    public String newestMessageId() throws IOException {
+        return (count == 0) ? null : Long.toString(entries(count - 1, count).getLong(0));
+    }
+
+
+    /**
+     * Look up a message by id
+     *
+     * @param id id of the message
+     * @return the message, or null if the store does not have it
+     * @throws IOException if the store cannot be read
+     */
+    public ObjectNode get(String id) throws IOException {
+        long location = locate(id);
+        return (location < 0) ? null : segments.tree(location);
+    }
+
+
+    /**
+     * Look up a message by id, without building a tree
+     *
+     * @param id id of the message
+     * @return the message, or null if the store does not have it
+     * @throws IOException if the store cannot be read
+     */
+    public Message find(String id) throws IOException {
+        long location = locate(id);
+        return (location < 0) ? null : segments.message(location);
+    }
+
+
+    /**
+     * Read every message, newest first
+     *
+     * @param handler receives each page of up to 100 messages
+     * @throws IOException if the store cannot be read
+     */
+    public void forEachPage(JsonArchiveReader.PageHandler handler) throws IOException {
+        forEachPageBefore(count, handler);
+    }
+
+
+    /**
+     * Read the messages sent between two times, newest first
+     *
+     * @param from earliest created_at included
+     * @param to created_at just after the last one included
+     * @param handler receives each page of up to 100 messages
+     * @throws IOException if the store cannot be read
+     */
+    public void forEachPageBetween(long from, long to, JsonArchiveReader.PageHandler handler) throws IOException {
+        // Handlers may keep the pages they are given, so each one is new
+        ArrayNode[] page = {GroupMeAPI.objectMapper().createArrayNode()};
+        scanBetween(from, to, (location) -> {
+            page[0].add(segments.tree(location));
+            if (page[0].size() == PAGE_SIZE) {
+                handler.page(page[0]);
+                page[0] = GroupMeAPI.objectMapper().createArrayNode();
+            }
+        });
+        if (page[0].size() > 0)
+            handler.page(page[0]);
+    }
+
+
+    /**
+     * Read the messages sent between two times, newest first, without
+     * building a tree for each
+     *
+     * @param from earliest created_at included
+     * @param to created_at just after the last one included
+     * @param handler receives each message
+     * @throws IOException if the store cannot be read
+     */
+    public void forEachMessageBetween(long from, long to, MessageHandler handler) throws IOException {
+        scanBetween(from, to, (location) -> handler.message(segments.message(location)));
+    }
+
+
+    /**
+     * Read the messages before a position in the index, newest first
+     *
+     * @param end number of messages, from the oldest, to read
+     * @param handler receives each page of up to 100 messages
+     * @throws IOException if the store cannot be read
+     */
+    void forEachPageBefore(int end, JsonArchiveReader.PageHandler handler) throws IOException {
+        for (int chunkEnd = end; chunkEnd > 0; chunkEnd -= PAGE_SIZE) {
+            int chunkStart = Math.max(0, chunkEnd - PAGE_SIZE);
+            ByteBuffer entries = entries(chunkStart, chunkEnd);
+            ArrayNode page = GroupMeAPI.objectMapper().createArrayNode();
+            for (int i = chunkEnd - chunkStart - 1; i >= 0; i--) {
+                page.add(segments.tree(entries.getLong(i * ENTRY_SIZE + 16)));
+            }
+            handler.page(page);
+        }
+    }
+
+
+    /**
+     * Read the messages between two positions in the index, oldest first,
+     * without building trees. Several threads can read at once.
+     *
+     * @param start position of the first message, from the oldest
+     * @param end position just after the last message
+     * @return the messages
+     * @throws IOException if the store cannot be read
+     */
+    List<Message> readMessages(int start, int end) throws IOException {
+        ByteBuffer entries = entries(start, end);
+        List<Message> messages = new ArrayList<>(end - start);
+        for (int i = 0; i < end - start; i++) {
+            messages.add(segments.message(entries.getLong(i * ENTRY_SIZE + 16)));
+        }
+        return messages;
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        segments.close();
+        if (indexChannel != null)
+            indexChannel.close();
+    }
+
+
+    private interface LocationHandler {
+        void record(long location) throws IOException;
+    }
+
+
+    /**
+     * Visit the records of the messages sent between two times, newest first
+     */
+    private void scanBetween(long from, long to, LocationHandler handler) throws IOException {
+        // Every message from `from` on has a key of at least `from`, and no
+        // message with a key of `to` plus the backstep or more is before `to`
+        int start = lowerBound(from, 8);
+        int end = (to > Long.MAX_VALUE - maxBackstep) ? count : lowerBound(to + maxBackstep, 8);
+        for (int chunkEnd = end; chunkEnd > start; chunkEnd -= PAGE_SIZE) {
+            int chunkStart = Math.max(start, chunkEnd - PAGE_SIZE);
+            ByteBuffer entries = entries(chunkStart, chunkEnd);
+            for (int i = chunkEnd - chunkStart - 1; i >= 0; i--) {
+                long location = entries.getLong(i * ENTRY_SIZE + 16);
+                long createdAt = segments.createdAt(location);
+                if (createdAt >= from && createdAt < to)
+                    handler.record(location);
+            }
+        }
+    }
+
+
+    /**
+     * @return location of the message with the given id, or -1
+     */
+    private long locate(String id) throws IOException {
+        if (!BinaryArchiveFormat.isId(id))
+            return -1;
+        long key = Long.parseLong(id);
+        int i = lowerBound(key, 0);
+        if (i == count)
+            return -1;
+        ByteBuffer entry = entries(i, i + 1);
+        return (entry.getLong(0) == key) ? entry.getLong(16) : -1;
+    }
+
+
+    /**
+     * @param key id or time key to find
+     * @param field offset of the field in an entry: 0 for the id, 8 for the
+     *              time key
+     * @return position of the first entry whose field is at least key
+     */
+    private int lowerBound(long key, int field) throws IOException {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (entries(mid, mid + 1).getLong(field) < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+
+    /**
+     * @return the index entries from start to end, starting at position 0
+     */
+    private ByteBuffer entries(int start, int end) throws IOException {
+        int offset = INDEX_HEADER_SIZE + start * ENTRY_SIZE;
+        int length = (end - start) * ENTRY_SIZE;
+        if (index != null) {
+            ByteBuffer slice = index.duplicate();
+            slice.position(offset);
+            slice.limit(offset + length);
+            return slice.slice();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        readFully(indexChannel, buffer, offset);
+        buffer.flip();
+        return buffer;
+    }
+
+
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                throw new EOFException();
+            position += read;
+        }
+    }
+
+
+    static String segmentName(int segment) {
+        return String.format("segment-%05d.dat", segment);
+    }
+
+
+    /**
+     * The segment files of a store, opened as they are first needed
+     */
+    static class Segments implements Closeable {
+        private final File store;
+        private final boolean mapped;
+        private final List<ByteBuffer> maps = new ArrayList<>();
+        private final List<FileChannel> channels = new ArrayList<>();
+
+        Segments(File store, boolean mapped) {
+            this.store = store;
+            this.mapped = mapped;
+        }
+
+
+        long createdAt(long location) throws IOException {
+            return read(location, RECORD_HEADER_SIZE).getLong(12);
+        }
+
+
+        byte[] json(long location) throws IOException {
+            ByteBuffer header = read(location, RECORD_HEADER_SIZE);
+            int length = header.getInt(0);
+            ByteBuffer record = read(location + RECORD_HEADER_SIZE, length);
+            byte[] json = new byte[length];
+            record.get(json);
+            return json;
+        }
+
+
+        ObjectNode tree(long location) throws IOException {
+            return (ObjectNode) GroupMeAPI.objectMapper().readTree(json(location));
+        }
+
+
+        Message message(long location) throws IOException {
+            byte[] json = json(location);
+            try (JsonParser parser = GroupMeAPI.objectMapper().getFactory().createParser(json)) {
+                parser.nextToken();
+                return Message.read(parser, null);
+            }
+        }
+
+
+        /**
+         * @return length bytes at a location, starting at position 0
+         */
+        private ByteBuffer read(long location, int length) throws IOException {
+            int segment = (int) (location >>> 32);
+            int offset = (int) location;
+            if (mapped) {
+                ByteBuffer map = map(segment).duplicate();
+                if (offset + length > map.limit())
+                    throw new EOFException("Record past the end of " + segmentName(segment));
+                map.position(offset);
+                map.limit(offset + length);
+                return map.slice();
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            readFully(channel(segment), buffer, offset);
+            buffer.flip();
+            return buffer;
+        }
+
+
+        private synchronized ByteBuffer map(int segment) throws IOException {
+            while (maps.size() <= segment) {
+                maps.add(null);
+            }
+            if (maps.get(segment) == null) {
+                try (FileChannel channel = FileChannel.open(new File(store, segmentName(segment)).toPath(), StandardOpenOption.READ)) {
+                    maps.set(segment, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+                }
+            }
+            return maps.get(segment);
+        }
+
+
+        private synchronized FileChannel channel(int segment) throws IOException {
+            while (channels.size() <= segment) {
+                channels.add(null);
+            }
+            if (channels.get(segment) == null)
+                channels.set(segment, FileChannel.open(new File(store, segmentName(segment)).toPath(), StandardOpenOption.READ));
+            return channels.get(segment);
+        }
+
+
+        @Override
+        public synchronized void close() throws IOException {
+            for (FileChannel channel : channels) {
+                if (channel != null)
+                    channel.close();
+            }
+            channels.clear();
+            maps.clear();
+        }
+    }
+
+}
@@ -0,0 +1,481 @@
+/**
+ * Write a group's messages to a message store (see MessageStore) as the pages
+ * arrive. Each message is appended as a record to the current segment file,
+ * and its index entry to index.pending; end() adds the pending entries to the
+ * sorted index in one go.
+ *
+ * Updating a store only appends: the new messages go after the existing
+ * records and their entries after the existing index, so nothing already in
+ * the store is rewritten however large it is. A full download is written to
+ * a ".part" folder and moved into place once it is finished, like the other
+ * archives.
+ *
+ * index.pending doubles as the checkpoint. It records how many entries the
+ * index had when the run started, so a run that was interrupted after its
+ * entries were added to the index is not picked up a second time.
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+
+
+public class MessageStoreWriter implements ArchiveWriter {
+
+    // Pending entries moved into the index at a time
+    private static final int COMMIT_CHUNK = 4096;
+
+    private final File outfile;
+    private final File partFile;
+    private final ObjectWriter compact;
+    private File folder;
+    private FileChannel segment;
+    private int segmentNumber;
+    private FileChannel pending;
+    private long baseCount;
+    private int written;
+
+    // Set when new messages are being added to an existing store
+    private String untilId;
+    private int untilCount;
+    private String resumeBeforeId;
+    private JsonArchiveReader.PageHandler mergedPages;
+
+    /**
+     * @param outfile folder of the store -- replaced once a new store is
+     *                complete, or added to in place when updating
+     */
+    public MessageStoreWriter(File outfile) {
+        this.outfile = outfile;
+        this.partFile = new File(outfile.getPath() + ".part");
+        this.compact = GroupMeAPI.objectMapper().writer().without(SerializationFeature.INDENT_OUTPUT);
+    }
+
+
+    @Override
+    public void mergeWithExisting() throws IOException {
+        if (!MessageStore.isMessageStore(outfile))
+            return;
+        try (MessageStore existing = MessageStore.open(outfile, false)) {
+            untilId = existing.newestMessageId();
+            untilCount = existing.getMessageCount();
+        }
+    }
+
+
+    /**
+     * Pick up an interrupted run from its pending entries: a full download in
+     * the ".part" folder, or else an update of the store itself. Entries
+     * whose record did not make it to disk are dropped, and the segment is
+     * cut back to the end of the last record kept.
+     *
+     * @return true if there was a run to pick up, in which case begin must
+     *         not be called
+     * @throws IOException if the store cannot be reopened
+     */
+    @Override
+    public boolean resume() throws IOException {
+        for (File candidate : new File[]{partFile, outfile}) {
+            File pendingFile = new File(candidate, MessageStore.PENDING_FILE);
+            if (!pendingFile.isFile())
+                continue;
+            int committed = MessageStore.isMessageStore(candidate) ? countCommitted(candidate) : 0;
+            if (reopen(candidate, committed)) {
+                if (candidate.equals(outfile)) {
+                    untilCount = committed;
+                    try (MessageStore existing = MessageStore.open(outfile, false)) {
+                        untilId = existing.newestMessageId();
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Start a new run: a fresh ".part" folder for a full download, or the
+     * store itself for an update
+     *
+     * @param group group information returned by getGroupInfo
+     * @throws IOException if the files cannot be created
+     */
+    @Override
+    public void begin(ObjectNode group) throws IOException {
+        if (untilId == null) {
+            folder = partFile;
+            deleteStore(partFile);
+            baseCount = 0;
+        } else {
+            folder = outfile;
+            baseCount = untilCount;
+        }
+        Files.createDirectories(folder.toPath());
+        saveGroup(group);
+
+        // Carry on in the last segment if it has room
+        segmentNumber = 0;
+        while (new File(folder, MessageStore.segmentName(segmentNumber + 1)).exists()) {
+            segmentNumber++;
+        }
+        if (new File(folder, MessageStore.segmentName(segmentNumber)).length() >= MessageStore.SEGMENT_BYTES)
+            segmentNumber++;
+        openSegment(-1);
+
+        pending = FileChannel.open(new File(folder, MessageStore.PENDING_FILE).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(MessageStore.PENDING_HEADER_SIZE);
+        header.putInt(MessageStore.PENDING_MAGIC).putInt(MessageStore.VERSION).putLong(baseCount);
+        header.flip();
+        writeFully(pending, header);
+        written = 0;
+    }
+
+
+    /**
+     * Append each message as a record, then its index entry
+     *
+     * @param messages page of messages
+     * @throws IOException if the messages cannot be written
+     */
+    @Override
+    public void page(ArrayNode messages) throws IOException {
+        if (messages.size() == 0)
+            return;
+        ByteBuffer entries = ByteBuffer.allocate(messages.size() * MessageStore.ENTRY_SIZE);
+        for (JsonNode message : messages) {
+            String id = message.path("id").asText();
+            if (!BinaryArchiveFormat.isId(id))
+                throw new IOException("Message id " + id + " cannot be stored in a message store");
+            byte[] json = compact.writeValueAsBytes(message);
+            long createdAt = message.path("created_at").asLong();
+
+            int length = MessageStore.RECORD_HEADER_SIZE + json.length;
+            if (segment.position() > 0 && segment.position() + length > MessageStore.SEGMENT_BYTES) {
+                segment.close();
+                segmentNumber++;
+                openSegment(-1);
+            }
+            long location = ((long) segmentNumber << 32) | segment.position();
+            ByteBuffer record = ByteBuffer.allocate(length);
+            record.putInt(json.length).putLong(Long.parseLong(id)).putLong(createdAt).put(json);
+            record.flip();
+            writeFully(segment, record);
+
+            entries.putLong(Long.parseLong(id)).putLong(createdAt).putLong(location);
+        }
+        entries.flip();
+        writeFully(pending, entries);
+        written += messages.size();
+        resumeBeforeId = messages.get(messages.size() - 1).path("id").asText();
+    }
+
+
+    /**
+     * Add the pending entries to the index, oldest first after the existing
+     * ones, then move a new store into place
+     *
+     * @throws IOException if the index cannot be written
+     */
+    @Override
+    public void end() throws IOException {
+        segment.force(false);
+        segment.close();
+        pending.force(false);
+        commit();
+        pending.close();
+        Files.delete(new File(folder, MessageStore.PENDING_FILE).toPath());
+
+        if (folder.equals(partFile)) {
+            deleteStore(outfile);
+            try {
+                Files.move(partFile.toPath(), outfile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(partFile.toPath(), outfile.toPath());
+            }
+        }
+
+        if (mergedPages != null && untilId != null) {
+            try (MessageStore store = MessageStore.open(outfile, false)) {
+                store.forEachPageBefore(untilCount, mergedPages);
+            }
+        }
+    }
+
+
+    /**
+     * Close the current segment and the pending entries, leaving them to be
+     * picked up by resume()
+     */
+    @Override
+    public void abort() {
+        for (FileChannel channel : new FileChannel[]{segment, pending}) {
+            try {
+                if (channel != null)
+                    channel.close();
+            } catch (IOException ex) {
+                // The run has already failed
+            }
+        }
+    }
+
+
+    @Override
+    public void setMergedPageHandler(JsonArchiveReader.PageHandler handler) {
+        this.mergedPages = handler;
+    }
+
+
+    /**
+     * Read back the messages of the pending entries, in the order they were
+     * written
+     *
+     * @param handler receives each page in the order written
+     * @throws IOException if the records cannot be read
+     */
+    @Override
+    public void forEachWrittenPage(JsonArchiveReader.PageHandler handler) throws IOException {
+        ObjectMapper mapper = GroupMeAPI.objectMapper();
+        try (MessageStore.Segments segments = new MessageStore.Segments(folder, false)) {
+            for (int start = 0; start < written; start += 100) {
+                int count = Math.min(100, written - start);
+                ByteBuffer entries = readPending(start, count);
+                ArrayNode page = mapper.createArrayNode();
+                for (int i = 0; i < count; i++) {
+                    page.add(segments.tree(entries.getLong(i * MessageStore.ENTRY_SIZE + 16)));
+                }
+                handler.page(page);
+            }
+        }
+    }
+
+
+    @Override
+    public String getResumeBeforeId() {
+        return resumeBeforeId;
+    }
+
+
+    @Override
+    public String getUntilId() {
+        return untilId;
+    }
+
+
+    @Override
+    public int getUntilCount() {
+        return untilCount;
+    }
+
+
+    @Override
+    public int getWritten() {
+        return written;
+    }
+
+
+    /**
+     * Reopen an interrupted run in a folder, if its pending entries belong
+     * after the index as it is now
+     *
+     * @return false if there is nothing to pick up
+     */
+    private boolean reopen(File candidate, int committed) throws IOException {
+        folder = candidate;
+        File pendingFile = new File(candidate, MessageStore.PENDING_FILE);
+        pending = FileChannel.open(pendingFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(MessageStore.PENDING_HEADER_SIZE);
+        boolean usable = pending.size() >= MessageStore.PENDING_HEADER_SIZE;
+        if (usable) {
+            MessageStore.readFully(pending, header, 0);
+            baseCount = header.getLong(8);
+            usable = header.getInt(0) == MessageStore.PENDING_MAGIC && baseCount == committed;
+        }
+        if (!usable) {
+            // Left over from a run whose entries are already in the index
+            pending.close();
+            Files.delete(pendingFile.toPath());
+            return false;
+        }
+
+        // Keep the entries whose record is complete
+        written = (int) ((pending.size() - MessageStore.PENDING_HEADER_SIZE) / MessageStore.ENTRY_SIZE);
+        long end = -1;
+        try (MessageStore.Segments segments = new MessageStore.Segments(candidate, false)) {
+            for (; written > 0; written--) {
+                ByteBuffer entry = readPending(written - 1, 1);
+                long location = entry.getLong(16);
+                try {
+                    byte[] json = segments.json(location);
+                    end = location + MessageStore.RECORD_HEADER_SIZE + json.length;
+                    resumeBeforeId = Long.toString(entry.getLong(0));
+                    break;
+                } catch (IOException ex) {
+                    // Cut off by the interruption
+                }
+            }
+        }
+        if (written == 0) {
+            pending.close();
+            return false;
+        }
+        pending.truncate(MessageStore.PENDING_HEADER_SIZE + (long) written * MessageStore.ENTRY_SIZE);
+        pending.position(pending.size());
+
+        segmentNumber = (int) (end >>> 32);
+        for (int later = segmentNumber + 1; new File(candidate, MessageStore.segmentName(later)).exists(); later++) {
+            Files.delete(new File(candidate, MessageStore.segmentName(later)).toPath());
+        }
+        openSegment((int) end);
+        return true;
+    }
+
+
+    /**
+     * Append the pending entries to the index in reverse (they were written
+     * newest first), giving each its time key, then update the header
+     */
+    private void commit() throws IOException {
+        File indexFile = new File(folder, MessageStore.INDEX_FILE);
+        try (FileChannel index = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(MessageStore.INDEX_HEADER_SIZE);
+            if (index.size() < MessageStore.INDEX_HEADER_SIZE) {
+                header.putInt(MessageStore.INDEX_MAGIC).putInt(MessageStore.VERSION);
+                header.rewind();
+                writeFully(index, header, 0);
+            }
+            header.clear();
+            MessageStore.readFully(index, header, 0);
+            long count = header.getLong(MessageStore.COUNT_POSITION);
+            long maxBackstep = header.getLong(16);
+            if (count != baseCount)
+                throw new IOException("The message store index changed during the run: " + indexFile);
+
+            long lastId = Long.MIN_VALUE;
+            long timeKey = Long.MIN_VALUE;
+            long position = MessageStore.INDEX_HEADER_SIZE + count * MessageStore.ENTRY_SIZE;
+            if (count > 0) {
+                ByteBuffer last = ByteBuffer.allocate(MessageStore.ENTRY_SIZE);
+                MessageStore.readFully(index, last, position - MessageStore.ENTRY_SIZE);
+                lastId = last.getLong(0);
+                timeKey = last.getLong(8);
+            }
+
+            for (int end = written; end > 0; end -= COMMIT_CHUNK) {
+                int start = Math.max(0, end - COMMIT_CHUNK);
+                ByteBuffer entries = readPending(start, end - start);
+                ByteBuffer out = ByteBuffer.allocate((end - start) * MessageStore.ENTRY_SIZE);
+                for (int i = end - start - 1; i >= 0; i--) {
+                    long id = entries.getLong(i * MessageStore.ENTRY_SIZE);
+                    long createdAt = entries.getLong(i * MessageStore.ENTRY_SIZE + 8);
+                    if (id <= lastId)
+                        continue;   // Already in the index, e.g. a page fetched twice
+                    timeKey = Math.max(timeKey, createdAt);
+                    maxBackstep = Math.max(maxBackstep, timeKey - createdAt);
+                    out.putLong(id).putLong(timeKey).putLong(entries.getLong(i * MessageStore.ENTRY_SIZE + 16));
+                    lastId = id;
+                    count++;
+                }
+                out.flip();
+                position += writeFully(index, out, position);
+            }
+            index.force(false);
+
+            header.clear();
+            header.putLong(count).putLong(maxBackstep);
+            header.flip();
+            writeFully(index, header, MessageStore.COUNT_POSITION);
+            index.force(false);
+        }
+    }
+
+
+    private ByteBuffer readPending(int start, int count) throws IOException {
+        ByteBuffer entries = ByteBuffer.allocate(count * MessageStore.ENTRY_SIZE);
+        MessageStore.readFully(pending, entries, MessageStore.PENDING_HEADER_SIZE + (long) start * MessageStore.ENTRY_SIZE);
+        entries.flip();
+        return entries;
+    }
+
+
+    /**
+     * @param end length to cut the segment back to, or -1 to append
+     */
+    private void openSegment(int end) throws IOException {
+        segment = FileChannel.open(new File(folder, MessageStore.segmentName(segmentNumber)).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (end >= 0)
+            segment.truncate(end);
+        segment.position(segment.size());
+    }
+
+
+    private int countCommitted(File store) throws IOException {
+        try (MessageStore existing = MessageStore.open(store, false)) {
+            return existing.getMessageCount();
+        }
+    }
+
+
+    /**
+     * Write the group information, replacing the old copy in one move
+     */
+    private void saveGroup(ObjectNode group) throws IOException {
+        ObjectNode info = group.deepCopy();
+        if (info.path("messages").isObject())
+            ((ObjectNode) info.path("messages")).remove("message_list");
+        File groupFile = new File(folder, MessageStore.GROUP_FILE);
+        File temp = new File(groupFile.getPath() + ".tmp");
+        GroupMeAPI.objectMapper().writeValue(temp, info);
+        Files.move(temp.toPath(), groupFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+
+    /**
+     * Delete a store folder and the files in it, if it exists
+     */
+    private static void deleteStore(File store) throws IOException {
+        File[] files = store.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            Files.delete(file.toPath());
+        }
+        Files.delete(store.toPath());
+    }
+
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+
+    private static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            total += channel.write(buffer, position + total);
+        }
+        return total;
+    }
+
+}
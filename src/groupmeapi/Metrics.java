@@ -0,0 +1,349 @@
+/**
+ * Counters and latency histograms for one archiving run, kept per endpoint so
+ * that concurrency limits can be tuned on evidence. Everything is recorded
+ * with atomic adders, so recording costs about the same as incrementing an
+ * int and can be done from any thread.
+ *
+ * At the end of a run the metrics are written as a JSON report and in the
+ * Prometheus text format.
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+
+
+public class Metrics {
+
+    // Upper bounds of the histogram buckets, in milliseconds
+    private static final long[] BUCKETS_MILLIS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000};
+
+    private static final Pattern ID_SEGMENT = Pattern.compile("/[0-9]+(?=/|$)");
+
+    /**
+     * Distribution of durations, in fixed buckets
+     */
+    public static class Histogram {
+        private final LongAdder[] buckets = new LongAdder[BUCKETS_MILLIS.length + 1];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * @param nanos duration to record
+         */
+        public void record(long nanos) {
+            long millis = nanos / 1000000;
+            int bucket = 0;
+            while (bucket < BUCKETS_MILLIS.length && millis > BUCKETS_MILLIS[bucket])
+                bucket++;
+            buckets[bucket].increment();
+            count.increment();
+            sumNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+
+        /**
+         * @return number of durations recorded
+         */
+        public long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * @param quantile fraction of durations, e.g. 0.99
+         * @return upper bound in milliseconds of the bucket holding that
+         *         quantile, capped at the largest duration recorded
+         */
+        public double quantileMillis(double quantile) {
+            long total = count.sum();
+            long rank = (long) Math.ceil(quantile * total);
+            double max = maxNanos.get() / 1e6;
+            long seen = 0;
+            for (int i = 0; i < BUCKETS_MILLIS.length; i++) {
+                seen += buckets[i].sum();
+                if (seen >= rank)
+                    return Math.min(BUCKETS_MILLIS[i], max);
+            }
+            return max;
+        }
+
+        ObjectNode toJson() {
+            ObjectNode json = GroupMeAPI.objectMapper().createObjectNode();
+            long total = count.sum();
+            json.put("count", total);
+            json.put("mean_ms", (total == 0) ? 0 : sumNanos.sum() / 1e6 / total);
+            json.put("p50_ms", quantileMillis(0.5));
+            json.put("p90_ms", quantileMillis(0.9));
+            json.put("p99_ms", quantileMillis(0.99));
+            json.put("max_ms", maxNanos.get() / 1e6);
+            ObjectNode bucketCounts = json.putObject("buckets_ms");
+            for (int i = 0; i < buckets.length; i++) {
+                bucketCounts.put((i < BUCKETS_MILLIS.length) ? "<=" + BUCKETS_MILLIS[i] : "+Inf", buckets[i].sum());
+            }
+            return json;
+        }
+
+        void toPrometheus(StringBuilder out, String name, String labels) {
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i].sum();
+                String le = (i < BUCKETS_MILLIS.length) ? Double.toString(BUCKETS_MILLIS[i] / 1000.0) : "+Inf";
+                out.append(name).append("_bucket{").append(labels).append(",le=\"").append(le).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            out.append(name).append("_sum{").append(labels).append("} ").append(sumNanos.sum() / 1e9).append('\n');
+            out.append(name).append("_count{").append(labels).append("} ").append(count.sum()).append('\n');
+        }
+    }
+
+    /**
+     * Number of things in some state, and the most there ever were at once
+     */
+    public static class Gauge {
+        private final AtomicInteger current = new AtomicInteger();
+        private final AtomicInteger peak = new AtomicInteger();
+
+        /**
+         * @param delta change in the number
+         */
+        public void add(int delta) {
+            int value = current.addAndGet(delta);
+            peak.accumulateAndGet(value, Math::max);
+        }
+
+        public int get() {
+            return current.get();
+        }
+
+        public int getPeak() {
+            return peak.get();
+        }
+    }
+
+    /**
+     * Everything recorded about one endpoint, e.g. "GET /groups/{id}/messages"
+     */
+    public static class Endpoint {
+        // Time from sending a request until its response has been read (or,
+        // for media, until its headers have arrived)
+        public final Histogram latency = new Histogram();
+        // Time spent parsing JSON responses once they have been read
+        public final Histogram parse = new Histogram();
+        public final LongAdder bytes = new LongAdder();
+        public final LongAdder retries = new LongAdder();
+        public final LongAdder failures = new LongAdder();
+    }
+
+    private final long startedAt = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final List<ObjectNode> groups = new ArrayList<>();
+
+    // Media attachments waiting for a download permit, and being downloaded
+    public final Gauge mediaQueued = new Gauge();
+    public final Gauge mediaInFlight = new Gauge();
+
+
+    /**
+     * @param name endpoint name, e.g. from endpointFor
+     * @return the endpoint's metrics, created if necessary
+     */
+    public Endpoint endpoint(String name) {
+        return endpoints.computeIfAbsent(name, (key) -> new Endpoint());
+    }
+
+
+    /**
+     * @return every endpoint recorded so far, by name
+     */
+    public Map<String, Endpoint> getEndpoints() {
+        return Collections.unmodifiableMap(endpoints);
+    }
+
+
+    /**
+     * @param method HTTP method
+     * @param path API path, e.g. "/groups/1234/messages"
+     * @return the path with ids replaced, e.g. "GET /groups/{id}/messages", so
+     *         that every group shares one endpoint
+     */
+    public static String endpointFor(String method, String path) {
+        return method + " " + ID_SEGMENT.matcher(path).replaceAll("/{id}");
+    }
+
+
+    /**
+     * Start the summary of a group in this run. The caller fills it in as the
+     * group is archived.
+     *
+     * @param groupID ID of the group
+     * @return the summary node, owned by the caller until the run ends
+     */
+    public ObjectNode group(String groupID) {
+        ObjectNode summary = GroupMeAPI.objectMapper().createObjectNode();
+        summary.put("group_id", groupID);
+        summary.put("archived", false);
+        synchronized (groups) {
+            groups.add(summary);
+        }
+        return summary;
+    }
+
+
+    /**
+     * @return the run report
+     */
+    public ObjectNode toJson() {
+        ObjectNode report = GroupMeAPI.objectMapper().createObjectNode();
+        report.put("started_at", Instant.ofEpochMilli(startedAt).toString());
+        report.put("elapsed_seconds", (System.nanoTime() - startNanos) / 1e9);
+
+        HttpTransport transport = HttpTransport.shared();
+        ObjectNode limits = report.putObject("limits");
+        limits.put("api_requests", transport.getApiLimiter().getLimit());
+        limits.put("api_peak_waiting", transport.getApiLimiter().getPeakWaiting());
+        ObjectNode mediaHosts = limits.putObject("media_hosts");
+        for (Map.Entry<String, RateController> entry : new TreeMap<>(transport.getMediaLimiters()).entrySet()) {
+            ObjectNode host = mediaHosts.putObject(entry.getKey());
+            host.put("downloads", entry.getValue().getLimit());
+            host.put("peak_waiting", entry.getValue().getPeakWaiting());
+        }
+
+        ObjectNode endpointsJson = report.putObject("endpoints");
+        for (Map.Entry<String, Endpoint> entry : new TreeMap<>(endpoints).entrySet()) {
+            Endpoint endpoint = entry.getValue();
+            ObjectNode json = endpointsJson.putObject(entry.getKey());
+            json.put("requests", endpoint.latency.getCount());
+            json.put("failures", endpoint.failures.sum());
+            json.put("retries", endpoint.retries.sum());
+            json.put("bytes", endpoint.bytes.sum());
+            json.set("latency", endpoint.latency.toJson());
+            if (endpoint.parse.getCount() > 0)
+                json.set("parse", endpoint.parse.toJson());
+        }
+
+        ObjectNode media = report.putObject("media_queue");
+        media.put("peak_queued", mediaQueued.getPeak());
+        media.put("peak_in_flight", mediaInFlight.getPeak());
+
+        ArrayNode groupsJson = report.putArray("groups");
+        synchronized (groups) {
+            groupsJson.addAll(groups);
+        }
+        return report;
+    }
+
+
+    /**
+     * @return the metrics in the Prometheus text exposition format
+     */
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder();
+        Map<String, Endpoint> sorted = new TreeMap<>(endpoints);
+
+        out.append("# HELP groupme_request_duration_seconds Time until each response was read, by endpoint\n");
+        out.append("# TYPE groupme_request_duration_seconds histogram\n");
+        for (Map.Entry<String, Endpoint> entry : sorted.entrySet()) {
+            entry.getValue().latency.toPrometheus(out, "groupme_request_duration_seconds", label(entry.getKey()));
+        }
+
+        out.append("# HELP groupme_parse_duration_seconds Time spent parsing JSON responses, by endpoint\n");
+        out.append("# TYPE groupme_parse_duration_seconds histogram\n");
+        for (Map.Entry<String, Endpoint> entry : sorted.entrySet()) {
+            if (entry.getValue().parse.getCount() > 0)
+                entry.getValue().parse.toPrometheus(out, "groupme_parse_duration_seconds", label(entry.getKey()));
+        }
+
+        counter(out, sorted, "groupme_response_bytes_total", "Bytes of response bodies read, by endpoint", (e) -> e.bytes.sum());
+        counter(out, sorted, "groupme_request_retries_total", "Requests retried after a failed attempt, by endpoint", (e) -> e.retries.sum());
+        counter(out, sorted, "groupme_request_failures_total", "Requests that failed after every retry, by endpoint", (e) -> e.failures.sum());
+
+        HttpTransport transport = HttpTransport.shared();
+        Map<String, RateController> mediaLimiters = new TreeMap<>(transport.getMediaLimiters());
+        out.append("# HELP groupme_limiter_waiting_peak Most requests waiting for a rate controller slot at once\n");
+        out.append("# TYPE groupme_limiter_waiting_peak gauge\n");
+        out.append("groupme_limiter_waiting_peak{limiter=\"api\"} ").append(transport.getApiLimiter().getPeakWaiting()).append('\n');
+        for (Map.Entry<String, RateController> entry : mediaLimiters.entrySet()) {
+            out.append("groupme_limiter_waiting_peak{limiter=\"media\",host=\"").append(entry.getKey()).append("\"} ")
+                    .append(entry.getValue().getPeakWaiting()).append('\n');
+        }
+        out.append("# HELP groupme_limiter_limit Requests currently allowed in flight by each rate controller\n");
+        out.append("# TYPE groupme_limiter_limit gauge\n");
+        out.append("groupme_limiter_limit{limiter=\"api\"} ").append(transport.getApiLimiter().getLimit()).append('\n');
+        for (Map.Entry<String, RateController> entry : mediaLimiters.entrySet()) {
+            out.append("groupme_limiter_limit{limiter=\"media\",host=\"").append(entry.getKey()).append("\"} ")
+                    .append(entry.getValue().getLimit()).append('\n');
+        }
+
+        out.append("# HELP groupme_media_queued_peak Most media attachments waiting for a download permit at once\n");
+        out.append("# TYPE groupme_media_queued_peak gauge\n");
+        out.append("groupme_media_queued_peak ").append(mediaQueued.getPeak()).append('\n');
+        out.append("# HELP groupme_media_in_flight_peak Most media downloads in flight at once\n");
+        out.append("# TYPE groupme_media_in_flight_peak gauge\n");
+        out.append("groupme_media_in_flight_peak ").append(mediaInFlight.getPeak()).append('\n');
+        out.append("# HELP groupme_run_seconds Time since the run started\n");
+        out.append("# TYPE groupme_run_seconds gauge\n");
+        out.append("groupme_run_seconds ").append((System.nanoTime() - startNanos) / 1e9).append('\n');
+        return out.toString();
+    }
+
+
+    /**
+     * Write run-report.json and run-metrics.prom into a folder
+     *
+     * @param folder folder to write into
+     * @throws IOException if either file cannot be written
+     */
+    public void writeReport(File folder) throws IOException {
+        GroupMeAPI.objectMapper().writer(new DefaultPrettyPrinter()).writeValue(new File(folder, "run-report.json"), toJson());
+        Files.write(new File(folder, "run-metrics.prom").toPath(), toPrometheus().getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    private interface Value {
+        long of(Endpoint endpoint);
+    }
+
+
+    private static void counter(StringBuilder out, Map<String, Endpoint> endpoints, String name, String help, Value value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        for (Map.Entry<String, Endpoint> entry : endpoints.entrySet()) {
+            out.append(name).append('{').append(label(entry.getKey())).append("} ")
+                    .append(value.of(entry.getValue())).append('\n');
+        }
+    }
+
+
+    private static String label(String endpoint) {
+        return "endpoint=\"" + endpoint.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+}
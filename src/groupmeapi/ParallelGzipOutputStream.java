@@ -0,0 +1,180 @@
+/**
+ * Gzip-compress a stream on several cores while it is still being written.
+ * The data is cut into blocks that are compressed independently (as pigz
+ * does) by a pool shared with every other stream, and written out in order as
+ * they finish, so the writer only waits when it gets too far ahead.
+ *
+ * Each block is a complete gzip member. Concatenated members are a valid gzip
+ * file, which gzip, zcat and GZIPInputStream read as one stream.
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+
+
+public class ParallelGzipOutputStream extends OutputStream {
+
+    // Same block size as pigz: large enough that starting each block with an
+    // empty dictionary costs well under 1% of the compression
+    public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    private static final ExecutorService compressors = Executors.newFixedThreadPool(THREADS, (runnable) -> {
+        Thread thread = new Thread(runnable, "gzip-compressor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final OutputStream out;
+    private final int blockSize;
+    // Each stream keeps every core busy but holds at most this many blocks
+    private final int maxPending = 2 * THREADS;
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+    private byte[] block;
+    private int length;
+    private boolean closed;
+
+    /**
+     * @param out stream to write the compressed data to, closed with this one
+     */
+    public ParallelGzipOutputStream(OutputStream out) {
+        this(out, DEFAULT_BLOCK_SIZE);
+    }
+
+
+    /**
+     * @param out stream to write the compressed data to, closed with this one
+     * @param blockSize number of bytes compressed as one gzip member
+     */
+    public ParallelGzipOutputStream(OutputStream out, int blockSize) {
+        this.out = out;
+        this.blockSize = blockSize;
+        this.block = new byte[blockSize];
+    }
+
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        block[length++] = (byte) b;
+        if (length == blockSize)
+            submit();
+    }
+
+
+    @Override
+    public void write(byte[] bytes, int offset, int count) throws IOException {
+        ensureOpen();
+        while (count > 0) {
+            int copied = Math.min(count, blockSize - length);
+            System.arraycopy(bytes, offset, block, length, copied);
+            length += copied;
+            offset += copied;
+            count -= copied;
+            if (length == blockSize)
+                submit();
+        }
+    }
+
+
+    /**
+     * Write out the blocks that have finished compressing. This does not end
+     * the current block early, since small blocks compress poorly, so data
+     * written since the last full block is only written out by close().
+     *
+     * @throws IOException if compressing or writing a block failed
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        while (!pending.isEmpty() && pending.peek().isDone()) {
+            writeBlock(pending.poll());
+        }
+        out.flush();
+    }
+
+
+    /**
+     * Compress what is left, wait for every block to be written and close the
+     * underlying stream
+     *
+     * @throws IOException if compressing or writing a block failed
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        try {
+            if (length > 0)
+                submit();
+            while (!pending.isEmpty()) {
+                writeBlock(pending.poll());
+            }
+        } finally {
+            closed = true;
+            for (Future<byte[]> future : pending) {
+                future.cancel(false);
+            }
+            out.close();
+        }
+    }
+
+
+    /**
+     * Hand the current block to the pool and start a new one, first writing
+     * out the oldest block if too many are waiting
+     */
+    private void submit() throws IOException {
+        byte[] data = (length == blockSize) ? block : Arrays.copyOf(block, length);
+        pending.add(compressors.submit(() -> compress(data)));
+        block = new byte[blockSize];
+        length = 0;
+
+        while (pending.size() > maxPending || (!pending.isEmpty() && pending.peek().isDone())) {
+            writeBlock(pending.poll());
+        }
+    }
+
+
+    private void writeBlock(Future<byte[]> future) throws IOException {
+        try {
+            out.write(future.get());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing", ex);
+        } catch (ExecutionException ex) {
+            throw new IOException("Failed to compress a block", ex.getCause());
+        }
+    }
+
+
+    private static byte[] compress(byte[] data) throws IOException {
+        // Text compresses about 10x; start small and let the buffer grow
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 8);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed, 8192)) {
+            gzip.write(data);
+        }
+        return compressed.toByteArray();
+    }
+
+
+    private void ensureOpen() throws IOException {
+        if (closed)
+            throw new IOException("Stream closed");
+    }
+
+}
@@ -0,0 +1,179 @@
+/**
+ * Base of the archive writers that write a single file: the archive is
+ * written to a ".part" file next to the destination, a small ".checkpoint"
+ * file records how far it got after every page so an interrupted run can be
+ * resumed, and the finished file replaces the destination in one move.
+ *
+ * Subclasses write the archive itself, and keep the written count and the
+ * ids used for resuming and merging up to date as they go.
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+
+
+abstract class PartFileArchiveWriter implements ArchiveWriter {
+
+    protected final File outfile;
+    protected final File partFile;
+    protected final File checkpointFile;
+    protected int written;
+
+    // Set when new messages are being merged in front of an existing archive
+    protected String untilId;
+    protected int untilCount;
+    protected String resumeBeforeId;
+    protected JsonArchiveReader.PageHandler mergedPages;
+
+    /**
+     * @param outfile file to write the archive to -- replaced once the new
+     *                archive is complete
+     */
+    protected PartFileArchiveWriter(File outfile) {
+        this.outfile = outfile;
+        this.partFile = new File(outfile.getPath() + ".part");
+        this.checkpointFile = new File(outfile.getPath() + ".checkpoint");
+    }
+
+
+    /**
+     * @return the checkpoint of an interrupted run, or null if there is no
+     *         partial archive to resume
+     * @throws IOException if the checkpoint cannot be read
+     */
+    protected JsonNode readCheckpoint() throws IOException {
+        if (!checkpointFile.exists() || !partFile.exists())
+            return null;
+        return GroupMeAPI.objectMapper().readTree(checkpointFile);
+    }
+
+
+    /**
+     * Carry on merging with the archive the interrupted run was merging with,
+     * if any
+     *
+     * @param checkpoint checkpoint returned by readCheckpoint
+     */
+    protected void restoreMerge(JsonNode checkpoint) {
+        untilId = checkpoint.path("until_id").asText(null);
+        untilCount = checkpoint.path("until_count").asInt();
+    }
+
+
+    /**
+     * Record the position after the last complete page, replacing the previous
+     * checkpoint in one move so it is never half-written
+     *
+     * @param beforeId id of the last message written
+     * @param offset length of the partial archive up to the end of the page
+     * @throws IOException if the checkpoint cannot be written
+     */
+    protected void saveCheckpoint(String beforeId, long offset) throws IOException {
+        ObjectMapper mapper = GroupMeAPI.objectMapper();
+        ObjectNode checkpoint = mapper.createObjectNode();
+        checkpoint.put("before_id", beforeId);
+        checkpoint.put("offset", offset);
+        checkpoint.put("written", written);
+        if (untilId != null) {
+            checkpoint.put("until_id", untilId);
+            checkpoint.put("until_count", untilCount);
+        }
+
+        File temp = new File(checkpointFile.getPath() + ".tmp");
+        mapper.writeValue(temp, checkpoint);
+        Files.move(temp.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+
+    /**
+     * @return true if this is an update that found no new messages, in which
+     *         case end() should call keepExisting instead of finishing the
+     *         partial archive
+     */
+    protected boolean isUpToDate() {
+        return untilId != null && written == 0;
+    }
+
+
+    /**
+     * Delete the (closed) partial archive and its checkpoint, keeping the
+     * existing archive as it is
+     *
+     * @throws IOException if the files cannot be deleted
+     */
+    protected void keepExisting() throws IOException {
+        Files.deleteIfExists(partFile.toPath());
+        Files.deleteIfExists(checkpointFile.toPath());
+    }
+
+
+    /**
+     * Move the finished (and closed) partial archive over the destination and
+     * delete its checkpoint
+     *
+     * @throws IOException if the archive cannot be moved
+     */
+    protected void moveIntoPlace() throws IOException {
+        try {
+            Files.move(partFile.toPath(), outfile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(partFile.toPath(), outfile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.deleteIfExists(checkpointFile.toPath());
+    }
+
+
+    @Override
+    public void setMergedPageHandler(JsonArchiveReader.PageHandler handler) {
+        this.mergedPages = handler;
+    }
+
+
+    /**
+     * @return id to continue paging before after a resume, or null
+     */
+    @Override
+    public String getResumeBeforeId() {
+        return resumeBeforeId;
+    }
+
+
+    /**
+     * @return id of the newest message already archived, or null if this is
+     *         not an update of an existing archive
+     */
+    @Override
+    public String getUntilId() {
+        return untilId;
+    }
+
+
+    /**
+     * @return number of messages in the archive being updated
+     */
+    @Override
+    public int getUntilCount() {
+        return untilCount;
+    }
+
+
+    /**
+     * @return number of messages written so far, including before a resume
+     */
+    @Override
+    public int getWritten() {
+        return written;
+    }
+
+}
@@ -0,0 +1,50 @@
+/**
+ * Receives progress updates from a long-running GroupMe operation. The
+ * archiving engine only reports through this interface, so it runs the same
+ * behind the GUI or on a headless server.
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+
+
+public interface ProgressListener {
+
+    /**
+     * Called with a short description whenever the operation moves on to a
+     * new stage
+     *
+     * @param message description of the current stage
+     */
+    void status(String message);
+
+
+    /**
+     * Called as the current stage proceeds. May be called from any thread.
+     *
+     * @param fraction completed fraction of the current stage, from 0 to 1
+     */
+    void progress(double fraction);
+
+
+    /**
+     * Called with the number of messages in each page as it is received, for
+     * listeners that report throughput. May be called from any thread.
+     *
+     * @param count number of messages received
+     */
+    default void messages(int count) {
+    }
+
+
+    /**
+     * Called when the operation fails, with a message suitable for showing to
+     * the user. May be called from any thread.
+     *
+     * @param message description of what went wrong
+     */
+    void error(String message);
+
+}
@@ -0,0 +1,223 @@
+/**
+ * Collects progress from any number of archiving threads and publishes it at a
+ * fixed rate, so the cost of showing progress does not grow with the number of
+ * messages or media files. Updates only touch atomic counters; a timer thread
+ * turns them into a Snapshot with smoothed throughput and an estimate of the
+ * time left, and hands that to the display.
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+
+
+public class ProgressReporter {
+
+    // 10 updates per second looks smooth without keeping a UI thread busy
+    public static final long DEFAULT_PERIOD_MILLIS = 100;
+
+    // Weight of the newest tick in the smoothed rates, about a second of history
+    private static final double SMOOTHING = 0.1;
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+        Thread thread = new Thread(runnable, "progress-reporter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Receives each published snapshot on the timer thread
+     */
+    public interface Display {
+        void show(Snapshot snapshot);
+    }
+
+    /**
+     * Progress at one point in time
+     */
+    public static class Snapshot {
+        public final String status;
+        public final double fraction;
+        public final long messages;
+        public final long bytes;
+        public final double messagesPerSecond;
+        public final double bytesPerSecond;
+        public final long secondsLeft;
+
+        Snapshot(String status, double fraction, long messages, long bytes, double messagesPerSecond,
+                double bytesPerSecond, long secondsLeft) {
+            this.status = status;
+            this.fraction = fraction;
+            this.messages = messages;
+            this.bytes = bytes;
+            this.messagesPerSecond = messagesPerSecond;
+            this.bytesPerSecond = bytesPerSecond;
+            this.secondsLeft = secondsLeft;
+        }
+
+        /**
+         * @return the status followed by whichever rates are known, e.g.
+         *         "Getting 5000 messages... (850 messages/s, 1.2 MB/s, 0:42 left)"
+         */
+        public String describe() {
+            if (fraction >= 1)
+                return status;
+            StringBuilder rates = new StringBuilder();
+            if (messagesPerSecond >= 1)
+                rates.append(String.format("%.0f messages/s", messagesPerSecond));
+            if (bytesPerSecond >= 1024)
+                rates.append(rates.length() > 0 ? ", " : "").append(formatBytes(bytesPerSecond)).append("/s");
+            if (secondsLeft >= 0)
+                rates.append(rates.length() > 0 ? ", " : "")
+                        .append(String.format("%d:%02d left", secondsLeft / 60, secondsLeft % 60));
+            return (rates.length() == 0) ? status : status + " (" + rates + ")";
+        }
+
+        private static String formatBytes(double bytes) {
+            if (bytes >= 1 << 20)
+                return String.format("%.1f MB", bytes / (1 << 20));
+            return String.format("%.0f KB", bytes / 1024);
+        }
+    }
+
+    private final int tasks;
+    private final Display display;
+    private final Map<String, Double> fractions = new ConcurrentHashMap<>();
+    private final AtomicInteger finished = new AtomicInteger();
+    private final LongAdder messages = new LongAdder();
+    private final long startBytes;
+    private volatile String status = "";
+    private ScheduledFuture<?> ticker;
+
+    // Only used by the timer thread
+    private long lastTick;
+    private long lastMessages;
+    private long lastBytes;
+    private double lastFraction;
+    private double messageRate;
+    private double byteRate;
+    private double fractionRate;
+
+    /**
+     * @param tasks number of tasks (e.g. groups) whose progress is combined
+     * @param display receives the published snapshots
+     */
+    public ProgressReporter(int tasks, Display display) {
+        this.tasks = Math.max(1, tasks);
+        this.display = display;
+        this.startBytes = HttpTransport.shared().getBytesRead();
+    }
+
+
+    /**
+     * Start publishing snapshots
+     *
+     * @param periodMillis time between snapshots
+     */
+    public synchronized void start(long periodMillis) {
+        lastTick = System.nanoTime();
+        ticker = timer.scheduleAtFixedRate(this::tick, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Stop publishing, after one last snapshot with the final state
+     *
+     * @param finalStatus status to show in the last snapshot
+     */
+    public synchronized void stop(String finalStatus) {
+        status = finalStatus;
+        if (ticker != null) {
+            ticker.cancel(false);
+            ticker = null;
+        }
+        // Runs after any tick already queued, since the timer has one thread
+        timer.execute(this::tick);
+    }
+
+
+    /**
+     * @param task task that moved on to a new stage, whose progress restarts
+     * @param message description shown until the next status
+     */
+    public void status(String task, String message) {
+        fractions.put(task, 0.0);
+        status = message;
+    }
+
+
+    /**
+     * @param task task that made progress
+     * @param fraction completed fraction of the task's current stage
+     */
+    public void progress(String task, double fraction) {
+        fractions.put(task, fraction);
+    }
+
+
+    /**
+     * @param count number of messages just received
+     */
+    public void messages(int count) {
+        messages.add(count);
+    }
+
+
+    /**
+     * @param task task that has finished, successfully or not
+     */
+    public void done(String task) {
+        fractions.remove(task);
+        finished.incrementAndGet();
+    }
+
+
+    /**
+     * @return the number of tasks finished so far
+     */
+    public int getFinished() {
+        return finished.get();
+    }
+
+
+    private void tick() {
+        long now = System.nanoTime();
+        double seconds = Math.max((now - lastTick) / 1e9, 1e-3);
+        lastTick = now;
+
+        double total = finished.get();
+        for (double fraction : fractions.values()) {
+            total += fraction;
+        }
+        double fraction = Math.min(total / tasks, 1.0);
+        long messageCount = messages.sum();
+        long bytes = HttpTransport.shared().getBytesRead() - startBytes;
+
+        messageRate = smooth(messageRate, (messageCount - lastMessages) / seconds);
+        byteRate = smooth(byteRate, (bytes - lastBytes) / seconds);
+        // A stage starting over from 0 says nothing about the speed of the next
+        fractionRate = (fraction < lastFraction) ? 0 : smooth(fractionRate, (fraction - lastFraction) / seconds);
+        lastMessages = messageCount;
+        lastBytes = bytes;
+        lastFraction = fraction;
+
+        long secondsLeft = (fractionRate > 1e-6) ? (long) Math.ceil((1 - fraction) / fractionRate) : -1;
+        display.show(new Snapshot(status, fraction, messageCount, bytes, messageRate, byteRate, secondsLeft));
+    }
+
+
+    private static double smooth(double average, double sample) {
+        return average + SMOOTHING * (sample - average);
+    }
+
+}
@@ -0,0 +1,163 @@
+/**
+ * Shared throttle for requests to one kind of GroupMe endpoint. It bounds the
+ * number of requests in flight with a limit that adapts to the server the way
+ * TCP congestion control does: the limit grows by about one for every limit's
+ * worth of successful requests, and is halved whenever the server says it is
+ * overloaded. A Retry-After from the server pauses every caller until it has
+ * passed.
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+
+
+public class RateController {
+
+    // Delays used between retries of a failed request
+    private static final long BASE_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 60000;
+
+    // Don't halve the limit again for every throttled response of one burst
+    private static final long DECREASE_INTERVAL_MILLIS = 1000;
+
+    private final int maxLimit;
+    private double limit;
+    private int inFlight;
+    private int waiting;
+    private int peakWaiting;
+    private long pausedUntil;
+    private long lastDecrease;
+
+    /**
+     * @param maxLimit most requests ever allowed in flight at once; the limit
+     *                 starts here and only drops when the server pushes back
+     */
+    public RateController(int maxLimit) {
+        this.maxLimit = Math.max(1, maxLimit);
+        this.limit = this.maxLimit;
+    }
+
+
+    /**
+     * Wait for a free slot (and for any Retry-After pause to end), then take it
+     *
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public synchronized void acquire() throws InterruptedIOException {
+        boolean counted = false;
+        try {
+            while (true) {
+                long pause = pausedUntil - System.currentTimeMillis();
+                if (pause <= 0 && inFlight < (int) limit)
+                    break;
+                if (!counted) {
+                    counted = true;
+                    peakWaiting = Math.max(peakWaiting, ++waiting);
+                }
+                if (pause > 0) {
+                    wait(pause);
+                } else {
+                    wait();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a request slot");
+        } finally {
+            if (counted)
+                waiting--;
+        }
+        inFlight++;
+    }
+
+
+    /**
+     * Give back a slot taken by acquire
+     */
+    public synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+
+    /**
+     * Record a request that the server accepted
+     */
+    public synchronized void onSuccess() {
+        if (limit < maxLimit) {
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+            notifyAll();
+        }
+    }
+
+
+    /**
+     * Record a response saying the server is overloaded (429 or 503)
+     *
+     * @param retryAfterMillis how long the server asked clients to wait, or
+     *                         0 if it did not say
+     */
+    public synchronized void onThrottled(long retryAfterMillis) {
+        long now = System.currentTimeMillis();
+        if (now - lastDecrease >= DECREASE_INTERVAL_MILLIS) {
+            limit = Math.max(1, limit / 2);
+            lastDecrease = now;
+        }
+        if (retryAfterMillis > 0) {
+            pausedUntil = Math.max(pausedUntil, now + retryAfterMillis);
+        }
+    }
+
+
+    /**
+     * @return the current number of requests allowed in flight
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+
+    /**
+     * @return the number of requests currently in flight
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+
+    /**
+     * @return the number of callers waiting for a slot
+     */
+    public synchronized int getWaiting() {
+        return waiting;
+    }
+
+
+    /**
+     * @return the most callers that have waited for a slot at once
+     */
+    public synchronized int getPeakWaiting() {
+        return peakWaiting;
+    }
+
+
+    /**
+     * Exponential backoff with full jitter, so that many clients retrying at
+     * once spread out instead of hitting the server together again
+     *
+     * @param attempt number of attempts already failed, from 1
+     * @param retryAfterMillis the server's Retry-After, used as a minimum
+     * @return milliseconds to wait before the next attempt
+     */
+    public static long backoffMillis(int attempt, long retryAfterMillis) {
+        long ceiling = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt, 16));
+        long jittered = ThreadLocalRandom.current().nextLong(ceiling + 1);
+        return Math.max(jittered, retryAfterMillis);
+    }
+
+}
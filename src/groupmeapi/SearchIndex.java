@@ -0,0 +1,611 @@
+/**
+ * Search the messages of a group by the words in them, using the index that
+ * SearchIndexWriter builds alongside the archive. The index file is mapped
+ * into memory, and a search only reads the postings of the terms it asks for,
+ * so it takes milliseconds however large the group is.
+ *
+ * A query is a list of conditions that all have to match:
+ *
+ *   word               messages with the word, in any case
+ *   "a few words"      messages with the words next to each other, in order
+ *   from:name          messages from someone with that word in their name
+ *   sender:id          messages from the user with that id
+ *   has:type           messages with an attachment of that type, e.g. image
+ *   since:2019-01-01   messages sent on or after the day
+ *   until:2019-03-31   messages sent on or before the day
+ *
+ * Words are runs of letters and digits, so "don't" is the phrase "don t".
+ *
+ * Layout of the file:
+ *
+ *   header        magic, version, message count, name count, term count,
+ *                 then the offsets of the sections below and the file length
+ *   group         id and name of the group (as by DataOutput.writeUTF)
+ *   text          the text of every message in UTF-8
+ *   messages      per message: id, created_at, offset and length of its text,
+ *                 and the number of the name it was sent under
+ *   names         every name messages were sent under
+ *   postings      per term: for each message with it, the gap since the
+ *                 previous message number, how often the term appears, and
+ *                 the gaps between its positions, as variable-length numbers
+ *   term table    per term, sorted: offset and length of the term, offset of
+ *                 its postings and how many messages have it
+ *   terms         the terms in UTF-8
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+
+
+public class SearchIndex implements Closeable {
+
+    static final int MAGIC = 0x474d5358;    // "GMSX"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 72;
+    static final int DOC_SIZE = 32;
+    static final int TERM_SIZE = 20;
+
+    // File extension of search indexes
+    public static final String SEARCH_EXTENSION = ".search";
+
+    // Prefixes of the facet terms, which cannot clash with words
+    static final String FROM = "from:";
+    static final String SENDER = "sender:";
+    static final String HAS = "has:";
+
+    // Longest word indexed; the rest of a longer run is left out
+    private static final int MAX_WORD = 64;
+
+    private final ByteBuffer file;
+    private final String groupId;
+    private final String groupName;
+    private final int docCount;
+    private final int termCount;
+    private final long docTableOffset;
+    private final long postingsOffset;
+    private final long termTableOffset;
+    private final long termStringsOffset;
+    private final String[] names;
+
+    private SearchIndex(ByteBuffer file) throws IOException {
+        this.file = file;
+        if (file.limit() < HEADER_SIZE || file.getInt(0) != MAGIC || file.getInt(4) != VERSION)
+            throw new IOException("Not a search index");
+        docCount = file.getInt(8);
+        int nameCount = file.getInt(12);
+        termCount = file.getInt(16);
+        docTableOffset = file.getLong(24);
+        long namesOffset = file.getLong(32);
+        postingsOffset = file.getLong(40);
+        termTableOffset = file.getLong(48);
+        termStringsOffset = file.getLong(56);
+        if (file.getLong(64) != file.limit())
+            throw new IOException("Incomplete search index");
+
+        DataInputStream group = input(HEADER_SIZE);
+        groupId = group.readUTF();
+        groupName = group.readUTF();
+        names = new String[nameCount];
+        DataInputStream in = input(namesOffset);
+        for (int i = 0; i < nameCount; i++) {
+            names[i] = in.readUTF();
+        }
+    }
+
+
+    /**
+     * Open a search index, mapping it into memory
+     *
+     * @param index file written by SearchIndexWriter
+     * @return the index, which must be closed
+     * @throws IOException if the file cannot be read or is not an index
+     */
+    public static SearchIndex open(File index) throws IOException {
+        try (FileChannel channel = FileChannel.open(index.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Search index too large to map: " + index);
+            try {
+                return new SearchIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            } catch (IOException | RuntimeException ex) {
+                throw new IOException("Malformed search index: " + index, ex);
+            }
+        }
+    }
+
+
+    /**
+     * Search the indexes of every group saved in a folder, skipping messages
+     * found in more than one index (e.g. of a date range and of the whole
+     * group)
+     *
+     * @param saveFolder folder in which each group has its own folder
+     * @param query the query, as described above
+     * @param limit most results to return
+     * @return the messages found, newest first
+     * @throws IOException if an index cannot be read
+     * @throws IllegalArgumentException if the query is malformed
+     */
+    public static List<Hit> searchAll(File saveFolder, String query, int limit) throws IOException {
+        Query parsed = Query.parse(query);
+        List<Hit> hits = new ArrayList<>();
+        File[] groupFolders = saveFolder.listFiles(File::isDirectory);
+        if (groupFolders == null)
+            return hits;
+        for (File groupFolder : groupFolders) {
+            File[] indexes = groupFolder.listFiles((dir, name) -> name.endsWith(SEARCH_EXTENSION));
+            if (indexes == null)
+                continue;
+            for (File index : indexes) {
+                try (SearchIndex searchIndex = open(index)) {
+                    hits.addAll(searchIndex.search(parsed, limit));
+                }
+            }
+        }
+
+        hits.sort(NEWEST_FIRST);
+        Set<String> seen = new HashSet<>();
+        List<Hit> unique = new ArrayList<>();
+        for (Hit hit : hits) {
+            if (unique.size() < limit && seen.add(hit.groupId + "/" + hit.messageId))
+                unique.add(hit);
+        }
+        return unique;
+    }
+
+
+    public String getGroupId() {
+        return groupId;
+    }
+
+
+    public String getGroupName() {
+        return groupName;
+    }
+
+
+    public int getMessageCount() {
+        return docCount;
+    }
+
+
+    /**
+     * @param query the query, as described above
+     * @param limit most results to return
+     * @return the messages found, newest first
+     * @throws IllegalArgumentException if the query is malformed
+     */
+    public List<Hit> search(String query, int limit) {
+        return search(Query.parse(query), limit);
+    }
+
+
+    /**
+     * @param query a parsed query
+     * @param limit most results to return
+     * @return the messages found, newest first
+     */
+    public List<Hit> search(Query query, int limit) {
+        int[] docs = null;
+        // Rarest terms first, so the candidates shrink as fast as they can
+        List<List<String>> clauses = new ArrayList<>(query.clauses);
+        clauses.sort(Comparator.comparingInt(this::rarest));
+        for (List<String> clause : clauses) {
+            docs = match(clause, docs);
+            if (docs.length == 0)
+                return new ArrayList<>();
+        }
+
+        if (docs == null) {
+            // Only a date range, so every message is a candidate
+            docs = new int[docCount];
+            for (int i = 0; i < docCount; i++) {
+                docs[i] = i;
+            }
+        }
+        List<Integer> matched = new ArrayList<>();
+        for (int doc : docs) {
+            if (query.range.contains(createdAt(doc)))
+                matched.add(doc);
+        }
+
+        // Only the messages returned have their text read
+        matched.sort(Comparator.comparingLong(this::createdAt).reversed());
+        List<Hit> hits = new ArrayList<>();
+        for (int i = 0; i < Math.min(limit, matched.size()); i++) {
+            hits.add(hit(matched.get(i)));
+        }
+        return hits;
+    }
+
+
+    @Override
+    public void close() {
+        // The mapping is released when it is garbage collected
+    }
+
+
+    /**
+     * Split text into lowercase words: runs of letters and digits
+     *
+     * @param text text of a message or query
+     * @return the words, in order
+     */
+    public static List<String> tokens(String text) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= text.length(); ) {
+            int c = (i < text.length()) ? text.codePointAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (word.length() < MAX_WORD)
+                    word.appendCodePoint(c);
+            } else if (word.length() > 0) {
+                tokens.add(word.toString().toLowerCase(Locale.ROOT));
+                word.setLength(0);
+            }
+            i += Character.charCount(c);
+        }
+        return tokens;
+    }
+
+
+    /**
+     * A query split into its conditions: each clause is a term, or the words
+     * of a phrase, that must all match
+     */
+    public static class Query {
+        private final List<List<String>> clauses;
+        private final DateRange range;
+
+        private Query(List<List<String>> clauses, DateRange range) {
+            this.clauses = clauses;
+            this.range = range;
+        }
+
+
+        /**
+         * @param query the query, as described above
+         * @return the parsed query
+         * @throws IllegalArgumentException if the query is malformed or
+         *                                  empty
+         */
+        public static Query parse(String query) {
+            List<List<String>> clauses = new ArrayList<>();
+            LocalDate since = null;
+            LocalDate until = null;
+            int i = 0;
+            while (i < query.length()) {
+                char c = query.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                    continue;
+                }
+                int end;
+                String part;
+                if (c == '"') {
+                    end = query.indexOf('"', i + 1);
+                    if (end < 0)
+                        throw new IllegalArgumentException("Unclosed quote in the query");
+                    part = query.substring(i + 1, end);
+                    end++;
+                } else {
+                    end = i;
+                    while (end < query.length() && !Character.isWhitespace(query.charAt(end))) {
+                        end++;
+                    }
+                    part = query.substring(i, end);
+                }
+                i = end;
+
+                String lower = part.toLowerCase(Locale.ROOT);
+                if (c != '"' && lower.startsWith("since:")) {
+                    since = date(part.substring(6));
+                } else if (c != '"' && lower.startsWith("until:")) {
+                    until = date(part.substring(6));
+                } else if (c != '"' && lower.startsWith(FROM)) {
+                    for (String word : tokens(part.substring(FROM.length()))) {
+                        clauses.add(Arrays.asList(FROM + word));
+                    }
+                } else if (c != '"' && (lower.startsWith(SENDER) || lower.startsWith(HAS))) {
+                    clauses.add(Arrays.asList(lower));
+                } else {
+                    List<String> words = tokens(part);
+                    if (!words.isEmpty())
+                        clauses.add(words);
+                }
+            }
+            if (clauses.isEmpty() && since == null && until == null)
+                throw new IllegalArgumentException("The query has no words to search for");
+            return new Query(clauses, DateRange.ofDays(since, until));
+        }
+
+
+        private static LocalDate date(String value) {
+            try {
+                return LocalDate.parse(value);
+            } catch (DateTimeParseException ex) {
+                throw new IllegalArgumentException("Not a date like 2019-06-08: " + value);
+            }
+        }
+    }
+
+
+    /**
+     * A message that matched a search
+     */
+    public static class Hit {
+        private final String groupId;
+        private final String groupName;
+        private final String messageId;
+        private final long createdAt;
+        private final String name;
+        private final String text;
+
+        Hit(String groupId, String groupName, String messageId, long createdAt, String name, String text) {
+            this.groupId = groupId;
+            this.groupName = groupName;
+            this.messageId = messageId;
+            this.createdAt = createdAt;
+            this.name = name;
+            this.text = text;
+        }
+
+
+        public String getGroupId() {
+            return groupId;
+        }
+
+
+        public String getGroupName() {
+            return groupName;
+        }
+
+
+        /**
+         * @return id of the message, or null if it was not a number
+         */
+        public String getMessageId() {
+            return messageId;
+        }
+
+
+        public long getCreatedAt() {
+            return createdAt;
+        }
+
+
+        /**
+         * @return name the message was sent under
+         */
+        public String getName() {
+            return name;
+        }
+
+
+        public String getText() {
+            return text;
+        }
+    }
+
+
+    private static final Comparator<Hit> NEWEST_FIRST = Comparator.comparingLong(Hit::getCreatedAt).reversed();
+
+
+    /**
+     * @param clause a term or the words of a phrase
+     * @param candidates messages to keep, sorted, or null for every message
+     * @return the candidates that match the clause, sorted
+     */
+    private int[] match(List<String> clause, int[] candidates) {
+        List<Posting[]> postings = new ArrayList<>();
+        for (String term : clause) {
+            int t = find(term);
+            if (t < 0)
+                return new int[0];
+            postings.add(read(t, candidates));
+        }
+
+        // Messages with every word, and (for a phrase) with them in a row
+        Posting[] first = postings.get(0);
+        int[] matched = new int[first.length];
+        int count = 0;
+        int[] at = new int[postings.size()];
+        for (Posting posting : first) {
+            boolean all = true;
+            Posting[] inDoc = new Posting[postings.size()];
+            inDoc[0] = posting;
+            for (int w = 1; w < postings.size() && all; w++) {
+                Posting[] list = postings.get(w);
+                while (at[w] < list.length && list[at[w]].doc < posting.doc) {
+                    at[w]++;
+                }
+                all = at[w] < list.length && list[at[w]].doc == posting.doc;
+                if (all)
+                    inDoc[w] = list[at[w]];
+            }
+            if (all && (postings.size() == 1 || inRow(inDoc)))
+                matched[count++] = posting.doc;
+        }
+        return Arrays.copyOf(matched, count);
+    }
+
+
+    /**
+     * @return true if the words appear one after another somewhere
+     */
+    private static boolean inRow(Posting[] words) {
+        for (int start : words[0].positions) {
+            boolean row = true;
+            for (int w = 1; w < words.length && row; w++) {
+                row = Arrays.binarySearch(words[w].positions, start + w) >= 0;
+            }
+            if (row)
+                return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * @return the smallest number of messages with any term of the clause
+     */
+    private int rarest(List<String> clause) {
+        int rarest = Integer.MAX_VALUE;
+        for (String term : clause) {
+            int t = find(term);
+            rarest = Math.min(rarest, (t < 0) ? 0 : file.getInt(termOffset(t) + 16));
+        }
+        return rarest;
+    }
+
+
+    /**
+     * @return number of the term in the term table, or -1
+     */
+    private int find(String term) {
+        int low = 0;
+        int high = termCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = term(mid).compareTo(term);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+
+    private String term(int t) {
+        int entry = termOffset(t);
+        int offset = (int) termStringsOffset + file.getInt(entry);
+        byte[] bytes = new byte[file.getInt(entry + 4)];
+        ByteBuffer slice = file.duplicate();
+        slice.position(offset);
+        slice.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+
+    /**
+     * A message with a term, and where the term is in it
+     */
+    private static class Posting {
+        final int doc;
+        final int[] positions;
+
+        Posting(int doc, int[] positions) {
+            this.doc = doc;
+            this.positions = positions;
+        }
+    }
+
+
+    /**
+     * Decode the postings of a term, keeping the positions only for the
+     * candidates
+     */
+    private Posting[] read(int t, int[] candidates) {
+        int entry = termOffset(t);
+        int position = (int) (postingsOffset + file.getLong(entry + 8));
+        int docs = file.getInt(entry + 16);
+        List<Posting> postings = new ArrayList<>(Math.min(docs, (candidates == null) ? docs : candidates.length));
+        int[] cursor = {position};
+        int doc = -1;
+        int next = 0;
+        for (int i = 0; i < docs; i++) {
+            doc += readVarInt(cursor);
+            int count = readVarInt(cursor);
+            while (candidates != null && next < candidates.length && candidates[next] < doc) {
+                next++;
+            }
+            boolean wanted = (candidates == null) || (next < candidates.length && candidates[next] == doc);
+            int[] positions = wanted ? new int[count] : null;
+            int last = 0;
+            for (int p = 0; p < count; p++) {
+                last += readVarInt(cursor);
+                if (wanted)
+                    positions[p] = last;
+            }
+            if (wanted)
+                postings.add(new Posting(doc, positions));
+        }
+        return postings.toArray(new Posting[0]);
+    }
+
+
+    private int readVarInt(int[] cursor) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = file.get(cursor[0]++);
+            value |= (b & 0x7f) << shift;
+            if (b >= 0)
+                return value;
+        }
+    }
+
+
+    private Hit hit(int doc) {
+        int entry = docOffset(doc);
+        long id = file.getLong(entry);
+        int textOffset = (int) file.getLong(entry + 16);
+        byte[] text = new byte[file.getInt(entry + 24)];
+        ByteBuffer slice = file.duplicate();
+        slice.position(textOffset);
+        slice.get(text);
+        return new Hit(groupId, groupName, (id < 0) ? null : Long.toString(id), file.getLong(entry + 8),
+                names[file.getInt(entry + 28)], new String(text, StandardCharsets.UTF_8));
+    }
+
+
+    private long createdAt(int doc) {
+        return file.getLong(docOffset(doc) + 8);
+    }
+
+
+    private int docOffset(int doc) {
+        return (int) docTableOffset + doc * DOC_SIZE;
+    }
+
+
+    private int termOffset(int t) {
+        return (int) termTableOffset + t * TERM_SIZE;
+    }
+
+
+    private DataInputStream input(long offset) {
+        ByteBuffer slice = file.duplicate();
+        slice.position((int) offset);
+        return new DataInputStream(new InputStream() {
+            @Override
+            public int read() {
+                return slice.hasRemaining() ? (slice.get() & 0xff) : -1;
+            }
+        });
+    }
+
+}
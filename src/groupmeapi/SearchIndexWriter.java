@@ -0,0 +1,278 @@
+/**
+ * Build a search index (see SearchIndex) of a group's messages as the pages
+ * arrive, so that an archive can be searched without reading it.
+ *
+ * The text of each message is written to the file straight away, and its
+ * words are added to the postings of each term: for every message with the
+ * term, the gap since the previous one and the positions of the term in it,
+ * as variable-length numbers, which keeps the postings of a large group to a
+ * few bytes per word. end() sorts the terms and writes them and their
+ * postings after the text.
+ *
+ * Like the other exports, the index is written to a ".part" file and moved
+ * over the destination when it is complete.
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+
+public class SearchIndexWriter implements MessageSink {
+
+    private final File outfile;
+    private final File partFile;
+    private CountingOutputStream counter;
+    private DataOutputStream out;
+
+    private final ByteArrayOutputStream docBytes = new ByteArrayOutputStream(1 << 16);
+    private final DataOutputStream docs = new DataOutputStream(docBytes);
+    private final Map<String, Integer> names = new HashMap<>();
+    private final List<String> nameList = new ArrayList<>();
+    private final Map<String, Postings> terms = new HashMap<>();
+    private int docCount;
+
+    /**
+     * @param outfile file to write the index to -- replaced once the new
+     *                index is complete
+     */
+    public SearchIndexWriter(File outfile) {
+        this.outfile = outfile;
+        this.partFile = new File(outfile.getPath() + ".part");
+    }
+
+
+    @Override
+    public void begin(ObjectNode group) throws IOException {
+        counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(partFile), 1 << 16));
+        out = new DataOutputStream(counter);
+        out.write(new byte[SearchIndex.HEADER_SIZE]);   // Filled in by end()
+        out.writeUTF(group.path("id").asText());
+        out.writeUTF(group.path("name").asText());
+
+        docBytes.reset();
+        names.clear();
+        nameList.clear();
+        terms.clear();
+        docCount = 0;
+    }
+
+
+    /**
+     * Add the messages of a page to the index
+     *
+     * @param messages page of messages, newest first
+     * @throws IOException if the text cannot be written
+     */
+    @Override
+    public void page(ArrayNode messages) throws IOException {
+        Map<String, List<Integer>> positions = new LinkedHashMap<>();
+        for (JsonNode message : messages) {
+            int doc = docCount++;
+            String text = message.path("text").asText();
+            byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+            long textOffset = counter.count;
+            out.write(textBytes);
+
+            String name = message.path("name").asText();
+            Integer nameIndex = names.get(name);
+            if (nameIndex == null) {
+                nameIndex = nameList.size();
+                names.put(name, nameIndex);
+                nameList.add(name);
+            }
+
+            String id = message.path("id").asText();
+            docs.writeLong(BinaryArchiveFormat.isId(id) ? Long.parseLong(id) : -1);
+            docs.writeLong(message.path("created_at").asLong());
+            docs.writeLong(textOffset);
+            docs.writeInt(textBytes.length);
+            docs.writeInt(nameIndex);
+
+            // Words of the text with their positions, then the facets
+            positions.clear();
+            List<String> words = SearchIndex.tokens(text);
+            for (int i = 0; i < words.size(); i++) {
+                positions.computeIfAbsent(words.get(i), (word) -> new ArrayList<>()).add(i);
+            }
+            for (String word : SearchIndex.tokens(name)) {
+                positions.putIfAbsent(SearchIndex.FROM + word, Collections.emptyList());
+            }
+            positions.putIfAbsent(SearchIndex.SENDER + message.path("sender_id").asText(), Collections.emptyList());
+            for (JsonNode attachment : message.path("attachments")) {
+                positions.putIfAbsent(SearchIndex.HAS + attachment.path("type").asText(), Collections.emptyList());
+            }
+            for (Map.Entry<String, List<Integer>> term : positions.entrySet()) {
+                terms.computeIfAbsent(term.getKey(), (key) -> new Postings()).add(doc, term.getValue());
+            }
+        }
+    }
+
+
+    /**
+     * Write the messages, names, terms and postings after the text, then the
+     * header, and move the index into place
+     *
+     * @throws IOException if the index cannot be finished
+     */
+    @Override
+    public void end() throws IOException {
+        long docTableOffset = counter.count;
+        docs.flush();
+        docBytes.writeTo(out);
+        docBytes.reset();
+
+        long namesOffset = counter.count;
+        for (String name : nameList) {
+            out.writeUTF(name);
+        }
+
+        // Postings go straight to the file; the term table and the terms
+        // follow them
+        String[] sorted = terms.keySet().toArray(new String[0]);
+        Arrays.sort(sorted);
+        long postingsOffset = counter.count;
+        ByteArrayOutputStream tableBytes = new ByteArrayOutputStream(sorted.length * SearchIndex.TERM_SIZE);
+        DataOutputStream table = new DataOutputStream(tableBytes);
+        ByteArrayOutputStream stringBytes = new ByteArrayOutputStream();
+        for (String term : sorted) {
+            Postings postings = terms.remove(term);
+            byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+            table.writeInt(stringBytes.size());
+            table.writeInt(bytes.length);
+            table.writeLong(counter.count - postingsOffset);
+            table.writeInt(postings.docs);
+            stringBytes.write(bytes);
+            out.write(postings.bytes, 0, postings.length);
+        }
+        long termTableOffset = counter.count;
+        tableBytes.writeTo(out);
+        long termStringsOffset = counter.count;
+        stringBytes.writeTo(out);
+        long length = counter.count;
+        out.close();
+
+        try (RandomAccessFile part = new RandomAccessFile(partFile, "rw")) {
+            part.writeInt(SearchIndex.MAGIC);
+            part.writeInt(SearchIndex.VERSION);
+            part.writeInt(docCount);
+            part.writeInt(nameList.size());
+            part.writeInt(sorted.length);
+            part.writeInt(0);
+            part.writeLong(docTableOffset);
+            part.writeLong(namesOffset);
+            part.writeLong(postingsOffset);
+            part.writeLong(termTableOffset);
+            part.writeLong(termStringsOffset);
+            part.writeLong(length);
+        }
+        try {
+            Files.move(partFile.toPath(), outfile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(partFile.toPath(), outfile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+
+    /**
+     * Close and delete the partial index; it is built again from the start by
+     * the next run
+     */
+    @Override
+    public void abort() {
+        try {
+            if (out != null)
+                out.close();
+            Files.deleteIfExists(partFile.toPath());
+        } catch (IOException ex) {
+            // The run has already failed
+        }
+    }
+
+
+    /**
+     * Postings of one term, encoded as they are added
+     */
+    private static class Postings {
+        private byte[] bytes = new byte[8];
+        private int length;
+        private int lastDoc = -1;
+        private int docs;
+
+        void add(int doc, List<Integer> positions) {
+            writeVarInt(doc - lastDoc);
+            writeVarInt(positions.size());
+            int last = 0;
+            for (int position : positions) {
+                writeVarInt(position - last);
+                last = position;
+            }
+            lastDoc = doc;
+            docs++;
+        }
+
+
+        private void writeVarInt(int value) {
+            if (length + 5 > bytes.length)
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            while ((value & ~0x7f) != 0) {
+                bytes[length++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+    }
+
+
+    /**
+     * Keeps track of the position in the file
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+}
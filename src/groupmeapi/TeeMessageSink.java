@@ -0,0 +1,70 @@
+/**
+ * Hand every page to several sinks, so one pass over a group's messages can
+ * write all of the formats chosen.
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+
+public class TeeMessageSink implements MessageSink {
+
+    private final List<MessageSink> sinks;
+
+    /**
+     * @param sinks sinks to deliver to, in this order
+     */
+    public TeeMessageSink(List<? extends MessageSink> sinks) {
+        this.sinks = new ArrayList<>(sinks);
+    }
+
+
+    /**
+     * @param sinks sinks to deliver to, in this order
+     */
+    public TeeMessageSink(MessageSink... sinks) {
+        this(Arrays.asList(sinks));
+    }
+
+
+    @Override
+    public void begin(ObjectNode group) throws IOException {
+        for (MessageSink sink : sinks) {
+            sink.begin(group);
+        }
+    }
+
+
+    @Override
+    public void page(ArrayNode messages) throws IOException {
+        for (MessageSink sink : sinks) {
+            sink.page(messages);
+        }
+    }
+
+
+    @Override
+    public void end() throws IOException {
+        for (MessageSink sink : sinks) {
+            sink.end();
+        }
+    }
+
+
+    @Override
+    public void abort() {
+        for (MessageSink sink : sinks) {
+            sink.abort();
+        }
+    }
+
+}
@@ -0,0 +1,216 @@
+/**
+ * Base of the exports meant for people and spreadsheets rather than for
+ * reloading: each message is formatted as it is fetched, never building the
+ * whole group in memory, and the export lists the messages oldest first.
+ *
+ * Pages arrive newest first, so each page is formatted (oldest message first)
+ * into a spool file as it arrives, and end() copies the pages from the spool
+ * in reverse order after the header. The spool is the only extra copy, and it
+ * is of the formatted text, not of the messages.
+ *
+ * Like the archives, the export is written to a ".part" file and moved over
+ * the destination when it is complete.
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+
+
+public abstract class TextExportWriter implements MessageSink {
+
+    // Times are shown in the computer's time zone, in a form spreadsheets parse
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
+
+    private final File outfile;
+    private final File partFile;
+    private final File spoolFile;
+    private final StringBuilder text = new StringBuilder(1 << 16);
+    private final List<long[]> pages = new ArrayList<>();
+    private ObjectNode group;
+    private RandomAccessFile spool;
+    private int written;
+
+    /**
+     * @param outfile file to write the export to -- replaced once the new
+     *                export is complete
+     */
+    protected TextExportWriter(File outfile) {
+        this.outfile = outfile;
+        this.partFile = new File(outfile.getPath() + ".part");
+        this.spoolFile = new File(outfile.getPath() + ".spool");
+    }
+
+
+    @Override
+    public void begin(ObjectNode group) throws IOException {
+        this.group = group;
+        spool = new RandomAccessFile(spoolFile, "rw");
+        spool.setLength(0);
+        pages.clear();
+        written = 0;
+    }
+
+
+    /**
+     * Format a page of messages, oldest first, onto the end of the spool
+     *
+     * @param messages page of messages, newest first
+     * @throws IOException if the page cannot be written
+     */
+    @Override
+    public void page(ArrayNode messages) throws IOException {
+        if (messages.size() == 0)
+            return;
+        text.setLength(0);
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            formatMessage(messages.get(i), text);
+        }
+        byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+        long offset = spool.getFilePointer();
+        spool.write(bytes);
+        pages.add(new long[]{offset, bytes.length});
+        written += messages.size();
+    }
+
+
+    /**
+     * Write the header followed by the spooled pages, oldest first, and move
+     * the export into place
+     *
+     * @throws IOException if the export cannot be finished
+     */
+    @Override
+    public void end() throws IOException {
+        try (RandomAccessFile part = new RandomAccessFile(partFile, "rw")) {
+            part.setLength(0);
+            FileChannel out = part.getChannel();
+            text.setLength(0);
+            formatHeader(group, written, text);
+            ByteBuffer header = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+            while (header.hasRemaining()) {
+                out.write(header);
+            }
+
+            FileChannel in = spool.getChannel();
+            for (int i = pages.size() - 1; i >= 0; i--) {
+                long offset = pages.get(i)[0];
+                long length = pages.get(i)[1];
+                long copied = 0;
+                while (copied < length) {
+                    copied += in.transferTo(offset + copied, length - copied, out);
+                }
+            }
+        } finally {
+            spool.close();
+            Files.deleteIfExists(spoolFile.toPath());
+        }
+
+        try {
+            Files.move(partFile.toPath(), outfile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(partFile.toPath(), outfile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+
+    /**
+     * Close and delete the spool and any partial export; the export is
+     * written again from the start by the next run
+     */
+    @Override
+    public void abort() {
+        try {
+            if (spool != null)
+                spool.close();
+            Files.deleteIfExists(spoolFile.toPath());
+            Files.deleteIfExists(partFile.toPath());
+        } catch (IOException ex) {
+            // The run has already failed
+        }
+    }
+
+
+    /**
+     * @return number of messages exported so far
+     */
+    public int getWritten() {
+        return written;
+    }
+
+
+    /**
+     * Append whatever comes before the messages
+     *
+     * @param group group information returned by getGroupInfo
+     * @param messageCount number of messages in the export
+     * @param out text to append to
+     */
+    protected abstract void formatHeader(ObjectNode group, int messageCount, StringBuilder out);
+
+
+    /**
+     * Append one message
+     *
+     * @param message message as returned by the API
+     * @param out text to append to
+     */
+    protected abstract void formatMessage(JsonNode message, StringBuilder out);
+
+
+    /**
+     * @param seconds time in seconds since the epoch, as in created_at
+     * @return the time as e.g. "2019-06-08 14:03:27", in the local time zone
+     */
+    protected static String formatTime(long seconds) {
+        return TIME_FORMAT.format(Instant.ofEpochSecond(seconds));
+    }
+
+
+    /**
+     * Describe an attachment in a few words, e.g. "image https://i.groupme.com/..."
+     *
+     * @param attachment attachment of a message
+     * @return a one-line description of the attachment
+     */
+    protected static String describeAttachment(JsonNode attachment) {
+        String type = attachment.path("type").asText("attachment");
+        switch (type) {
+            case "location":
+                return type + " " + attachment.path("name").asText() + " (" + attachment.path("lat").asText()
+                        + ", " + attachment.path("lng").asText() + ")";
+            case "reply":
+                return type + " to " + attachment.path("reply_id").asText();
+            case "mentions":
+                int members = attachment.path("user_ids").size();
+                return type + " of " + members + (members == 1 ? " member" : " members");
+            default:
+                if (attachment.hasNonNull("url"))
+                    return type + " " + attachment.path("url").asText();
+                if (attachment.hasNonNull("name"))
+                    return type + " " + attachment.path("name").asText();
+                return type;
+        }
+    }
+
+}
@@ -0,0 +1,89 @@
+/**
+ * Export messages as a plain-text transcript, oldest first, e.g.
+ *
+ *   [2019-06-08 14:03:27] Alice: see you at noon
+ *       bring the notes
+ *       (image https://i.groupme.com/...)
+ *   [2019-06-08 14:05:10] * Bob added Carol to the group.
+ *
+ * Every line of a message after the first is indented, so a new message is
+ * always a line that does not start with a space.
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmeapi;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.File;
+
+
+
+public class TranscriptExportWriter extends TextExportWriter {
+
+    private static final String INDENT = "    ";
+
+    /**
+     * @param outfile file to write the export to
+     */
+    public TranscriptExportWriter(File outfile) {
+        super(outfile);
+    }
+
+
+    @Override
+    protected void formatHeader(ObjectNode group, int messageCount, StringBuilder out) {
+        out.append(group.path("name").asText()).append('\n');
+        String description = group.path("description").asText();
+        if (!description.isEmpty())
+            indent(out.append(INDENT), description).append('\n');
+        out.append(messageCount).append(messageCount == 1 ? " message" : " messages").append("\n\n");
+    }
+
+
+    @Override
+    protected void formatMessage(JsonNode message, StringBuilder out) {
+        out.append('[').append(formatTime(message.path("created_at").asLong())).append("] ");
+        if (message.path("system").asBoolean() || message.path("sender_type").asText().equals("system")) {
+            out.append("* ");
+        } else {
+            out.append(message.path("name").asText()).append(": ");
+        }
+        indent(out, message.path("text").asText());
+
+        for (JsonNode attachment : message.path("attachments")) {
+            out.append('\n').append(INDENT).append('(');
+            indent(out, describeAttachment(attachment)).append(')');
+        }
+        int favorites = message.path("favorited_by").size();
+        if (favorites > 0)
+            out.append('\n').append(INDENT).append("(liked by ").append(favorites).append(')');
+        out.append('\n');
+    }
+
+
+    /**
+     * Append text, indenting every line after the first
+     *
+     * @param out text to append to
+     * @param text text that may contain line breaks
+     * @return out
+     */
+    private static StringBuilder indent(StringBuilder out, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\r') {
+                // Treat \r\n and a lone \r like \n
+                if (i + 1 < text.length() && text.charAt(i + 1) == '\n')
+                    continue;
+                c = '\n';
+            }
+            out.append(c);
+            if (c == '\n')
+                out.append(INDENT);
+        }
+        return out;
+    }
+
+}
@@ -0,0 +1,400 @@
+/**
+ * Command-line entry point for archiving GroupMe groups without a display, for
+ * example from cron on a server. It drives the same engine as the GUI, and
+ * reports progress as lines on standard error.
+ *
+ * Created by Jacob Strieb
+ */
+
+package groupmearchivercli;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import groupmeapi.BatchArchiver;
+import groupmeapi.DateRange;
+import groupmeapi.GroupAnalytics;
+import groupmeapi.GroupArchiver;
+import groupmeapi.GroupMeAPI;
+import groupmeapi.ProgressListener;
+import groupmeapi.SearchIndex;
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+
+public class GroupMeArchiverCLI {
+
+    private static final List<String> FORMATS = Arrays.asList(GroupArchiver.FORMAT_JSON,
+            GroupArchiver.FORMAT_JSON_GZIP, GroupArchiver.FORMAT_BINARY, GroupArchiver.FORMAT_STORE,
+            GroupArchiver.FORMAT_CSV, GroupArchiver.FORMAT_TEXT, GroupArchiver.FORMAT_SEARCH,
+            GroupArchiver.FORMAT_HTML);
+
+    private static final String USAGE = String.join("\n",
+            "Usage: java -cp GroupMeArchiverGUI.jar groupmearchivercli.GroupMeArchiverCLI [options] [group ID ...]",
+            "",
+            "Options:",
+            "  --token TOKEN          GroupMe API token (default: $GROUPME_TOKEN)",
+            "  --output DIR           folder in which each group gets a folder (default: .)",
+            "  --all                  archive every group instead of the given IDs",
+            "  --list                 print the name and ID of every group, then exit",
+            "  --format FORMATS       comma-separated message formats, written in one pass: " + String.join(", ", FORMATS),
+            "                         (default: json; at most one of json, json.gz, binary and store)",
+            "  --from DATE            only save messages (and media) sent on or after DATE (yyyy-mm-dd)",
+            "  --to DATE              only save messages (and media) sent on or before DATE (yyyy-mm-dd)",
+            "                         (with either, the files are named after the dates and never updated)",
+            "  --no-messages          do not save messages",
+            "  --no-media             do not download media",
+            "  --full                 download everything again instead of updating existing archives",
+            "  --parallel-groups N    groups archived at the same time (default: 4)",
+            "  --max-requests N       API requests in flight across all groups (default: 4)",
+            "  --max-downloads N      media downloads in flight from each media host, shared by all groups;",
+            "                         each group also starts at most N at once (default: 8)",
+            "  --search QUERY         search the groups saved in --output (with the search format), then exit;",
+            "                         e.g. '\"road trip\" from:alice has:image since:2019-01-01 until:2019-03-31'",
+            "  --limit N              with --search, the most messages to print (default: 50)",
+            "  --analyze              write analytics.json (activity, likes, media and reply times per member)",
+            "                         for every group saved in --output, then exit",
+            "  --help                 show this message",
+            "",
+            "Exits with 0 if every group was archived (or searched or analyzed), 1 if any failed, and 2 on bad arguments.");
+
+    private String token = System.getenv("GROUPME_TOKEN");
+    private String output = ".";
+    private boolean all = false;
+    private boolean list = false;
+    private List<String> formats = new ArrayList<>(Arrays.asList(GroupArchiver.FORMAT_JSON));
+    private LocalDate from = null;
+    private LocalDate to = null;
+    private boolean downloadMessages = true;
+    private boolean downloadMedia = true;
+    private boolean updateExisting = true;
+    private int parallelGroups = 4;
+    private int maxRequests = 4;
+    private int maxDownloads = 8;
+    private String search = null;
+    private int limit = 50;
+    private boolean analyze = false;
+    private final List<String> groupIDs = new ArrayList<>();
+
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        GroupMeArchiverCLI cli = new GroupMeArchiverCLI();
+        try {
+            cli.parse(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println("error: " + ex.getMessage());
+            System.err.println();
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        System.exit(cli.run());
+    }
+
+
+    /**
+     * Read the options into fields
+     *
+     * @param args the command line arguments
+     * @throws IllegalArgumentException if an option is unknown or invalid
+     */
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--token":
+                    token = value(args, ++i, arg);
+                    break;
+                case "--output":
+                    output = value(args, ++i, arg);
+                    break;
+                case "--all":
+                    all = true;
+                    break;
+                case "--list":
+                    list = true;
+                    break;
+                case "--format":
+                    formats = new ArrayList<>();
+                    int archives = 0;
+                    for (String format : value(args, ++i, arg).split(",")) {
+                        format = format.trim().toLowerCase();
+                        if (!FORMATS.contains(format))
+                            throw new IllegalArgumentException("unsupported format " + format);
+                        if (GroupArchiver.isArchiveFormat(format))
+                            archives++;
+                        formats.add(format);
+                    }
+                    if (archives > 1)
+                        throw new IllegalArgumentException("at most one of json, json.gz, binary and store can be used");
+                    break;
+                case "--from":
+                    from = date(value(args, ++i, arg), arg);
+                    break;
+                case "--to":
+                    to = date(value(args, ++i, arg), arg);
+                    break;
+                case "--no-messages":
+                    downloadMessages = false;
+                    break;
+                case "--no-media":
+                    downloadMedia = false;
+                    break;
+                case "--full":
+                    updateExisting = false;
+                    break;
+                case "--parallel-groups":
+                    parallelGroups = count(value(args, ++i, arg), arg);
+                    break;
+                case "--max-requests":
+                    maxRequests = count(value(args, ++i, arg), arg);
+                    break;
+                case "--max-downloads":
+                    maxDownloads = count(value(args, ++i, arg), arg);
+                    break;
+                case "--search":
+                    search = value(args, ++i, arg);
+                    SearchIndex.Query.parse(search);
+                    break;
+                case "--limit":
+                    limit = count(value(args, ++i, arg), arg);
+                    break;
+                case "--analyze":
+                    analyze = true;
+                    break;
+                case "--help":
+                case "-h":
+                    System.out.println(USAGE);
+                    System.exit(0);
+                    break;
+                default:
+                    if (arg.startsWith("-"))
+                        throw new IllegalArgumentException("unknown option " + arg);
+                    if (!groupIDs.contains(arg))
+                        groupIDs.add(arg);
+            }
+        }
+
+        if (search != null || analyze)
+            return;
+        if (token == null || token.isEmpty())
+            throw new IllegalArgumentException("no API token given with --token or GROUPME_TOKEN");
+        if (!list && !all && groupIDs.isEmpty())
+            throw new IllegalArgumentException("no group IDs given");
+        if (!list && !downloadMessages && !downloadMedia)
+            throw new IllegalArgumentException("nothing to do with both --no-messages and --no-media");
+        if (from != null && to != null && from.isAfter(to))
+            throw new IllegalArgumentException("--from is after --to");
+    }
+
+
+    private static String value(String[] args, int i, String option) {
+        if (i >= args.length)
+            throw new IllegalArgumentException(option + " needs a value");
+        return args[i];
+    }
+
+
+    private static int count(String value, String option) {
+        try {
+            int count = Integer.parseInt(value);
+            if (count >= 1)
+                return count;
+        } catch (NumberFormatException ex) {
+            // Fall through
+        }
+        throw new IllegalArgumentException(option + " needs a positive number");
+    }
+
+
+    private static LocalDate date(String value, String option) {
+        try {
+            return LocalDate.parse(value);
+        } catch (DateTimeParseException ex) {
+            throw new IllegalArgumentException(option + " needs a date like 2019-06-08");
+        }
+    }
+
+
+    /**
+     * List or archive the groups
+     *
+     * @return the process exit code
+     */
+    private int run() {
+        if (search != null)
+            return search();
+        if (analyze)
+            return analyze();
+
+        Map<String, String> groupNames = new HashMap<>();
+        if (list || all) {
+            LinkedHashMap<String, String> groups = GroupMeAPI.getGroups(token, new ConsoleListener(null));
+            if (groups == null)
+                return 1;
+            for (Map.Entry<String, String> group : groups.entrySet()) {
+                if (list) {
+                    System.out.println(group.getValue() + "\t" + group.getKey());
+                } else {
+                    if (!groupIDs.contains(group.getValue()))
+                        groupIDs.add(group.getValue());
+                }
+                groupNames.put(group.getValue(), group.getKey());
+            }
+            if (list)
+                return 0;
+        }
+
+        GroupArchiver archiver = new GroupArchiver(new File(output).getAbsolutePath(), downloadMessages,
+                formats, DateRange.ofDays(from, to), updateExisting, downloadMedia, maxDownloads);
+        BatchArchiver batch = new BatchArchiver(archiver, parallelGroups, maxRequests, maxDownloads);
+
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicInteger failures = new AtomicInteger();
+        Map<String, ConsoleListener> listeners = new ConcurrentHashMap<>();
+        for (String groupID : groupIDs) {
+            listeners.put(groupID, new ConsoleListener(groupNames.getOrDefault(groupID, groupID)));
+        }
+
+        batch.start(groupIDs, token, new BatchArchiver.Listener() {
+            @Override
+            public void groupStatus(String groupID, String message) {
+                listeners.get(groupID).status(message);
+            }
+
+            @Override
+            public void groupProgress(String groupID, double fraction) {
+                listeners.get(groupID).progress(fraction);
+            }
+
+            @Override
+            public void groupError(String groupID, String message) {
+                listeners.get(groupID).error(message);
+            }
+
+            @Override
+            public void groupDone(String groupID, String groupName) {
+                if (groupName != null) {
+                    listeners.get(groupID).status("Done");
+                } else {
+                    listeners.get(groupID).status("Failed");
+                }
+            }
+
+            @Override
+            public void allDone(int archived, int failed) {
+                System.err.println("Archived " + archived + " groups" + (failed > 0 ? ", " + failed + " failed" : ""));
+                failures.set(failed);
+                done.countDown();
+            }
+        });
+
+        try {
+            done.await();
+        } catch (InterruptedException ex) {
+            return 1;
+        }
+        return (failures.get() == 0) ? 0 : 1;
+    }
+
+
+    /**
+     * Print the messages matching the search, newest first, one per line
+     *
+     * @return the process exit code
+     */
+    private int search() {
+        List<SearchIndex.Hit> hits;
+        try {
+            hits = SearchIndex.searchAll(new File(output), search, limit);
+        } catch (IOException ex) {
+            System.err.println("error: " + ex.getMessage());
+            return 1;
+        }
+        DateTimeFormatter time = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
+        for (SearchIndex.Hit hit : hits) {
+            System.out.println("[" + time.format(Instant.ofEpochSecond(hit.getCreatedAt())) + "] "
+                    + hit.getGroupName() + " / " + hit.getName() + ": " + hit.getText().replaceAll("\\s+", " "));
+        }
+        System.err.println(hits.size() + (hits.size() == 1 ? " message" : " messages") + " found");
+        return 0;
+    }
+
+
+    /**
+     * Write the analytics of every group saved in the output folder next to
+     * its archive
+     *
+     * @return the process exit code
+     */
+    private int analyze() {
+        File[] groupFolders = new File(output).listFiles(File::isDirectory);
+        int failed = 0;
+        for (File groupFolder : (groupFolders == null) ? new File[0] : groupFolders) {
+            File archive = GroupAnalytics.findArchive(groupFolder);
+            if (archive == null)
+                continue;
+            ConsoleListener listener = new ConsoleListener(groupFolder.getName());
+            try {
+                ObjectNode report = GroupAnalytics.analyze(archive, ZoneId.systemDefault());
+                new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(new File(groupFolder, "analytics.json"), report);
+                listener.status(report.path("messages").asLong() + " messages from " + report.path("members").asInt()
+                        + " members in " + String.format("%.1f", report.path("seconds").asDouble()) + " s");
+            } catch (IOException ex) {
+                listener.error("Failed to analyze " + archive.getName() + ": " + ex.getMessage());
+                failed++;
+            }
+        }
+        return (failed == 0) ? 0 : 1;
+    }
+
+
+    /**
+     * Print the progress of one group as lines on standard error, with a line
+     * for every status and for every tenth of each stage completed
+     */
+    private static class ConsoleListener implements ProgressListener {
+        private final String prefix;
+        private final AtomicInteger tenths = new AtomicInteger(-1);
+
+        ConsoleListener(String label) {
+            this.prefix = (label == null) ? "" : "[" + label + "] ";
+        }
+
+        @Override
+        public void status(String message) {
+            tenths.set(-1);
+            System.err.println(prefix + message);
+        }
+
+        @Override
+        public void progress(double fraction) {
+            int current = (int) (fraction * 10);
+            int last = tenths.get();
+            if (current > last && tenths.compareAndSet(last, current))
+                System.err.println(prefix + (current * 10) + "%");
+        }
+
+        @Override
+        public void error(String message) {
+            System.err.println(prefix + "error: " + message);
+        }
+    }
+
+}
@@ -3,8 +3,12 @@
  */
 package groupmearchivergui;
 
-import com.fasterxml.jackson.databind.node.ObjectNode;
+import groupmeapi.BatchArchiver;
+import groupmeapi.DateRange;
+import groupmeapi.GroupArchiver;
 import groupmeapi.GroupMeAPI;
+import groupmeapi.ProgressListener;
+import groupmeapi.ProgressReporter;
 import static groupmearchivergui.GroupMeArchiverGUI.changeWindowTitle;
 import static groupmearchivergui.GroupMeArchiverGUI.error;
 import java.awt.Desktop;
@@ -13,11 +17,14 @@ import java.io.IOException;
 import java.net.URI;
 
 import java.net.URL;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.ResourceBundle;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.prefs.BackingStoreException;
 import java.util.prefs.Preferences;
 import javafx.application.Platform;
@@ -29,9 +36,12 @@ import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
 import javafx.scene.control.ButtonType;
 import javafx.scene.control.CheckBox;
+import javafx.scene.control.DatePicker;
 import javafx.scene.control.Label;
 import javafx.scene.control.ListView;
 import javafx.scene.control.ProgressBar;
+import javafx.scene.control.RadioButton;
+import javafx.scene.control.SelectionMode;
 import javafx.scene.control.Spinner;
 import javafx.scene.control.SpinnerValueFactory;
 import javafx.scene.control.TextField;
@@ -59,6 +69,28 @@ public class FXMLDocumentController implements Initializable {
     private LinkedHashMap<String, String> groupList;
     private String groupID = "";
     
+    // Groups archived at the same time, and the API requests shared by them
+    private static final int PARALLEL_GROUPS = 4;
+    private static final int MAX_API_REQUESTS = 4;
+    
+    // Show errors reported by the archiving engine in a dialog
+    private final ProgressListener errorDialog = new ProgressListener() {
+        @Override
+        public void status(String message) {
+        }
+        
+        @Override
+        public void progress(double fraction) {
+        }
+        
+        @Override
+        public void error(String message) {
+            Platform.runLater(() -> {
+                GroupMeArchiverGUI.error(message);
+            });
+        }
+    };
+    
 
     /**
      *************************************************************************
@@ -117,7 +149,7 @@ public class FXMLDocumentController implements Initializable {
         }
         
         // Get the group list and check that the API key is valid
-        groupList = GroupMeAPI.getGroups(API_KEY);
+        groupList = GroupMeAPI.getGroups(API_KEY, errorDialog);
         if (groupList == null) return;
         
         // Set the group list in the panel on the left
@@ -132,7 +164,8 @@ public class FXMLDocumentController implements Initializable {
             handleListViewSelection(((ReadOnlyObjectProperty) observable).getValue().toString());
         });
         
-        // Enable the ability to select a group
+        // Enable the ability to select one or more groups
+        groupListView.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
         groupListView.setDisable(false);
     }
     
@@ -151,6 +184,20 @@ public class FXMLDocumentController implements Initializable {
     @FXML
     private ToggleGroup messageFormatToggleGroup;
     @FXML
+    private RadioButton gzipFormatRadioButton;
+    @FXML
+    private RadioButton binaryFormatRadioButton;
+    @FXML
+    private RadioButton storeFormatRadioButton;
+    @FXML
+    private CheckBox csvFormatCheckBox;
+    @FXML
+    private CheckBox textFormatCheckBox;
+    @FXML
+    private CheckBox searchFormatCheckBox;
+    @FXML
+    private CheckBox htmlFormatCheckBox;
+    @FXML
     private TextField saveToFolderTextField;
     @FXML
     private VBox root;
@@ -158,6 +205,12 @@ public class FXMLDocumentController implements Initializable {
     private Label statusLabel;
     @FXML
     private FlowPane messageFormatTogglePane;
+    @FXML
+    private CheckBox updateExistingCheckBox;
+    @FXML
+    private DatePicker fromDatePicker;
+    @FXML
+    private DatePicker toDatePicker;
     
     /**
      * Update the window title, enable the additional options to download,
@@ -174,7 +227,8 @@ public class FXMLDocumentController implements Initializable {
         optionsPanel.setDisable(false);
         beginArchivingButton.setDefaultButton(true);
         useKeyButton.setDefaultButton(false);
-        statusLabel.setText("Archive group \"" + groupName + "\"");
+        int selected = groupListView.getSelectionModel().getSelectedItems().size();
+        statusLabel.setText(selected > 1 ? "Archive " + selected + " selected groups" : "Archive group \"" + groupName + "\"");
         mainProgressBar.setProgress((double) 0.0);
     }
     
@@ -198,6 +252,7 @@ public class FXMLDocumentController implements Initializable {
     @FXML
     private void handleDownloadMessagesAction(ActionEvent event) {
         messageFormatTogglePane.setDisable(!downloadMessagesCheckBox.isSelected());
+        updateExistingCheckBox.setDisable(!downloadMessagesCheckBox.isSelected());
     }
     
     
@@ -245,25 +300,12 @@ public class FXMLDocumentController implements Initializable {
     @FXML
     private CheckBox downloadMediaCheckBox;
     @FXML
-    private CheckBox useMultithreadingCheckBox;
-    @FXML
-    private Spinner numThreadSpinner;
+    private Spinner maxDownloadsSpinner;
     
     
     /**
-     * Enable or disable the thread count spinner depending on whether or not
-     * the box to use multithreading is ticked
-     * 
-     * @param event unused
-     */
-    @FXML
-    private void handleMultithreadingCheckboxAction(ActionEvent event) {
-        numThreadSpinner.setDisable(!useMultithreadingCheckBox.isSelected());
-    }
-    
-    
-    /**
-     * Begin the action of archiving -- handle calls to archive messages and media
+     * Begin the action of archiving -- archive every selected group, several at
+     * a time, and show their combined progress
      * 
      * @param event unused
      */
@@ -271,74 +313,112 @@ public class FXMLDocumentController implements Initializable {
     private void handleBeginArchivingAction(ActionEvent event) {
         if (!downloadMediaCheckBox.isSelected() && !downloadMessagesCheckBox.isSelected())
             return;
+        if (BatchArchiver.isRunning()) {
+            statusLabel.setText("Wait for the groups being archived to finish");
+            return;
+        }
         
         preferences.put("CWD", saveToFolderTextField.getText());
-        ObjectNode group = GroupMeAPI.getGroupInfo(API_KEY, groupID);
-        int totalCount = group.path("messages").path("count").asInt();
         
-        // Make a folder for saving data
-        Path groupFolderPath = Paths.get(saveToFolderTextField.getText(), group.path("name").asText()).toAbsolutePath();
-        File groupFolder = groupFolderPath.toFile();
-        if ((!groupFolder.exists() || !groupFolder.isDirectory()) && !groupFolder.mkdirs()) {
-            error("Failed to create folder " + groupFolder.getAbsolutePath());
+        List<String> groupIDs = new ArrayList<>();
+        Map<String, String> groupNames = new HashMap<>();
+        for (Object groupName : groupListView.getSelectionModel().getSelectedItems()) {
+            String id = groupList.get(groupName.toString());
+            groupIDs.add(id);
+            groupNames.put(id, groupName.toString());
+        }
+        if (groupIDs.isEmpty())
+            return;
+        
+        // The download count limits the media downloads from each host for the
+        // whole run, as well as those each group starts at once
+        int maxDownloads = (int) maxDownloadsSpinner.getValue();
+        List<String> messageFormats = new ArrayList<>();
+        if (gzipFormatRadioButton.isSelected())
+            messageFormats.add(GroupArchiver.FORMAT_JSON_GZIP);
+        else if (binaryFormatRadioButton.isSelected())
+            messageFormats.add(GroupArchiver.FORMAT_BINARY);
+        else if (storeFormatRadioButton.isSelected())
+            messageFormats.add(GroupArchiver.FORMAT_STORE);
+        else
+            messageFormats.add(GroupArchiver.FORMAT_JSON);
+        if (csvFormatCheckBox.isSelected())
+            messageFormats.add(GroupArchiver.FORMAT_CSV);
+        if (textFormatCheckBox.isSelected())
+            messageFormats.add(GroupArchiver.FORMAT_TEXT);
+        if (searchFormatCheckBox.isSelected())
+            messageFormats.add(GroupArchiver.FORMAT_SEARCH);
+        if (htmlFormatCheckBox.isSelected())
+            messageFormats.add(GroupArchiver.FORMAT_HTML);
+        
+        // An empty date picker leaves that end of the range open
+        DateRange range;
+        try {
+            range = DateRange.ofDays(fromDatePicker.getValue(), toDatePicker.getValue());
+        } catch (IllegalArgumentException ex) {
+            statusLabel.setText("The first date is after the last date");
             return;
         }
+        GroupArchiver archiver = new GroupArchiver(saveToFolderTextField.getText(), downloadMessagesCheckBox.isSelected(),
+                messageFormats, range, updateExistingCheckBox.isSelected(), downloadMediaCheckBox.isSelected(), maxDownloads);
+        BatchArchiver batch = new BatchArchiver(archiver, PARALLEL_GROUPS, MAX_API_REQUESTS, maxDownloads);
         
-        // Download the messages and save (in a separate thread so it doesn't block the UI)
-        Thread downloadThread = new Thread() {
-            @Override
-            public void run() {
-                // Download messages
-                // See https://stackoverflow.com/a/32489845/1376127
+        // Progress is collected without touching the UI and shown ten times a
+        // second, with at most one update waiting on the UI thread at a time
+        AtomicReference<ProgressReporter.Snapshot> latest = new AtomicReference<>();
+        ProgressReporter reporter = new ProgressReporter(groupIDs.size(), (snapshot) -> {
+            if (latest.getAndSet(snapshot) == null) {
                 Platform.runLater(() -> {
-                    statusLabel.setText("Getting " + totalCount + " messages...");
+                    ProgressReporter.Snapshot current = latest.getAndSet(null);
+                    mainProgressBar.setProgress(current.fraction);
+                    statusLabel.setText(current.describe());
                 });
-                GroupMeAPI.getMessages(group, groupID, API_KEY, mainProgressBar);
-
-                // Export messages
-                if (downloadMessagesCheckBox.isSelected()) {
-                    // TODO: Add support for other message format exports
-                    Platform.runLater(() -> {
-                        statusLabel.setText("Saving downloaded messages to JSON file...");
-                    });
-                    Path messageFilePath = Paths.get(groupFolderPath.toString(), "messages.json");
-                    File messageFile = messageFilePath.toFile();
-                    GroupMeAPI.writeObjectNode(group, messageFile);
-                }
-
-                if (!downloadMediaCheckBox.isSelected())
-                    return;
-
-                // Count media files
-                int mediaCount = GroupMeAPI.countMedia(group);
+            }
+        });
+        reporter.start(ProgressReporter.DEFAULT_PERIOD_MILLIS);
+        
+        // Archive in separate threads so it doesn't block the UI
+        // See https://stackoverflow.com/a/32489845/1376127
+        batch.start(groupIDs, API_KEY, new BatchArchiver.Listener() {
+            @Override
+            public void groupStatus(String groupID, String message) {
+                String text = (groupIDs.size() == 1) ? message
+                        : "[" + reporter.getFinished() + "/" + groupIDs.size() + " groups done] "
+                        + groupNames.get(groupID) + ": " + message;
+                reporter.status(groupID, text);
+            }
+            
+            @Override
+            public void groupProgress(String groupID, double fraction) {
+                reporter.progress(groupID, fraction);
+            }
+            
+            @Override
+            public void groupMessages(String groupID, int count) {
+                reporter.messages(count);
+            }
+            
+            @Override
+            public void groupError(String groupID, String message) {
+                errorDialog.error((groupIDs.size() == 1) ? message : groupNames.get(groupID) + ": " + message);
+            }
+            
+            @Override
+            public void groupDone(String groupID, String groupName) {
+                reporter.done(groupID);
+            }
+            
+            @Override
+            public void allDone(int archived, int failed) {
+                String text = (groupIDs.size() == 1 && failed == 0)
+                        ? "Done archiving messages and media from \"" + groupNames.get(groupIDs.get(0)) + "\""
+                        : "Done archiving " + archived + " groups" + (failed > 0 ? " (" + failed + " failed)" : "");
+                reporter.stop(text);
                 Platform.runLater(() -> {
-                    statusLabel.setText("Downloading " + mediaCount + " media items...");
+                    beginArchivingButton.setDisable(false);
                 });
-
-                // Make the media folder if it doesn't already exist
-                Path mediaFolderPath = Paths.get(groupFolderPath.toString(), "media");
-                File mediaFolder = mediaFolderPath.toFile();
-                if ((!mediaFolder.exists() || !mediaFolder.isDirectory()) && !mediaFolder.mkdirs()) {
-                    error("Failed to create folder " + mediaFolder.getAbsolutePath());
-                    return;
-                }
-
-                // Download media files
-                if (useMultithreadingCheckBox.isSelected()) {
-                    int numThreads = (int) numThreadSpinner.getValue();
-                    GroupMeAPI.downloadMediaMultithreaded(group, mediaFolder, numThreads, mainProgressBar, () -> {
-                        Platform.runLater(() -> {
-                            statusLabel.setText("Done archiving messages and media from \"" + group.path("name").asText() + "\"");
-                            beginArchivingButton.setDisable(false);
-                        });
-                    });
-                } else {
-                    GroupMeAPI.downloadMedia(group, mediaFolder, mediaCount, mainProgressBar);
-                }
             }
-        };
-        downloadThread.setDaemon(true);
-        downloadThread.start();
+        });
         
         beginArchivingButton.setDisable(true);
     }
@@ -459,7 +539,7 @@ public class FXMLDocumentController implements Initializable {
         }
         saveToFolderTextField.setText(currentWorkingDirectory);
         
-        numThreadSpinner.setValueFactory(new SpinnerValueFactory.IntegerSpinnerValueFactory(2, 16, 4, 1));
+        maxDownloadsSpinner.setValueFactory(new SpinnerValueFactory.IntegerSpinnerValueFactory(1, 32, 8, 1));
     }
 
 }